@@ -0,0 +1,67 @@
+package com.example.fortnote;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Work submitted by {@link NoteManager}'s async API. The result is handed to the
+ * callback on {@code callbackExecutor} (the main thread in the app) unless the
+ * task was disposed first.
+ *
+ * Disposing drops the callback. Reads are also cancelled outright, but writes
+ * always run to completion so an edit is never lost because its screen closed.
+ */
+class BackgroundTask<T> extends FutureTask<T> {
+
+    private final NoteManager.Callback<T> callback;
+    private final Executor callbackExecutor;
+    private final boolean cancellable;
+    private volatile boolean disposed = false;
+    private volatile boolean finished = false;
+
+    BackgroundTask(Callable<T> work, NoteManager.Callback<T> callback,
+                   Executor callbackExecutor, boolean cancellable) {
+        super(work);
+        this.callback = callback;
+        this.callbackExecutor = callbackExecutor;
+        this.cancellable = cancellable;
+    }
+
+    void dispose() {
+        disposed = true;
+        if (cancellable) cancel(true);
+    }
+
+    /** True once the callback has run or can no longer run. */
+    boolean isFinished() {
+        return finished || disposed;
+    }
+
+    @Override
+    protected void done() {
+        if (disposed || callback == null || isCancelled()) {
+            finished = true;
+            return;
+        }
+
+        T result;
+        try {
+            result = get();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            result = null;
+        } catch (InterruptedException | CancellationException e) {
+            finished = true;
+            return;
+        }
+
+        T delivered = result;
+        callbackExecutor.execute(() -> {
+            if (!disposed) callback.onResult(delivered);
+            finished = true;
+        });
+    }
+}
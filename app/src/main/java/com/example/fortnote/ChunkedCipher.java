@@ -0,0 +1,219 @@
+package com.example.fortnote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM over a stream, one chunk at a time. Every chunk of plaintext becomes
+ * its own authenticated segment ({@code ciphertext | tag}), so only one chunk
+ * is ever held in memory whatever the size of the note.
+ *
+ * The nonce of a segment is {@code prefix | index | last}: a random 7-byte
+ * prefix per stream, the big-endian segment index and a flag set only on the
+ * final segment. Segments therefore cannot be reordered, and a stream cut off
+ * at a segment boundary fails to authenticate. The caller's header is bound to
+ * every segment as associated data.
+ */
+class ChunkedCipher {
+
+    static final int NONCE_PREFIX_LENGTH = 7;
+    static final int TAG_LENGTH = 16;
+    private static final int NONCE_LENGTH = NONCE_PREFIX_LENGTH + 4 + 1;
+
+    private ChunkedCipher() {
+    }
+
+    /** Encrypts everything written to the returned stream into {@code out}; close it to seal the last chunk. */
+    static OutputStream encrypt(OutputStream out, byte[] key, byte[] noncePrefix, byte[] header, int chunkSize)
+            throws GeneralSecurityException {
+        return new EncryptingStream(out, new Segments(key, noncePrefix, header), chunkSize);
+    }
+
+    /** Decrypts {@code in}, which must be positioned just past the header. */
+    static InputStream decrypt(InputStream in, byte[] key, byte[] noncePrefix, byte[] header, int chunkSize)
+            throws GeneralSecurityException {
+        return new DecryptingStream(in, new Segments(key, noncePrefix, header), chunkSize);
+    }
+
+    static long ciphertextLength(long plaintextLength, int chunkSize) {
+        long segments = Math.max(1, (plaintextLength + chunkSize - 1) / chunkSize);
+        return plaintextLength + segments * TAG_LENGTH;
+    }
+
+    private static final class Segments {
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final byte[] header;
+        private final byte[] nonce = new byte[NONCE_LENGTH];
+        private int index = 0;
+
+        Segments(byte[] key, byte[] noncePrefix, byte[] header) throws GeneralSecurityException {
+            this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            this.key = new SecretKeySpec(key, "AES");
+            this.header = header.clone();
+            System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        }
+
+        int next(int mode, boolean last, byte[] in, int length, byte[] out) throws IOException {
+            if (index < 0) throw new IOException("Too many segments");
+            nonce[NONCE_PREFIX_LENGTH] = (byte) (index >>> 24);
+            nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+            nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+            nonce[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+            nonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+            index++;
+
+            try {
+                cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+                cipher.updateAAD(header);
+                return cipher.doFinal(in, 0, length, out, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Segment " + (index - 1) + " failed to authenticate", e);
+            }
+        }
+    }
+
+    private static final class EncryptingStream extends OutputStream {
+        private final OutputStream out;
+        private final Segments segments;
+        private final byte[] chunk;
+        private final byte[] segment;
+        private int length = 0;
+        private boolean closed = false;
+
+        EncryptingStream(OutputStream out, Segments segments, int chunkSize) {
+            this.out = out;
+            this.segments = segments;
+            this.chunk = new byte[chunkSize];
+            this.segment = new byte[chunkSize + TAG_LENGTH];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            // A full chunk is only sealed once more data arrives, so the final one is always known.
+            if (length == chunk.length) seal(false);
+            chunk[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == chunk.length) seal(false);
+                int n = Math.min(len, chunk.length - length);
+                System.arraycopy(b, off, chunk, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                seal(true);
+            } finally {
+                Arrays.fill(chunk, (byte) 0);
+                out.close();
+            }
+        }
+
+        private void seal(boolean last) throws IOException {
+            if (closed && !last) throw new IOException("Stream closed");
+            int n = segments.next(Cipher.ENCRYPT_MODE, last, chunk, length, segment);
+            out.write(segment, 0, n);
+            length = 0;
+        }
+    }
+
+    private static final class DecryptingStream extends InputStream {
+        private final InputStream in;
+        private final Segments segments;
+        private final byte[] segment;
+        private final byte[] plain;
+        private int position = 0;
+        private int limit = 0;
+        private int lookahead = -1;
+        private boolean finished = false;
+
+        DecryptingStream(InputStream in, Segments segments, int chunkSize) {
+            this.in = in;
+            this.segments = segments;
+            this.segment = new byte[chunkSize + TAG_LENGTH];
+            this.plain = new byte[chunkSize];
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !fill()) return -1;
+            return plain[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (position == limit && !fill()) return -1;
+            int n = Math.min(len, limit - position);
+            System.arraycopy(plain, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Arrays.fill(plain, (byte) 0);
+            position = limit = 0;
+            finished = true;
+            in.close();
+        }
+
+        private boolean fill() throws IOException {
+            while (!finished) {
+                int n = 0;
+                if (lookahead >= 0) {
+                    segment[n++] = (byte) lookahead;
+                    lookahead = -1;
+                }
+                n += readFully(segment, n, segment.length - n);
+
+                // A segment is the last one only if nothing follows it.
+                boolean last = n < segment.length || (lookahead = in.read()) < 0;
+                if (n < TAG_LENGTH) throw new IOException("Truncated segment");
+
+                limit = segments.next(Cipher.DECRYPT_MODE, last, segment, n, plain);
+                position = 0;
+                finished = last;
+                if (limit > 0) return true;
+            }
+            return false;
+        }
+
+        private int readFully(byte[] b, int off, int len) throws IOException {
+            int total = 0;
+            while (total < len) {
+                int n = in.read(b, off + total, len - total);
+                if (n < 0) break;
+                total += n;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.fortnote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Per-note write-ahead journal of unsaved editor drafts ({@code <id>.draft}).
+ * Each autosave appends one record and syncs it, which is far cheaper than a
+ * store write; the newest record that reads back intact is the draft. Once a
+ * draft is in the store the journal is discarded.
+ *
+ * Records are {@code length | crc32 | timestamp | title | content}, so a record
+ * torn by a crash is detected and the one before it is used instead. Most
+ * records are deltas against the draft before them, holding only the changed
+ * middle of the content ({@code prefix | suffix | text} in place of it); their
+ * length is stored complemented to tell them apart. Every
+ * {@link #KEYFRAME_INTERVAL}th record holds the whole draft, so reading one back
+ * applies only a few deltas.
+ */
+public class DraftJournal {
+
+    public static final class Draft {
+        public final String title;
+        public final String content;
+        public final long timestamp;
+
+        Draft(String title, String content, long timestamp) {
+            this.title = title;
+            this.content = content;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final String SUFFIX = ".draft";
+    static final int KEYFRAME_INTERVAL = 32;
+
+    private final File dir;
+    // The newest draft appended by this process, per note, that the next delta is taken against.
+    private final Map<String, Draft> last = new HashMap<>();
+    private final Map<String, Integer> sinceKeyframe = new HashMap<>();
+
+    public DraftJournal(File dir) {
+        this.dir = dir;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IllegalStateException("Cannot create draft directory " + dir);
+        }
+    }
+
+    /** Appends a draft and syncs it to disk; returns the journal's size afterwards. */
+    public synchronized long append(String id, String title, String content, long timestamp) throws IOException {
+        File file = file(id);
+        Draft previous = file.exists() ? last.get(id) : null;
+        int count = previous == null ? 0 : sinceKeyframe.getOrDefault(id, 0);
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(32 + title.length()
+                + (previous == null ? content.length() : Math.abs(content.length() - previous.content.length()) + 64));
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeLong(timestamp);
+        writeString(data, title);
+        boolean delta = previous != null && count < KEYFRAME_INTERVAL - 1
+                && writeDelta(data, previous.content, content);
+        if (!delta) writeString(data, content);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            DataOutputStream record = new DataOutputStream(out);
+            record.writeInt(delta ? ~payload.size() : payload.size());
+            record.writeInt((int) crc.getValue());
+            payload.writeTo(record);
+            record.flush();
+            out.getFD().sync();
+        }
+        last.put(id, new Draft(title, content, timestamp));
+        sinceKeyframe.put(id, delta ? count + 1 : 0);
+        return file.length();
+    }
+
+    // Writes the changed middle of content unless it is most of the note; false if it wrote nothing.
+    private static boolean writeDelta(DataOutputStream out, String previous, String content) throws IOException {
+        int limit = Math.min(previous.length(), content.length());
+        int prefix = 0;
+        while (prefix < limit && previous.charAt(prefix) == content.charAt(prefix)) prefix++;
+        int suffix = 0;
+        while (suffix < limit - prefix
+                && previous.charAt(previous.length() - 1 - suffix) == content.charAt(content.length() - 1 - suffix)) {
+            suffix++;
+        }
+        // Never split a surrogate pair, or the inserted text would not survive UTF-8.
+        if (prefix > 0 && Character.isHighSurrogate(content.charAt(prefix - 1))) prefix--;
+        if (suffix > 0 && Character.isLowSurrogate(content.charAt(content.length() - suffix))) suffix--;
+
+        String inserted = content.substring(prefix, content.length() - suffix);
+        if (inserted.length() * 2 >= content.length()) return false;
+        out.writeInt(prefix);
+        out.writeInt(suffix);
+        writeString(out, inserted);
+        return true;
+    }
+
+    /** The newest intact draft for the note, or null if it has none. */
+    public Draft recover(String id) {
+        File file = file(id);
+        if (!file.exists()) return null;
+
+        // Deltas are only applied once the newest whole draft is known.
+        Draft keyframe = null;
+        List<Record> deltas = new ArrayList<>();
+        try (InputStream in = new FileInputStream(file)) {
+            DataInputStream data = new DataInputStream(in);
+            while (true) {
+                Record record = readRecord(data);
+                if (record == null) break;
+                if (record.delta) {
+                    if (keyframe == null) break;
+                    deltas.add(record);
+                } else {
+                    keyframe = new Draft(record.title, record.text, record.timestamp);
+                    deltas.clear();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (keyframe == null) return null;
+
+        Draft latest = keyframe;
+        for (Record delta : deltas) {
+            String content = latest.content;
+            if (delta.prefix < 0 || delta.suffix < 0 || delta.prefix + delta.suffix > content.length()) break;
+            latest = new Draft(delta.title, content.substring(0, delta.prefix) + delta.text
+                    + content.substring(content.length() - delta.suffix), delta.timestamp);
+        }
+        return latest;
+    }
+
+    public boolean has(String id) {
+        return file(id).exists();
+    }
+
+    /** Ids of every note with a journal, e.g. left behind by a crash. */
+    public List<String> ids() {
+        List<String> ids = new ArrayList<>();
+        String[] names = dir.list((d, name) -> name.endsWith(SUFFIX));
+        if (names == null) return ids;
+
+        for (String name : names) ids.add(name.substring(0, name.length() - SUFFIX.length()));
+        return ids;
+    }
+
+    public synchronized void discard(String id) {
+        last.remove(id);
+        sinceKeyframe.remove(id);
+        file(id).delete();
+    }
+
+    private File file(String id) {
+        return new File(dir, id + SUFFIX);
+    }
+
+    private static final class Record {
+        final boolean delta;
+        final long timestamp;
+        final String title;
+        final int prefix;
+        final int suffix;
+        // The whole content, or for a delta the text between prefix and suffix.
+        final String text;
+
+        Record(boolean delta, long timestamp, String title, int prefix, int suffix, String text) {
+            this.delta = delta;
+            this.timestamp = timestamp;
+            this.title = title;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.text = text;
+        }
+    }
+
+    // Null at the end of the journal, or at a record that was cut short or corrupted.
+    private static Record readRecord(DataInputStream data) throws IOException {
+        byte[] payload;
+        int expectedCrc;
+        boolean delta;
+        try {
+            int length = data.readInt();
+            delta = length < 0;
+            if (delta) length = ~length;
+            expectedCrc = data.readInt();
+            // A torn length can be anything; never trust it past the end of the file.
+            if (length < 0 || length > data.available()) return null;
+            payload = new byte[length];
+            data.readFully(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != expectedCrc) return null;
+
+        DataInputStream fields = new DataInputStream(new ByteArrayInputStream(payload));
+        long timestamp = fields.readLong();
+        String title = readString(fields);
+        if (!delta) return new Record(false, timestamp, title, 0, 0, readString(fields));
+        int prefix = fields.readInt();
+        int suffix = fields.readInt();
+        return new Record(true, timestamp, title, prefix, suffix, readString(fields));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.fortnote;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Undo/redo for the note editor, stored as diffs rather than snapshots. Each
+ * edit keeps only the replaced and inserted text plus the formatting spans that
+ * touched the changed range before and after, so undoing restores bold, italic
+ * and underline exactly.
+ *
+ * Typing forward, backspacing, and the keyboard rewriting the word it just
+ * inserted, within {@code mergeWindowMillis} of the last edit, extend that edit
+ * instead of adding one. The history keeps at most
+ * {@code maxEdits} edits and drops the oldest once their estimated size passes
+ * {@code maxChars}; the newest edit is always kept.
+ */
+class EditHistory {
+
+    /** A formatting span; {@code style} is an opaque code chosen by the editor. */
+    static final class Span {
+        final int style;
+        final int start;
+        final int end;
+
+        Span(int style, int start, int end) {
+            this.style = style;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean touches(int from, int to) {
+            return start <= to && end >= from;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Span)) return false;
+            Span other = (Span) o;
+            return style == other.style && start == other.start && end == other.end;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(style, start, end);
+        }
+
+        @Override
+        public String toString() {
+            return style + "[" + start + "," + end + ")";
+        }
+    }
+
+    /**
+     * The document being edited. Ranges are inclusive at both ends for spans:
+     * a span ending exactly where a range starts still touches it.
+     */
+    interface Target {
+        void replace(int start, int end, String text);
+        List<Span> spans(int start, int end);
+        void removeSpans(int start, int end);
+        void removeSpan(Span span);
+        void addSpan(Span span);
+    }
+
+    private static final class Edit {
+        int offset;
+        String removed;
+        String inserted;
+        // Spans touching [offset, offset + removed] before, and [offset, offset + inserted] after.
+        List<Span> before;
+        List<Span> after;
+        long time;
+        // Closed edits are never extended, e.g. once they have been undone or redone.
+        boolean closed = false;
+        // Formatting-only edits change spans over [offset, offset + styleLength) and no text.
+        int styleLength = -1;
+
+        Edit(int offset, String removed, String inserted, List<Span> before, List<Span> after, long time) {
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+            this.before = before;
+            this.after = after;
+            this.time = time;
+        }
+
+        boolean isStyle() {
+            return styleLength >= 0;
+        }
+
+        int cost() {
+            return 16 + removed.length() + inserted.length() + 4 * (before.size() + after.size());
+        }
+    }
+
+    private final int maxEdits;
+    private final int maxChars;
+    private final long mergeWindowMillis;
+    private final Deque<Edit> undo = new ArrayDeque<>();
+    private final Deque<Edit> redo = new ArrayDeque<>();
+    private int undoCost = 0;
+    private int redoCost = 0;
+
+    EditHistory(int maxEdits, int maxChars, long mergeWindowMillis) {
+        this.maxEdits = maxEdits;
+        this.maxChars = maxChars;
+        this.mergeWindowMillis = mergeWindowMillis;
+    }
+
+    /**
+     * Records a text change that has just been made to {@code target}: at
+     * {@code offset}, {@code removed} was replaced by {@code inserted}.
+     * {@code before} are the spans that touched the removed range beforehand.
+     */
+    void recordText(Target target, int offset, String removed, String inserted, List<Span> before, long now) {
+        if (removed.isEmpty() && inserted.isEmpty()) return;
+        clearRedo();
+
+        Edit last = undo.peekLast();
+        if (last != null && !last.closed && !last.isStyle() && now - last.time <= mergeWindowMillis) {
+            if (removed.isEmpty() && last.removed.isEmpty()
+                    && offset == last.offset + last.inserted.length()) {
+                // Typing on from the end of the last insertion.
+                undoCost -= last.cost();
+                last.inserted += inserted;
+                last.after = target.spans(last.offset, last.offset + last.inserted.length());
+                last.time = now;
+                undoCost += last.cost();
+                trim();
+                return;
+            }
+            if (offset == last.offset && removed.equals(last.inserted)) {
+                // The keyboard rewrote the word it is composing, or autocorrected it.
+                undoCost -= last.cost();
+                last.inserted = inserted;
+                last.after = target.spans(offset, offset + inserted.length());
+                last.time = now;
+                undoCost += last.cost();
+                trim();
+                return;
+            }
+            if (inserted.isEmpty() && last.inserted.isEmpty()
+                    && offset + removed.length() == last.offset) {
+                // Backspacing on from the start of the last deletion. Spans reaching
+                // the old offset were already captured, unshrunk, by the last edit.
+                undoCost -= last.cost();
+                List<Span> merged = new ArrayList<>(last.before);
+                for (Span span : before) {
+                    if (span.end < last.offset) merged.add(span);
+                }
+                last.offset = offset;
+                last.removed = removed + last.removed;
+                last.before = merged;
+                last.after = target.spans(offset, offset);
+                last.time = now;
+                undoCost += last.cost();
+                trim();
+                return;
+            }
+        }
+
+        push(new Edit(offset, removed, inserted, before,
+                target.spans(offset, offset + inserted.length()), now));
+    }
+
+    /**
+     * Records a formatting change over [start, end) that left the text alone;
+     * {@code before} and {@code after} are the spans touching the range.
+     */
+    void recordStyle(int start, int end, List<Span> before, List<Span> after, long now) {
+        if (before.equals(after)) return;
+        clearRedo();
+        Edit edit = new Edit(start, "", "", before, after, now);
+        edit.styleLength = end - start;
+        push(edit);
+    }
+
+    boolean canUndo() {
+        return !undo.isEmpty();
+    }
+
+    boolean canRedo() {
+        return !redo.isEmpty();
+    }
+
+    /** Reverts the newest edit; returns where the cursor should go, or -1 if there was none. */
+    int undo(Target target) {
+        Edit edit = undo.pollLast();
+        if (edit == null) return -1;
+        undoCost -= edit.cost();
+
+        if (edit.isStyle()) {
+            restyle(target, edit.offset, edit.offset + edit.styleLength, edit.before);
+        } else {
+            target.replace(edit.offset, edit.offset + edit.inserted.length(), edit.removed);
+            restyle(target, edit.offset, edit.offset + edit.removed.length(), edit.before);
+        }
+        edit.closed = true;
+        redo.addLast(edit);
+        redoCost += edit.cost();
+        Edit previous = undo.peekLast();
+        if (previous != null) previous.closed = true;
+        return edit.offset + Math.max(edit.styleLength, edit.removed.length());
+    }
+
+    /** Re-applies the newest undone edit; returns where the cursor should go, or -1 if there was none. */
+    int redo(Target target) {
+        Edit edit = redo.pollLast();
+        if (edit == null) return -1;
+        redoCost -= edit.cost();
+
+        if (edit.isStyle()) {
+            restyle(target, edit.offset, edit.offset + edit.styleLength, edit.after);
+        } else {
+            target.replace(edit.offset, edit.offset + edit.removed.length(), edit.inserted);
+            restyle(target, edit.offset, edit.offset + edit.inserted.length(), edit.after);
+        }
+        edit.closed = true;
+        undo.addLast(edit);
+        undoCost += edit.cost();
+        trim();
+        return edit.offset + Math.max(edit.styleLength, edit.inserted.length());
+    }
+
+    void clear() {
+        undo.clear();
+        redo.clear();
+        undoCost = redoCost = 0;
+    }
+
+    /** Estimated size of everything held, in chars. */
+    int cost() {
+        return undoCost + redoCost;
+    }
+
+    int size() {
+        return undo.size() + redo.size();
+    }
+
+    // Makes the spans touching [start, end] exactly the recorded ones.
+    private static void restyle(Target target, int start, int end, List<Span> spans) {
+        target.removeSpans(start, end);
+        for (Span span : spans) target.addSpan(span);
+    }
+
+    private void push(Edit edit) {
+        undo.addLast(edit);
+        undoCost += edit.cost();
+        trim();
+    }
+
+    private void trim() {
+        while (undo.size() > 1 && (undo.size() > maxEdits || undoCost > maxChars)) {
+            undoCost -= undo.pollFirst().cost();
+        }
+    }
+
+    private void clearRedo() {
+        redo.clear();
+        redoCost = 0;
+    }
+}
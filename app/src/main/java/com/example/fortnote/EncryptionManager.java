@@ -1,72 +1,599 @@
- package com.example.fortnote;
+package com.example.fortnote;
 
 import android.util.Base64;
+import android.util.Base64InputStream;
+import android.util.Base64OutputStream;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
+import javax.crypto.Mac;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * AES-GCM note encryption with PBKDF2 password keys.
+ *
+ * Derived keys are kept in a session {@link KeyCache} for a few minutes, so
+ * locking or unlocking more notes with the same password skips the KDF. Three
+ * ciphertext layouts exist:
+ * <ul>
+ *   <li>legacy: {@code salt | iv | ciphertext}, content encrypted directly
+ *       under the password key;</li>
+ *   <li>wrapped: {@code "FNK" 1 | salt | wrapIv | wrapped data key | iv |
+ *       ciphertext}. The password key is a session master key, and each note has
+ *       its own random data key wrapped under it;</li>
+ *   <li>chunked: {@code "FNS" 3 | chunk size | kdf | iterations | codec | salt |
+ *       wrapIv | wrapped data key | nonce prefix | segments}. Keys as in the
+ *       wrapped layout, but the content is sealed in independently authenticated
+ *       chunks by {@link ChunkedCipher}, so it can be streamed to and from a file
+ *       without being held whole. Version 1 had no kdf and iterations fields,
+ *       and version 2 no codec.</li>
+ * </ul>
+ * All of them decrypt; new notes use the chunked layout unless key wrapping is
+ * turned off, in which case they use the legacy one.
+ *
+ * The codec says whether the plaintext was deflated before it was sealed.
+ * Notes of at least {@link NoteCodec#COMPRESS_THRESHOLD} characters are, unless
+ * compression is turned off with {@link #setCompressNotes}; note HTML usually
+ * shrinks to a quarter. The ciphertext then no longer gives away the exact
+ * length of the note, only that of its compressed form.
+ *
+ * Only the chunked layout records its KDF cost; the others, and chunked
+ * version 1, always used {@link #LEGACY_ITERATIONS}. New notes use the cost set
+ * with {@link #setIterations}, which {@link #calibrateIterations} can pick for
+ * the device, and changing it never affects notes that already exist.
+ *
+ * With a {@link KeySource} set, every password key that has opened or sealed a
+ * note is also kept wrapped on disk, so later unlocks unwrap it instead of
+ * running the KDF. The KDF still runs the first time, or when the source can
+ * no longer unwrap the key.
+ */
 public class EncryptionManager {
 
+    /**
+     * Seals password keys between sessions, e.g. with a key in the Android
+     * Keystore. Only {@code unwrap} on the same source needs to reverse {@code wrap}.
+     */
+    public interface KeySource {
+        byte[] wrap(byte[] key) throws GeneralSecurityException;
+
+        byte[] unwrap(byte[] wrapped) throws GeneralSecurityException;
+    }
+
     private static final int SALT_LENGTH = 16; // 16 bytes
     private static final int IV_LENGTH = 12;   // recommended for GCM
     private static final int KEY_LENGTH = 256; // AES-256
-    private static final int ITERATIONS = 65536;
+    private static final int TAG_LENGTH = 128;
+    static final int LEGACY_ITERATIONS = 65536;
+    static final int MIN_ITERATIONS = 10_000;
+    // A header can ask for any cost; refuse ones that would stall the device.
+    static final int MAX_ITERATIONS = 5_000_000;
+    private static final byte KDF_PBKDF2_SHA256 = 1;
+
+    private static final byte[] WRAPPED_MAGIC = {'F', 'N', 'K', 1};
+    private static final int WRAPPED_KEY_LENGTH = KEY_LENGTH / 8 + TAG_LENGTH / 8;
+    private static final int WRAPPED_HEADER_LENGTH =
+            WRAPPED_MAGIC.length + SALT_LENGTH + IV_LENGTH + WRAPPED_KEY_LENGTH + IV_LENGTH;
+
+    private static final byte[] STREAM_MAGIC_V1 = {'F', 'N', 'S', 1};
+    private static final byte[] STREAM_MAGIC_V2 = {'F', 'N', 'S', 2};
+    private static final byte[] STREAM_MAGIC = {'F', 'N', 'S', 3};
+    private static final int STREAM_HEADER_LENGTH_V1 = STREAM_MAGIC.length + 4 + SALT_LENGTH + IV_LENGTH
+            + WRAPPED_KEY_LENGTH + ChunkedCipher.NONCE_PREFIX_LENGTH;
+    private static final int STREAM_HEADER_LENGTH_V2 = STREAM_HEADER_LENGTH_V1 + 1 + 4;
+    private static final int STREAM_HEADER_LENGTH = STREAM_HEADER_LENGTH_V2 + 1;
+    private static final byte CODEC_NONE = 0;
+    private static final byte CODEC_DEFLATE = 1;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    // Base64 of the first bytes of each STREAM_MAGIC; lets a note be recognised without decoding it.
+    private static final String STREAM_PREFIX_V1 = "Rk5TAQ";
+    private static final String STREAM_PREFIX_V2 = "Rk5TAg";
+    private static final String STREAM_PREFIX = "Rk5TAw";
+    // Base64 of magic, chunk size, kdf, iterations and codec: 14 bytes, padded to 15.
+    private static final int STREAM_PARAMS_BASE64_LENGTH = 20;
+
+    private static final long SESSION_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_CACHED_KEYS = 32;
 
-    private static SecretKey getKeyFromPassword(String password, byte[] salt) throws Exception {
-        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, KEY_LENGTH);
-        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        byte[] keyBytes = factory.generateSecret(spec).getEncoded();
-        return new SecretKeySpec(keyBytes, "AES");
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Fingerprints are HMACs under a key that never leaves this process, so they
+    // reveal nothing about the password once the process is gone.
+    private static final byte[] FINGERPRINT_KEY = randomBytes(32);
+    private static final KeyCache KEY_CACHE =
+            new KeyCache(SESSION_TIMEOUT_MS, MAX_CACHED_KEYS, () -> System.nanoTime() / 1_000_000);
+    private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<>();
+
+    private static ScheduledExecutorService sweeper;
+    private static volatile boolean wrapNoteKeys = true;
+    private static volatile boolean compressNotes = true;
+    private static volatile int iterations = LEGACY_ITERATIONS;
+    private static volatile KeySource keySource;
+    private static volatile WrappedKeys wrappedKeys;
+    // Every KDF run, which is what the key cache and the key source exist to avoid.
+    static final AtomicLong KDF_RUNS = new AtomicLong();
+
+    /** Chooses the layout for newly encrypted notes; existing notes decrypt either way. */
+    public static void setWrapNoteKeys(boolean enabled) {
+        wrapNoteKeys = enabled;
     }
 
-    public static String encrypt(String plainText, String password) throws Exception {
-        byte[] salt = new byte[SALT_LENGTH];
-        new SecureRandom().nextBytes(salt);
+    /** Whether long notes are deflated before they are sealed; existing notes decrypt either way. */
+    public static void setCompressNotes(boolean enabled) {
+        compressNotes = enabled;
+    }
 
-        SecretKey key = getKeyFromPassword(password, salt);
+    /** Sets the PBKDF2 cost for newly encrypted notes, within [MIN_ITERATIONS, MAX_ITERATIONS]. */
+    public static void setIterations(int count) {
+        iterations = Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, count));
+    }
 
-        byte[] iv = new byte[IV_LENGTH];
-        new SecureRandom().nextBytes(iv);
+    public static int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * The PBKDF2 cost that takes about {@code targetMillis} to derive one key on
+     * this device, rounded down to a thousand. Takes a little over half a
+     * second itself, so run it off the main thread.
+     */
+    public static int calibrateIterations(long targetMillis) throws GeneralSecurityException {
+        int probe = 20_000;
+        byte[] salt = randomBytes(SALT_LENGTH);
+        derive("calibration", salt, probe);
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            derive("calibration", salt, probe);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        long scaled = probe * TimeUnit.MILLISECONDS.toNanos(targetMillis) / Math.max(1, best);
+        int count = (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, scaled));
+        return count / 1000 * 1000;
+    }
+
+    /**
+     * Whether the note was encrypted in the current layout at the current KDF
+     * cost. Reads only the header, so no key is derived.
+     */
+    public static boolean isCurrent(String cipherText) {
+        if (!cipherText.startsWith(STREAM_PREFIX) || cipherText.length() < STREAM_PARAMS_BASE64_LENGTH) return false;
+        try {
+            ByteBuffer params = ByteBuffer.wrap(
+                    Base64.decode(cipherText.substring(0, STREAM_PARAMS_BASE64_LENGTH), Base64.NO_WRAP));
+            params.position(STREAM_MAGIC.length + 4);
+            return params.get() == KDF_PBKDF2_SHA256 && params.getInt() == iterations;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Keeps password keys wrapped by {@code source} in {@code dir} from now on;
+     * a null source stops using them but leaves the directory alone.
+     */
+    public static synchronized void setKeySource(KeySource source, File dir) {
+        keySource = source;
+        wrappedKeys = source == null ? null : new WrappedKeys(dir);
+    }
 
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+    /** Deletes every wrapped key, so the next unlock of each note runs the KDF again. */
+    public static synchronized void forgetWrappedKeys(File dir) {
+        if (wrappedKeys != null) {
+            wrappedKeys.clear();
+        } else {
+            new WrappedKeys(dir).clear();
+        }
+    }
+
+    /** Forgets and zeroes every cached key, e.g. when the system is low on memory. */
+    public static void clearKeyCache() {
+        KEY_CACHE.clear();
+    }
+
+    /** Drops cached keys whose session has timed out. */
+    public static void trimKeyCache() {
+        KEY_CACHE.evictExpired();
+    }
+
+    /**
+     * Derives this session's key for the password up front, so a batch of
+     * encryptions that follows shares one KDF run instead of racing to make many.
+     */
+    public static void prepareSession(String password) throws GeneralSecurityException {
+        int cost = iterations;
+        Arrays.fill(getKeyFromPassword(password, saltFor(password, cost), cost), (byte) 0);
+    }
+
+    private static byte[] getKeyFromPassword(String password, byte[] salt, int cost) throws GeneralSecurityException {
+        byte[] fingerprint = fingerprint(password);
+        byte[] cached = KEY_CACHE.get(fingerprint, salt, cost);
+        if (cached != null) return cached;
+
+        byte[] keyBytes = unwrapKey(password, salt, cost);
+        if (keyBytes == null) keyBytes = derive(password, salt, cost);
+        KEY_CACHE.put(fingerprint, salt, cost, keyBytes);
+        startSweeper();
+        return keyBytes;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int cost) throws GeneralSecurityException {
+        KDF_RUNS.incrementAndGet();
+        long start = Perf.begin(Perf.KDF);
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, cost, KEY_LENGTH);
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            return factory.generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+            Perf.end(Perf.KDF, start);
+        }
+    }
+
+    // The wrapped key for this salt and cost, if the source still opens it and
+    // the password matches; otherwise null, and the KDF runs as usual.
+    private static byte[] unwrapKey(String password, byte[] salt, int cost) {
+        KeySource source = keySource;
+        WrappedKeys keys = wrappedKeys;
+        if (source == null || keys == null) return null;
+        WrappedKeys.Entry entry = keys.get(salt, cost);
+        if (entry == null) return null;
+
+        byte[] key;
+        try {
+            key = source.unwrap(entry.wrappedKey);
+        } catch (GeneralSecurityException e) {
+            // The source lost its own key, so this copy can never be opened again.
+            keys.remove(salt, cost);
+            return null;
+        }
+        if (MessageDigest.isEqual(verifier(key, password), entry.verifier)) return key;
+        Arrays.fill(key, (byte) 0);
+        return null;
+    }
 
-        byte[] encryptedBytes = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
+    // Called once a key has sealed or opened something, so it is known to be
+    // the password's; wrapping may be slow, but happens once per salt and cost.
+    private static void rememberKey(String password, byte[] salt, int cost, byte[] key) {
+        KeySource source = keySource;
+        WrappedKeys keys = wrappedKeys;
+        if (source == null || keys == null) return;
 
-        byte[] combined = new byte[salt.length + iv.length + encryptedBytes.length];
-        System.arraycopy(salt, 0, combined, 0, salt.length);
-        System.arraycopy(iv, 0, combined, salt.length, iv.length);
-        System.arraycopy(encryptedBytes, 0, combined, salt.length + iv.length, encryptedBytes.length);
+        try {
+            byte[] verifier = verifier(key, password);
+            WrappedKeys.Entry entry = keys.get(salt, cost);
+            if (entry != null && MessageDigest.isEqual(verifier, entry.verifier)) return;
+            keys.put(salt, cost, verifier, source.wrap(key));
+        } catch (GeneralSecurityException | IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        return Base64.encodeToString(combined, Base64.NO_WRAP);
+    private static byte[] verifier(byte[] key, String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Reuse the salt of a key this session already derived for the password, so
+    // re-locking a note that was just unlocked needs no KDF at all.
+    private static byte[] saltFor(String password, int cost) throws GeneralSecurityException {
+        byte[] salt = KEY_CACHE.findSalt(fingerprint(password), cost);
+        return salt != null ? salt : randomBytes(SALT_LENGTH);
+    }
+
+    public static String encrypt(String plainText, String password) throws Exception {
+        long start = Perf.begin(Perf.ENCRYPT);
+        try {
+            return encryptString(plainText, password);
+        } finally {
+            Perf.end(Perf.ENCRYPT, start);
+        }
     }
 
     public static String decrypt(String cipherText, String password) throws Exception {
+        long start = Perf.begin(Perf.DECRYPT);
+        try {
+            return decryptString(cipherText, password);
+        } finally {
+            Perf.end(Perf.DECRYPT, start);
+        }
+    }
+
+    private static String encryptString(String plainText, String password) throws Exception {
+        if (!wrapNoteKeys) {
+            byte[] combined = encryptLegacy(plainText.getBytes(StandardCharsets.UTF_8), password);
+            return Base64.encodeToString(combined, Base64.NO_WRAP);
+        }
+
+        // Encode, deflate, encrypt and Base64 one chunk at a time straight into the output.
+        // Counted in chars rather than bytes, which never makes a note look longer than it is.
+        byte codec = compressNotes && plainText.length() >= NoteCodec.COMPRESS_THRESHOLD ? CODEC_DEFLATE : CODEC_NONE;
+        long expected = codec == CODEC_DEFLATE ? plainText.length() / 4 : plainText.length();
+        long sealed = STREAM_HEADER_LENGTH + ChunkedCipher.ciphertextLength(expected, CHUNK_SIZE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, (sealed + 2) / 3 * 4));
+        try (Writer writer = new OutputStreamWriter(
+                encryptingStream(new Base64OutputStream(out, Base64.NO_WRAP), password, codec), StandardCharsets.UTF_8)) {
+            writer.write(plainText);
+        }
+        return out.toString(StandardCharsets.US_ASCII.name());
+    }
+
+    private static String decryptString(String cipherText, String password) throws Exception {
+        if (cipherText.startsWith(STREAM_PREFIX) || cipherText.startsWith(STREAM_PREFIX_V2)
+                || cipherText.startsWith(STREAM_PREFIX_V1)) {
+            InputStream in = new Base64InputStream(
+                    new ByteArrayInputStream(cipherText.getBytes(StandardCharsets.US_ASCII)), Base64.NO_WRAP);
+            try {
+                return readString(decryptingStream(in, password), cipherText.length() * 3 / 4);
+            } catch (NotThisLayoutException e) {
+                // An older blob whose random salt happens to start with the magic. Anything
+                // that fails past the header is a wrong password or damage, not this.
+            }
+        }
+
         byte[] combined = Base64.decode(cipherText, Base64.NO_WRAP);
 
+        // The wrapped header has nothing to check past its magic, so a match is taken as
+        // final: retrying as legacy would only run the KDF a second time on a wrong password.
+        if (isWrapped(combined)) return new String(decryptWrapped(combined, password), StandardCharsets.UTF_8);
+        return new String(decryptLegacy(combined, password), StandardCharsets.UTF_8);
+    }
+
+    /** Encrypts {@code in} into {@code out} in the chunked layout, closing both. */
+    public static void encrypt(InputStream in, OutputStream out, String password) throws Exception {
+        try (InputStream source = in; OutputStream sealed = encryptingStream(out, password)) {
+            copy(source, sealed);
+        }
+    }
+
+    /** Decrypts chunked-layout {@code in} into {@code out}, closing both. */
+    public static void decrypt(InputStream in, OutputStream out, String password) throws Exception {
+        try (InputStream plain = decryptingStream(in, password); OutputStream sink = out) {
+            copy(plain, sink);
+        }
+    }
+
+    /**
+     * Writes the chunked header to {@code out} and returns a stream that encrypts
+     * into it. Closing the returned stream seals the last chunk and closes {@code out}.
+     * The stream is not compressed; callers that want that deflate it themselves.
+     */
+    public static OutputStream encryptingStream(OutputStream out, String password)
+            throws GeneralSecurityException, IOException {
+        return encryptingStream(out, password, CODEC_NONE);
+    }
+
+    private static OutputStream encryptingStream(OutputStream out, String password, byte codec)
+            throws GeneralSecurityException, IOException {
+        int cost = iterations;
+        byte[] salt = saltFor(password, cost);
+        byte[] wrapIv = randomBytes(IV_LENGTH);
+        byte[] noncePrefix = randomBytes(ChunkedCipher.NONCE_PREFIX_LENGTH);
+        byte[] masterKey = getKeyFromPassword(password, salt, cost);
+        byte[] dataKey = randomBytes(KEY_LENGTH / 8);
+
+        try {
+            byte[] wrappedKey = cipher(Cipher.ENCRYPT_MODE, masterKey, wrapIv).doFinal(dataKey);
+            rememberKey(password, salt, cost, masterKey);
+            byte[] header = ByteBuffer.allocate(STREAM_HEADER_LENGTH)
+                    .put(STREAM_MAGIC).putInt(CHUNK_SIZE).put(KDF_PBKDF2_SHA256).putInt(cost).put(codec)
+                    .put(salt).put(wrapIv).put(wrappedKey).put(noncePrefix)
+                    .array();
+            out.write(header);
+            OutputStream sealed = ChunkedCipher.encrypt(out, dataKey, noncePrefix, header, CHUNK_SIZE);
+            return codec == CODEC_DEFLATE ? new DeflaterOutputStream(sealed) : sealed;
+        } finally {
+            Arrays.fill(masterKey, (byte) 0);
+            Arrays.fill(dataKey, (byte) 0);
+        }
+    }
+
+    /** Reads the chunked header from {@code in} and returns a stream of the plaintext. */
+    public static InputStream decryptingStream(InputStream in, String password)
+            throws GeneralSecurityException, IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[STREAM_MAGIC.length];
+        data.readFully(magic);
+        int version = Arrays.equals(magic, STREAM_MAGIC) ? 3
+                : Arrays.equals(magic, STREAM_MAGIC_V2) ? 2
+                : Arrays.equals(magic, STREAM_MAGIC_V1) ? 1 : 0;
+        if (version == 0) throw new NotThisLayoutException("Not a chunked note");
+
+        // The whole header, magic included, is authenticated with every chunk.
+        byte[] header = Arrays.copyOf(magic,
+                version == 1 ? STREAM_HEADER_LENGTH_V1 : version == 2 ? STREAM_HEADER_LENGTH_V2 : STREAM_HEADER_LENGTH);
+        data.readFully(header, magic.length, header.length - magic.length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        buffer.position(magic.length);
+        int chunkSize = buffer.getInt();
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) throw new NotThisLayoutException("Not a chunked note");
+
+        int cost = LEGACY_ITERATIONS;
+        if (version > 1) {
+            byte kdf = buffer.get();
+            cost = buffer.getInt();
+            if (kdf != KDF_PBKDF2_SHA256 || cost < 1 || cost > MAX_ITERATIONS) {
+                throw new NotThisLayoutException("Unsupported KDF " + kdf + "/" + cost);
+            }
+        }
+        byte codec = version > 2 ? buffer.get() : CODEC_NONE;
+        if (codec != CODEC_NONE && codec != CODEC_DEFLATE) throw new NotThisLayoutException("Unsupported codec " + codec);
+
         byte[] salt = new byte[SALT_LENGTH];
-        System.arraycopy(combined, 0, salt, 0, SALT_LENGTH);
+        byte[] wrapIv = new byte[IV_LENGTH];
+        byte[] wrappedKey = new byte[WRAPPED_KEY_LENGTH];
+        byte[] noncePrefix = new byte[ChunkedCipher.NONCE_PREFIX_LENGTH];
+        buffer.get(salt).get(wrapIv).get(wrappedKey).get(noncePrefix);
+
+        byte[] masterKey = getKeyFromPassword(password, salt, cost);
+        byte[] dataKey = null;
+        try {
+            dataKey = cipher(Cipher.DECRYPT_MODE, masterKey, wrapIv).doFinal(wrappedKey);
+            rememberKey(password, salt, cost, masterKey);
+            InputStream plain = ChunkedCipher.decrypt(in, dataKey, noncePrefix, header, chunkSize);
+            return codec == CODEC_DEFLATE ? new InflaterInputStream(plain) : plain;
+        } finally {
+            Arrays.fill(masterKey, (byte) 0);
+            if (dataKey != null) Arrays.fill(dataKey, (byte) 0);
+        }
+    }
 
+    /** A header that does not parse as the layout tried; thrown before any key is derived. */
+    static final class NotThisLayoutException extends GeneralSecurityException {
+        private static final long serialVersionUID = 1L;
+
+        NotThisLayoutException(String message) {
+            super(message);
+        }
+    }
+
+    // The legacy layout has nowhere to record a cost, so it always uses the old one.
+    private static byte[] encryptLegacy(byte[] plain, String password) throws GeneralSecurityException {
+        byte[] salt = saltFor(password, LEGACY_ITERATIONS);
+        byte[] iv = randomBytes(IV_LENGTH);
+        byte[] key = getKeyFromPassword(password, salt, LEGACY_ITERATIONS);
+
+        try {
+            Cipher cipher = cipher(Cipher.ENCRYPT_MODE, key, iv);
+            ByteBuffer out = ByteBuffer.allocate(SALT_LENGTH + IV_LENGTH + cipher.getOutputSize(plain.length));
+            out.put(salt).put(iv);
+            cipher.doFinal(ByteBuffer.wrap(plain), out);
+            rememberKey(password, salt, LEGACY_ITERATIONS, key);
+            return out.array();
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private static byte[] decryptLegacy(byte[] combined, String password) throws GeneralSecurityException {
+        byte[] salt = Arrays.copyOfRange(combined, 0, SALT_LENGTH);
+        byte[] iv = Arrays.copyOfRange(combined, SALT_LENGTH, SALT_LENGTH + IV_LENGTH);
+        byte[] key = getKeyFromPassword(password, salt, LEGACY_ITERATIONS);
+
+        try {
+            int offset = SALT_LENGTH + IV_LENGTH;
+            byte[] plain = cipher(Cipher.DECRYPT_MODE, key, iv).doFinal(combined, offset, combined.length - offset);
+            rememberKey(password, salt, LEGACY_ITERATIONS, key);
+            return plain;
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private static byte[] decryptWrapped(byte[] combined, String password) throws GeneralSecurityException {
+        ByteBuffer in = ByteBuffer.wrap(combined);
+        in.position(WRAPPED_MAGIC.length);
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] wrapIv = new byte[IV_LENGTH];
+        byte[] wrappedKey = new byte[WRAPPED_KEY_LENGTH];
         byte[] iv = new byte[IV_LENGTH];
-        System.arraycopy(combined, SALT_LENGTH, iv, 0, IV_LENGTH);
+        in.get(salt).get(wrapIv).get(wrappedKey).get(iv);
 
-        int encryptedSize = combined.length - SALT_LENGTH - IV_LENGTH;
-        byte[] encryptedBytes = new byte[encryptedSize];
-        System.arraycopy(combined, SALT_LENGTH + IV_LENGTH, encryptedBytes, 0, encryptedSize);
+        byte[] masterKey = getKeyFromPassword(password, salt, LEGACY_ITERATIONS);
+        byte[] dataKey = null;
+        try {
+            dataKey = cipher(Cipher.DECRYPT_MODE, masterKey, wrapIv).doFinal(wrappedKey);
+            rememberKey(password, salt, LEGACY_ITERATIONS, masterKey);
+            return cipher(Cipher.DECRYPT_MODE, dataKey, iv)
+                    .doFinal(combined, WRAPPED_HEADER_LENGTH, combined.length - WRAPPED_HEADER_LENGTH);
+        } finally {
+            Arrays.fill(masterKey, (byte) 0);
+            if (dataKey != null) Arrays.fill(dataKey, (byte) 0);
+        }
+    }
 
-        SecretKey key = getKeyFromPassword(password, salt);
+    private static boolean isWrapped(byte[] combined) {
+        if (combined.length < WRAPPED_HEADER_LENGTH + TAG_LENGTH / 8) return false;
+        for (int i = 0; i < WRAPPED_MAGIC.length; i++) {
+            if (combined[i] != WRAPPED_MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    // One Cipher per thread, re-initialised for every operation.
+    private static Cipher cipher(int mode, byte[] key, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = CIPHER.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            CIPHER.set(cipher);
+        }
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_LENGTH, iv));
+        return cipher;
+    }
+
+    private static String readString(InputStream in, int sizeHint) throws IOException {
+        StringBuilder builder = new StringBuilder(sizeHint);
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, n);
+            }
+        }
+        return builder.toString();
+    }
 
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    private static byte[] fingerprint(String password) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(FINGERPRINT_KEY, "HmacSHA256"));
+        return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
 
-        byte[] decryptedBytes = cipher.doFinal(encryptedBytes);
-        return new String(decryptedBytes, StandardCharsets.UTF_8);
+    // Expired keys are zeroed even if nothing touches the cache again.
+    private static synchronized void startSweeper() {
+        if (sweeper != null) return;
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "fortnote-key-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(KEY_CACHE::evictExpired, 1, 1, TimeUnit.MINUTES);
     }
 }
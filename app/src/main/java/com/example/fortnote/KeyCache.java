@@ -0,0 +1,106 @@
+package com.example.fortnote;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Short-lived cache of derived key material, keyed by (password fingerprint,
+ * salt, KDF cost). Entries expire {@code ttlMillis} after their last use and the least
+ * recently used entry is dropped past {@code maxEntries}. Evicted key bytes are
+ * zeroed, and callers always get their own copy, which they should zero too.
+ */
+class KeyCache {
+
+    private static final class Entry {
+        final byte[] fingerprint;
+        final byte[] salt;
+        final int cost;
+        final byte[] key;
+        long lastUsed;
+
+        Entry(byte[] fingerprint, byte[] salt, int cost, byte[] key, long lastUsed) {
+            this.fingerprint = fingerprint;
+            this.salt = salt;
+            this.cost = cost;
+            this.key = key;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    KeyCache(long ttlMillis, int maxEntries, LongSupplier clock) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    synchronized byte[] get(byte[] fingerprint, byte[] salt, int cost) {
+        evictExpired();
+        Entry entry = entries.get(mapKey(fingerprint, salt, cost));
+        if (entry == null) return null;
+
+        entry.lastUsed = clock.getAsLong();
+        return entry.key.clone();
+    }
+
+    synchronized void put(byte[] fingerprint, byte[] salt, int cost, byte[] key) {
+        evictExpired();
+        Entry old = entries.put(mapKey(fingerprint, salt, cost),
+                new Entry(fingerprint.clone(), salt.clone(), cost, key.clone(), clock.getAsLong()));
+        if (old != null) Arrays.fill(old.key, (byte) 0);
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            Arrays.fill(it.next().key, (byte) 0);
+            it.remove();
+        }
+    }
+
+    /**
+     * The salt most recently used with this password at this cost, so a new
+     * encryption can reuse its key.
+     */
+    synchronized byte[] findSalt(byte[] fingerprint, int cost) {
+        evictExpired();
+        Entry newest = null;
+        for (Entry entry : entries.values()) {
+            if (Arrays.equals(entry.fingerprint, fingerprint) && entry.cost == cost
+                    && (newest == null || entry.lastUsed >= newest.lastUsed)) {
+                newest = entry;
+            }
+        }
+        return newest == null ? null : newest.salt.clone();
+    }
+
+    synchronized void evictExpired() {
+        long now = clock.getAsLong();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (now - entry.lastUsed >= ttlMillis) {
+                Arrays.fill(entry.key, (byte) 0);
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (Entry entry : entries.values()) Arrays.fill(entry.key, (byte) 0);
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static String mapKey(byte[] fingerprint, byte[] salt, int cost) {
+        return Arrays.toString(fingerprint) + '/' + Arrays.toString(salt) + '/' + cost;
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.fortnote;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * {@link EncryptionManager.KeySource} backed by an AES key in the Android
+ * Keystore, which never leaves secure hardware where the device has it.
+ * Wrapped keys are {@code iv | ciphertext} under AES-GCM. If the Keystore key
+ * is lost, e.g. app data was restored onto another device, unwrapping fails and
+ * the password key is derived again.
+ */
+public class KeystoreKeySource implements EncryptionManager.KeySource {
+
+    private static final String PROVIDER = "AndroidKeyStore";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+
+    private final String alias;
+    private SecretKey key;
+
+    public KeystoreKeySource(String alias) {
+        this.alias = alias;
+    }
+
+    @Override
+    public byte[] wrap(byte[] plainKey) throws GeneralSecurityException {
+        // The Keystore picks the IV; it refuses caller-chosen ones for encryption.
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key(true));
+        byte[] iv = cipher.getIV();
+        byte[] sealed = cipher.doFinal(plainKey);
+        return ByteBuffer.allocate(iv.length + sealed.length).put(iv).put(sealed).array();
+    }
+
+    @Override
+    public byte[] unwrap(byte[] wrapped) throws GeneralSecurityException {
+        if (wrapped.length <= IV_LENGTH) throw new GeneralSecurityException("Wrapped key too short");
+        SecretKey secret = key(false);
+        if (secret == null) throw new GeneralSecurityException("No Keystore key " + alias);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, secret, new GCMParameterSpec(TAG_LENGTH, wrapped, 0, IV_LENGTH));
+        return cipher.doFinal(wrapped, IV_LENGTH, wrapped.length - IV_LENGTH);
+    }
+
+    /** Deletes the Keystore key, so nothing it wrapped can be unwrapped again. */
+    public synchronized void delete() throws GeneralSecurityException {
+        keyStore().deleteEntry(alias);
+        key = null;
+    }
+
+    private synchronized SecretKey key(boolean create) throws GeneralSecurityException {
+        if (key != null) return key;
+
+        KeyStore keyStore = keyStore();
+        if (keyStore.containsAlias(alias)) {
+            key = (SecretKey) keyStore.getKey(alias, null);
+        } else if (create) {
+            KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, PROVIDER);
+            generator.init(new KeyGenParameterSpec.Builder(alias,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .setKeySize(256)
+                    .build());
+            key = generator.generateKey();
+        }
+        return key;
+    }
+
+    private static KeyStore keyStore() throws GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(PROVIDER);
+        try {
+            keyStore.load(null);
+        } catch (IOException e) {
+            throw new GeneralSecurityException(e);
+        }
+        return keyStore;
+    }
+}
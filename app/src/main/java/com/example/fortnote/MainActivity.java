@@ -4,24 +4,40 @@ import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.content.Intent;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.InputType;
+import android.text.TextWatcher;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.PopupMenu;
+import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.activity.EdgeToEdge;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.view.ActionMode;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
+import androidx.lifecycle.Lifecycle;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 public class MainActivity extends AppCompatActivity implements NoteAdapter.OnNoteClickListener {
 
@@ -31,10 +47,27 @@ public class MainActivity extends AppCompatActivity implements NoteAdapter.OnNot
     private TextView tvEmptyState;
 
 
-    private static final int SORT_DATE_CREATED=0;
-    private static final int SORT_LAST_EDITED=1;
+    // Spinner positions, which are also the repository's ORDER_* values.
+    private static final int SORT_DATE_CREATED=NoteRepository.ORDER_CREATED;
+    private static final int SORT_LAST_EDITED=NoteRepository.ORDER_LAST_EDITED;
     private int currentSort=SORT_LAST_EDITED;
 
+    // Set by repository events while the list is in the background; the list is
+    // only rebuilt on resume when something actually changed.
+    private boolean notesChanged = false;
+    private final NoteRepository.Listener notesListener = new NoteRepository.Listener() {
+        @Override public void onNoteInserted(Note note) { onNotesChanged(); }
+        @Override public void onNoteUpdated(Note note) { onNotesChanged(); }
+        @Override public void onNoteRemoved(String id) { onNotesChanged(); }
+    };
+    private Future<List<NoteSummary>> loadTask;
+    private boolean reloadPosted = false;
+    private ActionMode selectionMode;
+
+    private static final long SEARCH_DELAY_MS = 150;
+    private String searchQuery = "";
+    private final Runnable searchRunnable = this::loadNotes;
+
     @SuppressLint("MissingInflatedId")
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -48,13 +81,14 @@ public class MainActivity extends AppCompatActivity implements NoteAdapter.OnNot
         });
 
         noteManager = new NoteManager(this);
+        noteManager.addListener(notesListener);
 
         recyclerView = findViewById(R.id.recyclerViewNotes);
         tvEmptyState = findViewById(R.id.tvEmptyState);
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
 
         Spinner spinnerSort = findViewById(R.id.spinnerSort);
-        String[] sortOptions={"Date Created","Last Edited"};
+        String[] sortOptions={"Date Created","Last Edited","Title"};
         ArrayAdapter<String> adapter= new ArrayAdapter<>(this, android.R.layout.simple_spinner_item,sortOptions);
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         spinnerSort.setAdapter(adapter);
@@ -68,40 +102,117 @@ public class MainActivity extends AppCompatActivity implements NoteAdapter.OnNot
             @Override
             public void onNothingSelected(AdapterView<?> parent){}
         });
+        EditText etSearch = findViewById(R.id.etSearch);
+        etSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                searchQuery = s.toString().trim();
+                // Wait for a pause in typing rather than searching on every key.
+                recyclerView.removeCallbacks(searchRunnable);
+                recyclerView.postDelayed(searchRunnable, SEARCH_DELAY_MS);
+            }
+        });
+
         FloatingActionButton fab = findViewById(R.id.fab);
         fab.setOnClickListener(v -> {
             Intent intent = new Intent(MainActivity.this, NoteEditorActivity.class);
             startActivity(intent);
         });
+        findViewById(R.id.btnSettings).setOnClickListener(this::showSettings);
 
         loadNotes();
     }
 
+    private void showSettings(View anchor) {
+        PopupMenu menu = new PopupMenu(this, anchor);
+        menu.inflate(R.menu.menu_main);
+        menu.getMenu().findItem(R.id.action_fast_unlock).setChecked(NoteManager.isKeystoreKeys(this));
+        menu.setOnMenuItemClickListener(item -> {
+            if (item.getItemId() != R.id.action_fast_unlock) return false;
+            if (item.isChecked()) {
+                NoteManager.setKeystoreKeys(this, false);
+                return true;
+            }
+            new AlertDialog.Builder(this)
+                    .setTitle("Fast unlock")
+                    .setMessage("Keys for notes you unlock are kept in the Android Keystore, so opening them "
+                            + "again skips the slow password check. Anyone who can run code as this app "
+                            + "could open those notes without the password.")
+                    .setPositiveButton("Turn on", (d, w) -> NoteManager.setKeystoreKeys(this, true))
+                    .setNegativeButton("Cancel", null)
+                    .show();
+            return true;
+        });
+        menu.show();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
-        loadNotes();
+        if (notesChanged) loadNotes();
+    }
+
+    @Override
+    protected void onDestroy() {
+        noteManager.removeListener(notesListener);
+        noteManager.cancelPending();
+        super.onDestroy();
+    }
+
+    // adb shell dumpsys activity com.example.fortnote/.MainActivity
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.println();
+        writer.print(Perf.dump());
+    }
+
+    // A bulk lock reports hundreds of updates at once; reload the list once for all of them.
+    private void onNotesChanged() {
+        notesChanged = true;
+        if (reloadPosted || !getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.RESUMED)) return;
+
+        reloadPosted = true;
+        recyclerView.post(() -> {
+            reloadPosted = false;
+            if (notesChanged) loadNotes();
+        });
     }
 
     private void loadNotes() {
-        List<Note> notes = noteManager.getAllNotes();
+        notesChanged = false;
+        if (loadTask != null) loadTask.cancel(true);
 
-        if (currentSort == SORT_DATE_CREATED) {
-            notes.sort((n1, n2) -> Long.compare(n2.getCreationTimestamp(), n1.getCreationTimestamp()));
-        } else if (currentSort == SORT_LAST_EDITED) {
-            notes.sort((n1, n2) -> Long.compare(n2.getTimestamp(), n1.getTimestamp()));
+        if (!searchQuery.isEmpty()) {
+            loadTask = noteManager.searchAsync(searchQuery, this::showNotes);
+            return;
         }
 
+        loadTask = noteManager.getNoteSummariesAsync(currentSort, this::showNotes);
+    }
+
+    private void showNotes(List<NoteSummary> notes) {
+        if (notes == null) return;
+
         if (notes.isEmpty()) {
             recyclerView.setVisibility(View.GONE);
             tvEmptyState.setVisibility(View.VISIBLE);
+            tvEmptyState.setText(searchQuery.isEmpty()
+                    ? "No notes yet.\nTap the button to create one!"
+                    : "No notes match \"" + searchQuery + "\"");
         } else {
             recyclerView.setVisibility(View.VISIBLE);
             tvEmptyState.setVisibility(View.GONE);
         }
 
         if (noteAdapter == null) {
-            noteAdapter = new NoteAdapter(notes, this);
+            noteAdapter = new NoteAdapter(notes, noteManager, this);
             recyclerView.setAdapter(noteAdapter);
         } else {
             noteAdapter.updateNotes(notes);
@@ -110,24 +221,149 @@ public class MainActivity extends AppCompatActivity implements NoteAdapter.OnNot
     }
 
     @Override
-    public void onNoteClick(Note note) {
+    public void onNoteClick(NoteSummary note) {
+        if (selectionMode != null) {
+            toggleSelection(note);
+            return;
+        }
+
+        // Only the id crosses to the editor, which loads that one note itself.
         Intent intent = new Intent(MainActivity.this, NoteEditorActivity.class);
         intent.putExtra("note_id", note.getId());
-        intent.putExtra("note_title", note.getTitle());
-        intent.putExtra("note_content", note.getContent());
         startActivity(intent);
     }
 
     @Override
-    public void onNoteLongClick(Note note) {
+    public void onNoteLongClick(NoteSummary note) {
+        if (selectionMode == null) selectionMode = startSupportActionMode(selectionCallback);
+        toggleSelection(note);
+    }
+
+    private void toggleSelection(NoteSummary note) {
+        noteAdapter.toggleSelection(note);
+        int count = noteAdapter.getSelectedIds().size();
+        if (count == 0) {
+            selectionMode.finish();
+        } else {
+            selectionMode.setTitle(count + " selected");
+        }
+    }
+
+    private final ActionMode.Callback selectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.menu_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            Set<String> ids = noteAdapter.getSelectedIds();
+            int itemId = item.getItemId();
+            if (itemId == R.id.action_lock) {
+                lockSelected(ids);
+            } else if (itemId == R.id.action_unlock) {
+                unlockSelected(ids);
+            } else if (itemId == R.id.action_delete) {
+                deleteSelected(ids);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            selectionMode = null;
+            noteAdapter.clearSelection();
+        }
+    };
+
+    private void lockSelected(Set<String> ids) {
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.setPadding(50, 50, 50, 50);
+
+        EditText p1Field = passwordField("Enter Password");
+        EditText p2Field = passwordField("Confirm Password");
+        layout.addView(p1Field);
+        layout.addView(p2Field);
+
         new AlertDialog.Builder(this)
-                .setTitle("Delete Note")
-                .setMessage("Are you sure you want to delete this note?")
+                .setTitle("Lock " + ids.size() + " notes")
+                .setView(layout)
+                .setPositiveButton("OK", (d, w) -> {
+                    String p1 = p1Field.getText().toString();
+                    if (p1.isEmpty() || !p1.equals(p2Field.getText().toString())) {
+                        Toast.makeText(this, "Passwords do not match", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    runBatch("Locking notes", ids, (progress, done) ->
+                            noteManager.encryptNotesAsync(ids, p1, progress, done), "locked");
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void unlockSelected(Set<String> ids) {
+        EditText passField = passwordField("Password");
+
+        new AlertDialog.Builder(this)
+                .setTitle("Unlock " + ids.size() + " notes")
+                .setView(passField)
+                .setPositiveButton("OK", (d, w) -> {
+                    String pass = passField.getText().toString();
+                    runBatch("Unlocking notes", ids, (progress, done) ->
+                            noteManager.decryptNotesAsync(ids, pass, progress, done), "unlocked");
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void deleteSelected(Set<String> ids) {
+        new AlertDialog.Builder(this)
+                .setTitle("Delete Notes")
+                .setMessage("Are you sure you want to delete " + ids.size() + " notes?")
                 .setPositiveButton("Delete", (dialog, which) -> {
-                    noteManager.deleteNote(note.getId());
-                    loadNotes();
+                    noteManager.deleteNotesAsync(ids, null);
+                    if (selectionMode != null) selectionMode.finish();
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
     }
+
+    private interface BatchStarter {
+        void start(NoteManager.ProgressListener progress, NoteManager.Callback<Integer> done);
+    }
+
+    private void runBatch(String title, Set<String> ids, BatchStarter starter, String verb) {
+        ProgressBar bar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+        bar.setMax(ids.size());
+        bar.setPadding(50, 50, 50, 50);
+
+        AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle(title)
+                .setView(bar)
+                .setCancelable(false)
+                .show();
+
+        starter.start((done, total) -> bar.setProgress(done), count -> {
+            dialog.dismiss();
+            if (selectionMode != null) selectionMode.finish();
+            int changed = count != null ? count : 0;
+            Toast.makeText(this, changed + " of " + ids.size() + " notes " + verb, Toast.LENGTH_SHORT).show();
+        });
+    }
+
+    private EditText passwordField(String hint) {
+        EditText field = new EditText(this);
+        field.setHint(hint);
+        field.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_PASSWORD);
+        return field;
+    }
 }
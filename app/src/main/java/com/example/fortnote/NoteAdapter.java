@@ -1,110 +1,233 @@
-package com.example.fortnote;
-
-import android.os.Build;
-import android.text.Html;
-import android.view.LayoutInflater;
-import android.view.View;
-import android.view.ViewGroup;
-import android.widget.TextView;
-
-import androidx.annotation.NonNull;
-import androidx.recyclerview.widget.RecyclerView;
-
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.List;
-import java.util.Locale;
-
-public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteViewHolder> {
-
-    private List<Note> notes;
-    private OnNoteClickListener listener;
-    private boolean sortByCreationDate=false;
-    public void setSortByCreationDate(boolean sortByCreationDate){
-        this.sortByCreationDate=sortByCreationDate;
-        notifyDataSetChanged();
-    }
-
-    public interface OnNoteClickListener {
-        void onNoteClick(Note note);
-        void onNoteLongClick(Note note);
-    }
-
-    public NoteAdapter(List<Note> notes, OnNoteClickListener listener) {
-        this.notes = notes;
-        this.listener = listener;
-    }
-
-    @NonNull
-    @Override
-    public NoteViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        View view = LayoutInflater.from(parent.getContext())
-                .inflate(R.layout.item_note, parent, false);
-        return new NoteViewHolder(view);
-    }
-
-    @Override
-    public void onBindViewHolder(@NonNull NoteViewHolder holder, int position) {
-        Note note = notes.get(position);
-
-        String title = note.getTitle().isEmpty() ? "Untitled" : note.getTitle();
-        holder.tvTitle.setText(title);
-
-   
-        if (note.isLocked()) {
-            int len = note.getPlaintextLength() > 0 ? note.getPlaintextLength() : 16;
-            holder.tvContent.setText(scrambleFromLengthPreserveSpaces(len));
-        }
-
-        
-        else {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                holder.tvContent.setText(Html.fromHtml(note.getContent(), Html.FROM_HTML_MODE_LEGACY));
-            } else {
-                holder.tvContent.setText(Html.fromHtml(note.getContent()));
-            }
-        }
-long timeStampToShow=sortByCreationDate ? note.getCreationTimestamp() : note.getTimestamp();
-        String prefix= sortByCreationDate? "Created: " : "Edited: ";
-        SimpleDateFormat sdf = new SimpleDateFormat("MMM dd, yyyy hh:mm a", Locale.getDefault());
-        holder.tvDate.setText(prefix+ sdf.format(new Date(timeStampToShow)));
-
-        holder.itemView.setOnClickListener(v -> listener.onNoteClick(note));
-        holder.itemView.setOnLongClickListener(v -> { listener.onNoteLongClick(note); return true; });
-    }
-
-    @Override
-    public int getItemCount() {
-        return notes.size();
-    }
-
-    public void updateNotes(List<Note> newNotes) {
-        this.notes = newNotes;
-        notifyDataSetChanged();
-    }
-
-    
-    private String scrambleFromLengthPreserveSpaces(int length) {
-        String symbols = "ÆØΔ¥$#@%&*?¶Ω≈≠±";
-        StringBuilder sb = new StringBuilder();
-
-      
-        for (int i = 0; i < length; i++) {
-            sb.append(symbols.charAt((int) (Math.random() * symbols.length())));
-        }
-
-        return sb.toString();
-    }
-
-    static class NoteViewHolder extends RecyclerView.ViewHolder {
-        TextView tvTitle, tvContent, tvDate;
-
-        NoteViewHolder(View itemView) {
-            super(itemView);
-            tvTitle = itemView.findViewById(R.id.tvNoteTitle);
-            tvContent = itemView.findViewById(R.id.tvNoteContent);
-            tvDate = itemView.findViewById(R.id.tvNoteDate);
-        }
-    }
-}
-
+package com.example.fortnote;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
+import androidx.recyclerview.widget.AsyncDifferConfig;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteViewHolder> {
+
+    // Payloads for rows whose note is unchanged but whose date label must switch,
+    // whose preview has just been loaded, or whose selection state flipped.
+    private static final Object PAYLOAD_DATE = new Object();
+    private static final Object PAYLOAD_PREVIEW = new Object();
+    private static final Object PAYLOAD_SELECTION = new Object();
+
+    // Summaries are immutable, so comparing the fields a row shows is enough to
+    // detect an edit.
+    private static final DiffUtil.ItemCallback<NoteSummary> DIFF_CALLBACK = new DiffUtil.ItemCallback<NoteSummary>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull NoteSummary oldNote, @NonNull NoteSummary newNote) {
+            return oldNote.getId().equals(newNote.getId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull NoteSummary oldNote, @NonNull NoteSummary newNote) {
+            return oldNote.getTimestamp() == newNote.getTimestamp()
+                    && oldNote.isLocked() == newNote.isLocked()
+                    && oldNote.getPlaintextLength() == newNote.getPlaintextLength()
+                    && oldNote.getTitle().equals(newNote.getTitle())
+                    && Objects.equals(oldNote.getPreview(), newNote.getPreview());
+        }
+    };
+
+    private final AsyncListDiffer<NoteSummary> differ;
+    private final NotePager pager;
+    // Dropped once a note leaves the list; ids are never reused, so a returning note gets a new one.
+    private final Map<String, Long> stableIds = new HashMap<>();
+    private long nextStableId = 0;
+    private final Set<String> selectedIds = new HashSet<>();
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("MMM dd, yyyy hh:mm a", Locale.getDefault());
+    private OnNoteClickListener listener;
+    private boolean sortByCreationDate=false;
+    public void setSortByCreationDate(boolean sortByCreationDate){
+        if (this.sortByCreationDate == sortByCreationDate) return;
+        this.sortByCreationDate=sortByCreationDate;
+        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_DATE);
+    }
+
+    public interface OnNoteClickListener {
+        void onNoteClick(NoteSummary note);
+        void onNoteLongClick(NoteSummary note);
+    }
+
+    public NoteAdapter(List<NoteSummary> notes, NoteManager noteManager, OnNoteClickListener listener) {
+        this.listener = listener;
+        this.pager = new NotePager(noteManager, (start, count) -> {
+            int end = Math.min(start + count, getItemCount());
+            if (start < end) notifyItemRangeChanged(start, end - start, PAYLOAD_PREVIEW);
+        });
+        this.differ = new AsyncListDiffer<>(new AdapterListUpdateCallback(this),
+                new AsyncDifferConfig.Builder<>(DIFF_CALLBACK).build());
+        setHasStableIds(true);
+        differ.submitList(notes, this::pruneStableIds);
+    }
+
+    @NonNull
+    @Override
+    public NoteViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_note, parent, false);
+        NoteViewHolder holder = new NoteViewHolder(view);
+
+        holder.itemView.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) listener.onNoteClick(getNote(position));
+        });
+        holder.itemView.setOnLongClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) listener.onNoteLongClick(getNote(position));
+            return true;
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull NoteViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (!payloads.isEmpty() && payloads.stream().allMatch(
+                p -> p == PAYLOAD_DATE || p == PAYLOAD_PREVIEW || p == PAYLOAD_SELECTION)) {
+            if (payloads.contains(PAYLOAD_DATE)) bindDate(holder, getNote(position));
+            if (payloads.contains(PAYLOAD_PREVIEW)) bindContent(holder, position);
+            if (payloads.contains(PAYLOAD_SELECTION)) bindSelection(holder, getNote(position));
+            return;
+        }
+        onBindViewHolder(holder, position);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull NoteViewHolder holder, int position) {
+        long start = Perf.begin(Perf.BIND_ROW);
+        NoteSummary note = getNote(position);
+
+        String title = note.getTitle().isEmpty() ? "Untitled" : note.getTitle();
+        holder.tvTitle.setText(title);
+
+        bindContent(holder, position);
+        bindDate(holder, note);
+        bindSelection(holder, note);
+        Perf.end(Perf.BIND_ROW, start);
+    }
+
+    private void bindSelection(NoteViewHolder holder, NoteSummary note) {
+        holder.container.setBackgroundResource(selectedIds.contains(note.getId())
+                ? R.color.fortnite_note : R.color.fortnite_background);
+    }
+
+    public Set<String> getSelectedIds() {
+        return new HashSet<>(selectedIds);
+    }
+
+    public void toggleSelection(NoteSummary note) {
+        if (!selectedIds.remove(note.getId())) selectedIds.add(note.getId());
+        int position = differ.getCurrentList().indexOf(note);
+        if (position >= 0) notifyItemChanged(position, PAYLOAD_SELECTION);
+    }
+
+    public void clearSelection() {
+        if (selectedIds.isEmpty()) return;
+        selectedIds.clear();
+        notifySelectionChanged();
+    }
+
+    private void notifySelectionChanged() {
+        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_SELECTION);
+    }
+
+    private void bindContent(NoteViewHolder holder, int position) {
+        NoteSummary note = getNote(position);
+   
+        if (note.isLocked()) {
+            int len = note.getPlaintextLength() > 0 ? note.getPlaintextLength() : 16;
+            holder.tvContent.setText(scrambleFromLengthPreserveSpaces(len));
+        }
+
+        // Unlocked rows show the stored plain-text preview; the content is never parsed here.
+        else {
+            String preview = pager.getPreview(differ.getCurrentList(), position);
+            holder.tvContent.setText(preview != null ? preview : "");
+        }
+    }
+
+    private void bindDate(NoteViewHolder holder, NoteSummary note) {
+        long timeStampToShow=sortByCreationDate ? note.getCreationTimestamp() : note.getTimestamp();
+        String prefix= sortByCreationDate? "Created: " : "Edited: ";
+        holder.tvDate.setText(prefix+ dateFormat.format(new Date(timeStampToShow)));
+    }
+
+    private NoteSummary getNote(int position) {
+        return differ.getCurrentList().get(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return differ.getCurrentList().size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String id = getNote(position).getId();
+        Long stableId = stableIds.get(id);
+        if (stableId == null) {
+            stableId = nextStableId++;
+            stableIds.put(id, stableId);
+        }
+        return stableId;
+    }
+
+    /** Diffs against the current list on a background thread and dispatches only the changed rows. */
+    public void updateNotes(List<NoteSummary> newNotes) {
+        differ.submitList(newNotes, this::pruneStableIds);
+    }
+
+    // Runs once the differ has committed a list, so no row still shows a dropped note.
+    private void pruneStableIds() {
+        List<NoteSummary> notes = differ.getCurrentList();
+        Set<String> ids = new HashSet<>(notes.size() * 2);
+        for (NoteSummary note : notes) ids.add(note.getId());
+        stableIds.keySet().retainAll(ids);
+    }
+
+    
+    private String scrambleFromLengthPreserveSpaces(int length) {
+        String symbols = "ÆØΔ¥$#@%&*?¶Ω≈≠±";
+        StringBuilder sb = new StringBuilder();
+
+      
+        for (int i = 0; i < length; i++) {
+            sb.append(symbols.charAt((int) (Math.random() * symbols.length())));
+        }
+
+        return sb.toString();
+    }
+
+    static class NoteViewHolder extends RecyclerView.ViewHolder {
+        TextView tvTitle, tvContent, tvDate;
+        View container;
+
+        NoteViewHolder(View itemView) {
+            super(itemView);
+            container = itemView.findViewById(R.id.noteContainer);
+            tvTitle = itemView.findViewById(R.id.tvNoteTitle);
+            tvContent = itemView.findViewById(R.id.tvNoteContent);
+            tvDate = itemView.findViewById(R.id.tvNoteDate);
+        }
+    }
+}
+
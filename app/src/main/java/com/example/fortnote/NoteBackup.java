@@ -0,0 +1,204 @@
+package com.example.fortnote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streaming backup archive of every note.
+ *
+ * An archive is {@code "FNB" 1 | flags}, followed by the entries, deflated.
+ * With a backup password, the deflated stream is also sealed in
+ * {@link EncryptionManager}'s chunked layout, so every 64 KB is authenticated
+ * as it is read. Each entry is a {@code 1} tag, a {@link NoteCodec} record and
+ * the note's body, both length-prefixed. The record's checksums cover the
+ * entry. A {@code 0} tag then gives the entry count and a SHA-256 of every
+ * entry, so a missing or reordered entry is caught too.
+ *
+ * Notes are read and written one at a time, so memory use does not grow with
+ * the store. Locked notes go in as the raw ciphertext they are stored as, and
+ * are never decrypted.
+ */
+public final class NoteBackup {
+
+    /** What a restore did with the notes in the archive. */
+    public static final class Result {
+        int inserted;
+        int updated;
+        // The note in the store was as new as the archived one, or newer.
+        int skipped;
+
+        public int getInserted() { return inserted; }
+        public int getUpdated() { return updated; }
+        public int getSkipped() { return skipped; }
+
+        @Override
+        public String toString() {
+            return inserted + " inserted, " + updated + " updated, " + skipped + " skipped";
+        }
+    }
+
+    private static final byte[] MAGIC = {'F', 'N', 'B', 1};
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int TAG_END = 0;
+    private static final int TAG_NOTE = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Records hold metadata only; bodies are whole notes. Larger lengths mean a damaged archive.
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    private static final int MAX_BODY_LENGTH = 256 * 1024 * 1024;
+
+    // Called with each entry as it is read, before the rest of the archive has been checked.
+    private interface EntryHandler {
+        void onEntry(Note note) throws IOException;
+    }
+
+    private NoteBackup() {
+    }
+
+    /**
+     * Writes every note in the repository to {@code out} and closes it. A null
+     * password writes an archive that is checksummed but not encrypted. Returns
+     * the number of notes written.
+     */
+    public static int write(NoteRepository repository, OutputStream out, String password)
+            throws IOException, GeneralSecurityException {
+        MessageDigest digest = sha256();
+        int count = 0;
+
+        try (OutputStream sink = open(out, password);
+             DataOutputStream data = new DataOutputStream(
+                     new BufferedOutputStream(new DeflaterOutputStream(sink), BUFFER_SIZE))) {
+            for (NoteSummary summary : repository.getSummaries()) {
+                Note note = repository.get(summary.getId());
+                if (note == null) continue;
+
+                // The archive is deflated as a whole, which does better across notes than one at a time.
+                NoteCodec.Body body = NoteCodec.encodeBody(note, false);
+                byte[] record = NoteCodec.encodeRecord(note, 0, body);
+
+                data.writeByte(TAG_NOTE);
+                data.writeInt(record.length);
+                data.write(record);
+                data.writeInt(body.bytes.length);
+                data.write(body.bytes);
+                digest.update(record);
+                digest.update(body.bytes);
+                count++;
+            }
+
+            data.writeByte(TAG_END);
+            data.writeInt(count);
+            data.write(digest.digest());
+        }
+        return count;
+    }
+
+    /**
+     * Merges the archive into the repository as it is read: a note that is not
+     * there is inserted, and one whose archived copy was edited later replaces
+     * it. Every note in the archive is applied before the next one is read. If the
+     * archive turns out to be damaged or cut short, the notes before the damage
+     * stay restored and an exception is thrown. Restoring the same archive
+     * again, or a whole copy of it, carries on where that left off.
+     */
+    public static Result restore(NoteRepository repository, InputStream in, String password)
+            throws IOException, GeneralSecurityException {
+        Result result = new Result();
+        read(in, password, note -> {
+            NoteSummary existing = repository.getSummary(note.getId());
+            if (existing == null) {
+                repository.insert(note);
+                result.inserted++;
+            } else if (note.getTimestamp() > existing.getTimestamp()) {
+                repository.update(note);
+                result.updated++;
+            } else {
+                result.skipped++;
+            }
+        });
+        return result;
+    }
+
+    /** Reads the whole archive and checks it without changing anything; returns its note count. */
+    public static int verify(InputStream in, String password) throws IOException, GeneralSecurityException {
+        int[] count = {0};
+        read(in, password, note -> count[0]++);
+        return count[0];
+    }
+
+    private static void read(InputStream in, String password, EntryHandler handler)
+            throws IOException, GeneralSecurityException {
+        MessageDigest digest = sha256();
+
+        try (InputStream source = open(in, password);
+             DataInputStream data = new DataInputStream(
+                     new BufferedInputStream(new InflaterInputStream(source), BUFFER_SIZE))) {
+            int count = 0;
+            while (true) {
+                int tag = data.readUnsignedByte();
+                if (tag == TAG_END) break;
+                if (tag != TAG_NOTE) throw new IOException("Unknown backup entry " + tag);
+
+                byte[] record = readBlock(data, MAX_RECORD_LENGTH);
+                byte[] body = readBlock(data, MAX_BODY_LENGTH);
+                NoteCodec.Record decoded = NoteCodec.decodeRecord(record);
+                if (NoteCodec.crc(body, 0, body.length) != decoded.bodyCrc) {
+                    throw new IOException("Body checksum mismatch for " + decoded.summary.getId());
+                }
+                digest.update(record);
+                digest.update(body);
+                count++;
+
+                handler.onEntry(decoded.summary.withContent(NoteCodec.decodeBody(body, decoded)));
+            }
+
+            byte[] expected = new byte[digest.getDigestLength()];
+            if (data.readInt() != count) throw new IOException("Backup is missing notes");
+            data.readFully(expected);
+            if (!MessageDigest.isEqual(expected, digest.digest())) throw new IOException("Backup checksum mismatch");
+        }
+    }
+
+    private static OutputStream open(OutputStream out, String password) throws IOException, GeneralSecurityException {
+        out.write(MAGIC);
+        out.write(password != null ? FLAG_ENCRYPTED : 0);
+        return password != null ? EncryptionManager.encryptingStream(out, password) : out;
+    }
+
+    private static InputStream open(InputStream in, String password) throws IOException, GeneralSecurityException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a Fortnote backup");
+
+        boolean encrypted = (data.readUnsignedByte() & FLAG_ENCRYPTED) != 0;
+        if (encrypted && password == null) throw new GeneralSecurityException("Backup is encrypted");
+        return encrypted ? EncryptionManager.decryptingStream(in, password) : in;
+    }
+
+    private static byte[] readBlock(DataInputStream data, int maxLength) throws IOException {
+        int length = data.readInt();
+        if (length < 0 || length > maxLength) throw new IOException("Damaged backup entry");
+        byte[] block = new byte[length];
+        data.readFully(block);
+        return block;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
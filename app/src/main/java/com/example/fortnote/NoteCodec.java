@@ -0,0 +1,394 @@
+package com.example.fortnote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary layout of a note's metadata record and body, as kept by
+ * {@link NoteStore}.
+ *
+ * A record is {@code 'F' 'N' 'R' | version | crc32 | flags | generation |
+ * timestamp | creationTimestamp | plaintextLength | bodyCrc | id | title |
+ * [preview]}: numbers are varints, strings are a varint length then UTF-8, and
+ * the CRC covers everything after itself. The body is kept apart, so reading a
+ * summary never touches content. A locked note's body is its raw ciphertext
+ * rather than Base64 text. Other bodies are UTF-8, deflated when that saves
+ * enough to be worth it; a record flag says which, so each note is read back
+ * the way it was written.
+ */
+final class NoteCodec {
+
+    static final int VERSION = 1;
+    static final long NO_CRC = -1;
+
+    private static final byte[] MAGIC = {'F', 'N', 'R'};
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4;
+
+    private static final int FLAG_LOCKED = 1;
+    private static final int FLAG_PREVIEW = 2;
+    private static final int FLAG_RAW_BODY = 4;
+    private static final int FLAG_DEFLATED = 8;
+
+    private static final int MAX_ID_LENGTH = 128;
+
+    // Shorter bodies are stored, and shorter notes sealed, as they are; deflate
+    // gains little on them.
+    static final int COMPRESS_THRESHOLD = 512;
+
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final int INVALID = Integer.MIN_VALUE >> 6;
+    private static final int[] DECODE = new int[128];
+
+    static {
+        Arrays.fill(DECODE, INVALID);
+        for (int i = 0; i < ALPHABET.length; i++) DECODE[ALPHABET[i]] = i;
+    }
+
+    /** A decoded metadata record. */
+    static final class Record {
+        final NoteSummary summary;
+        final long generation;
+        final long bodyCrc;
+        final boolean rawBody;
+        final boolean deflated;
+        // Only set for JSON records written before the metadata/body split.
+        final String inlineContent;
+
+        Record(NoteSummary summary, long generation, long bodyCrc, boolean rawBody, boolean deflated,
+                String inlineContent) {
+            this.summary = summary;
+            this.generation = generation;
+            this.bodyCrc = bodyCrc;
+            this.rawBody = rawBody;
+            this.deflated = deflated;
+            this.inlineContent = inlineContent;
+        }
+    }
+
+    /** A note's content in the form it is stored in. */
+    static final class Body {
+        final byte[] bytes;
+        final boolean raw;
+        final boolean deflated;
+
+        Body(byte[] bytes, boolean raw, boolean deflated) {
+            this.bytes = bytes;
+            this.raw = raw;
+            this.deflated = deflated;
+        }
+    }
+
+    private NoteCodec() {
+    }
+
+    static boolean isRecord(byte[] data) {
+        return data.length >= HEADER_LENGTH && data[0] == MAGIC[0] && data[1] == MAGIC[1] && data[2] == MAGIC[2];
+    }
+
+    static byte[] encodeRecord(Note note, long generation, Body body) {
+        return encodeRecord(note, generation, body.bytes, body.raw, body.deflated);
+    }
+
+    private static byte[] encodeRecord(Note note, long generation, byte[] body, boolean rawBody, boolean deflated) {
+        byte[] id = note.getId().getBytes(StandardCharsets.UTF_8);
+        byte[] title = note.getTitle().getBytes(StandardCharsets.UTF_8);
+        // Never store readable text next to encrypted content.
+        boolean hasPreview = note.getPreview() != null && !note.isLocked();
+        byte[] preview = hasPreview ? note.getPreview().getBytes(StandardCharsets.UTF_8) : null;
+
+        Writer out = new Writer(HEADER_LENGTH + 48 + id.length + title.length + (hasPreview ? preview.length : 0));
+        out.write(MAGIC);
+        out.put(VERSION);
+        out.pos += 4;
+
+        int flags = (note.isLocked() ? FLAG_LOCKED : 0) | (hasPreview ? FLAG_PREVIEW : 0)
+                | (rawBody ? FLAG_RAW_BODY : 0) | (deflated ? FLAG_DEFLATED : 0);
+        out.put(flags);
+        out.varint(generation);
+        out.varint(note.getTimestamp());
+        out.varint(note.getCreationTimestamp());
+        out.varint(note.getPlaintextLength());
+        out.fixed32(crc(body, 0, body.length));
+        out.bytes(id);
+        out.bytes(title);
+        if (hasPreview) out.bytes(preview);
+
+        long crc = crc(out.data, HEADER_LENGTH, out.pos - HEADER_LENGTH);
+        int end = out.pos;
+        out.pos = MAGIC.length + 1;
+        out.fixed32(crc);
+        return Arrays.copyOf(out.data, end);
+    }
+
+    /**
+     * Whether an id is safe to use as a file name: the app only makes UUIDs, so
+     * anything but letters, digits, '-' and '_' (a path, "..") came from elsewhere.
+     */
+    static boolean isValidId(String id) {
+        if (id.isEmpty() || id.length() > MAX_ID_LENGTH) return false;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    static Record decodeRecord(byte[] data) throws IOException {
+        if (!isRecord(data)) throw new IOException("Not a note record");
+        if (data[MAGIC.length] != VERSION) throw new IOException("Unsupported record version " + data[MAGIC.length]);
+
+        Reader in = new Reader(data, MAGIC.length + 1);
+        long expected = in.fixed32();
+        if (crc(data, HEADER_LENGTH, data.length - HEADER_LENGTH) != expected) {
+            throw new IOException("Record checksum mismatch");
+        }
+
+        int flags = in.get();
+        long generation = in.varint();
+        long timestamp = in.varint();
+        long creationTimestamp = in.varint();
+        int plaintextLength = (int) in.varint();
+        long bodyCrc = in.fixed32();
+        String id = in.string();
+        if (!isValidId(id)) throw new IOException("Bad note id");
+        String title = in.string();
+        String preview = (flags & FLAG_PREVIEW) != 0 ? in.string() : null;
+
+        boolean locked = (flags & FLAG_LOCKED) != 0;
+        NoteSummary summary = new NoteSummary(id, title, timestamp, creationTimestamp, locked, plaintextLength, preview);
+        return new Record(summary, generation, bodyCrc, (flags & FLAG_RAW_BODY) != 0,
+                (flags & FLAG_DEFLATED) != 0, null);
+    }
+
+    /**
+     * The body to store for a note: a locked note's ciphertext bytes, or else
+     * its UTF-8 text. With {@code compress}, text of at least
+     * {@link #COMPRESS_THRESHOLD} bytes is deflated if that saves an eighth.
+     * Locked notes are never compressed, as ciphertext does not shrink.
+     */
+    static Body encodeBody(Note note, boolean compress) {
+        byte[] raw = rawBody(note);
+        if (raw != null) return new Body(raw, true, false);
+
+        byte[] text = note.getContent().getBytes(StandardCharsets.UTF_8);
+        if (compress && !note.isLocked() && text.length >= COMPRESS_THRESHOLD) {
+            byte[] deflated = deflate(text, text.length - text.length / 8);
+            if (deflated != null) return new Body(deflated, false, true);
+        }
+        return new Body(text, false, false);
+    }
+
+    /**
+     * The ciphertext bytes of a locked note's Base64 content, or null when the
+     * text is not in the one canonical form {@link #decodeBody} gives back
+     * (e.g. a legacy wrapped layout) and has to be kept as text.
+     */
+    static byte[] rawBody(Note note) {
+        return note.isLocked() ? base64Decode(note.getContent()) : null;
+    }
+
+    static String decodeBody(byte[] body, boolean raw) {
+        return raw ? base64Encode(body) : new String(body, StandardCharsets.UTF_8);
+    }
+
+    static String decodeBody(byte[] body, Record record) throws IOException {
+        return record.deflated ? new String(inflate(body), StandardCharsets.UTF_8) : decodeBody(body, record.rawBody);
+    }
+
+    // Null if the output would be longer than limit, so hopeless input stops early.
+    static byte[] deflate(byte[] data, int limit) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[limit];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == out.length) return null;
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated body");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt body", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Standard padded Base64 without line breaks, the same text as
+    // Base64.NO_WRAP; done here so the store has no framework dependency.
+    static String base64Encode(byte[] data) {
+        byte[] out = new byte[(data.length + 2) / 3 * 4];
+        int full = data.length / 3 * 3;
+        int o = 0;
+        for (int i = 0; i < full; i += 3) {
+            int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3F];
+            out[o++] = ALPHABET[(bits >>> 6) & 0x3F];
+            out[o++] = ALPHABET[bits & 0x3F];
+        }
+        int remaining = data.length - full;
+        if (remaining > 0) {
+            int bits = (data[full] & 0xFF) << 16 | (remaining > 1 ? (data[full + 1] & 0xFF) << 8 : 0);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3F];
+            out[o++] = remaining > 1 ? ALPHABET[(bits >>> 6) & 0x3F] : (byte) '=';
+            out[o] = '=';
+        }
+        return new String(out, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Null unless the text is canonical padded Base64 with nothing else in it,
+     * so that encoding the result gives back exactly the same text.
+     */
+    static byte[] base64Decode(String text) {
+        int length = text.length();
+        if (length % 4 != 0) return null;
+        int padding = length == 0 || text.charAt(length - 1) != '=' ? 0 : text.charAt(length - 2) != '=' ? 1 : 2;
+
+        byte[] out = new byte[length / 4 * 3 - padding];
+        int full = padding == 0 ? length : length - 4;
+        int o = 0;
+        for (int i = 0; i < full; i += 4) {
+            int bits = value(text.charAt(i)) << 18 | value(text.charAt(i + 1)) << 12
+                    | value(text.charAt(i + 2)) << 6 | value(text.charAt(i + 3));
+            if (bits < 0) return null;
+            out[o++] = (byte) (bits >>> 16);
+            out[o++] = (byte) (bits >>> 8);
+            out[o++] = (byte) bits;
+        }
+        if (padding > 0) {
+            int bits = value(text.charAt(full)) << 18 | value(text.charAt(full + 1)) << 12
+                    | (padding == 1 ? value(text.charAt(full + 2)) << 6 : 0);
+            // Bits past the last byte must be zero, or the text is not canonical.
+            if (bits < 0 || (bits & (padding == 1 ? 0xFF : 0xFFFF)) != 0) return null;
+            out[o++] = (byte) (bits >>> 16);
+            if (padding == 1) out[o] = (byte) (bits >>> 8);
+        }
+        return out;
+    }
+
+    // Invalid characters map to a large negative value, so one check per group catches them.
+    private static int value(char c) {
+        return c < 128 ? DECODE[c] : INVALID;
+    }
+
+    static long crc(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    private static final class Writer {
+        byte[] data;
+        int pos;
+
+        Writer(int capacity) {
+            data = new byte[capacity];
+        }
+
+        void ensure(int extra) {
+            if (pos + extra > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, pos + extra));
+        }
+
+        void put(int b) {
+            ensure(1);
+            data[pos++] = (byte) b;
+        }
+
+        void write(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                data[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[pos++] = (byte) value;
+        }
+
+        void fixed32(long value) {
+            ensure(4);
+            data[pos++] = (byte) (value >>> 24);
+            data[pos++] = (byte) (value >>> 16);
+            data[pos++] = (byte) (value >>> 8);
+            data[pos++] = (byte) value;
+        }
+
+        void bytes(byte[] bytes) {
+            varint(bytes.length);
+            write(bytes);
+        }
+    }
+
+    // Reads past the end surface as IOException, like a torn file would.
+    private static final class Reader {
+        final byte[] data;
+        int pos;
+
+        Reader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        int get() throws IOException {
+            if (pos >= data.length) throw new IOException("Truncated record");
+            return data[pos++] & 0xFF;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long fixed32() throws IOException {
+            return ((long) get() << 24) | (get() << 16) | (get() << 8) | get();
+        }
+
+        String string() throws IOException {
+            long length = varint();
+            if (length < 0 || length > data.length - pos) throw new IOException("Truncated record");
+            String value = new String(data, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return value;
+        }
+    }
+}
@@ -7,14 +7,18 @@ import android.os.Bundle;
 import android.text.Editable;
 import android.text.Html;
 import android.text.SpannableStringBuilder;
+import android.text.Spanned;
 import android.text.TextWatcher;
+import android.text.style.CharacterStyle;
 import android.text.style.StyleSpan;
 import android.text.style.UnderlineSpan;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
 
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 import com.google.android.material.button.MaterialButton;
 import android.widget.LinearLayout;
 
@@ -22,8 +26,6 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
-import java.util.List;
-
 public class NoteEditorActivity extends AppCompatActivity {
 
     private EditText etNoteTitle;
@@ -33,12 +35,19 @@ public class NoteEditorActivity extends AppCompatActivity {
     private boolean isEditMode = false;
     private boolean isLocked = false;
 
-    private final Stack<String> undoStack = new Stack<>();
-    private final Stack<String> redoStack = new Stack<>();
-    private boolean isTextChangingProgrammatically = false;
+    private static final String STATE_NOTE_ID = "note_id";
 
-    private long lastEditTime = 0;
     private static final long UNDO_DELAY = 800;
+    private static final long AUTOSAVE_DELAY = 1000;
+    private static final int MAX_UNDO_EDITS = 200;
+    private static final int MAX_UNDO_CHARS = 64 * 1024;
+    // Style code for underline in the edit history; StyleSpans use their Typeface style.
+    private static final int STYLE_UNDERLINE = 0x100;
+
+    private final EditHistory history = new EditHistory(MAX_UNDO_EDITS, MAX_UNDO_CHARS, UNDO_DELAY);
+    private boolean isTextChangingProgrammatically = false;
+    private boolean draftDirty = false;
+    private final Runnable autosave = this::flushDraft;
 
     private String originalHtml = "";
 
@@ -63,26 +72,15 @@ public class NoteEditorActivity extends AppCompatActivity {
         if (getIntent().hasExtra("note_id")) {
             isEditMode = true;
             noteId = getIntent().getStringExtra("note_id");
-            etNoteTitle.setText(getIntent().getStringExtra("note_title"));
-            etNoteContent.setText(Html.fromHtml(getIntent().getStringExtra("note_content")));
-        }
-
-        if (isEditMode) {
-            List<Note> all = noteManager.getAllNotes();
-            for (Note n : all) {
-                if (n.getId().equals(noteId)) {
-                    isLocked = n.isLocked();
-                    if (isLocked) {
-                        int len = n.getPlaintextLength() > 0 ? n.getPlaintextLength() : 16;
-                        etNoteContent.setText(scrambleFromLengthPreserveSpaces(len));
-                        etNoteContent.setEnabled(false);
-                        etNoteTitle.setEnabled(false);
-                        lockButton.setBackgroundResource(android.R.drawable.ic_lock_lock);
-                    } else {
-                        lockButton.setBackgroundResource(android.R.drawable.ic_lock_idle_lock);
-                    }
-                }
-            }
+            etNoteTitle.setEnabled(false);
+            etNoteContent.setEnabled(false);
+            // Queued behind the draft the previous instance flushed in onPause,
+            // so a recreated editor never loads the note from before it.
+            noteManager.getNoteAfterWritesAsync(noteId, n -> showNote(n, lockButton));
+        } else {
+            // A new note gets its id up front so its drafts can be journaled.
+            if (savedInstanceState != null) noteId = savedInstanceState.getString(STATE_NOTE_ID);
+            if (noteId == null) noteId = UUID.randomUUID().toString();
         }
 
         backButton.setOnClickListener(v -> finish());
@@ -92,32 +90,103 @@ public class NoteEditorActivity extends AppCompatActivity {
             else unlockNote(lockButton);
         });
 
-        boldButton.setOnClickListener(v -> applyStyle(Typeface.BOLD));
-        italicButton.setOnClickListener(v -> applyStyle(Typeface.ITALIC));
-        underlineButton.setOnClickListener(v -> applyUnderline());
+        boldButton.setOnClickListener(v -> toggleStyle(Typeface.BOLD));
+        italicButton.setOnClickListener(v -> toggleStyle(Typeface.ITALIC));
+        underlineButton.setOnClickListener(v -> toggleStyle(STYLE_UNDERLINE));
 
         fabSave.setOnClickListener(v -> saveNote());
         undoButton.setOnClickListener(v -> undo());
         redoButton.setOnClickListener(v -> redo());
 
+        // Only the changed range is copied for undo, never the whole text.
         etNoteContent.addTextChangedListener(new TextWatcher() {
-            private String before = "";
-            @Override public void beforeTextChanged(CharSequence s, int st, int c, int a) { before = s.toString(); }
+            private int start;
+            private String removed;
+            private String inserted;
+            private List<EditHistory.Span> spansBefore;
+
+            @Override public void beforeTextChanged(CharSequence s, int st, int c, int a) {
+                if (isTextChangingProgrammatically) return;
+                removed = s.subSequence(st, st + c).toString();
+                spansBefore = editorText.spans(st, st + c);
+            }
+            @Override public void onTextChanged(CharSequence s, int st, int b, int c) {
+                if (isTextChangingProgrammatically) return;
+                start = st;
+                inserted = s.subSequence(st, st + c).toString();
+            }
+            @Override public void afterTextChanged(Editable s) {
+                if (isTextChangingProgrammatically || spansBefore == null) return;
+                history.recordText(editorText, start, removed, inserted, spansBefore, System.currentTimeMillis());
+                spansBefore = null;
+                scheduleAutosave();
+            }
+        });
+
+        etNoteTitle.addTextChangedListener(new TextWatcher() {
+            @Override public void beforeTextChanged(CharSequence s, int st, int c, int a) {}
             @Override public void onTextChanged(CharSequence s, int st, int b, int c) {}
             @Override public void afterTextChanged(Editable s) {
-                if (!isTextChangingProgrammatically) {
-                    long now = System.currentTimeMillis();
-                    if (now - lastEditTime > UNDO_DELAY) {
-                        undoStack.push(before);
-                        redoStack.clear();
-                    }
-                    lastEditTime = now;
-                }
+                if (!isTextChangingProgrammatically) scheduleAutosave();
             }
         });
     }
 
-    
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_NOTE_ID, noteId);
+    }
+
+    // Leaving the editor, by any route, puts the latest draft in the store.
+    @Override
+    protected void onPause() {
+        super.onPause();
+        flushDraft();
+        noteManager.commitDraftAsync(noteId, null);
+    }
+
+    @Override
+    protected void onDestroy() {
+        noteManager.cancelPending();
+        super.onDestroy();
+    }
+
+    private void showNote(Note n, Button lockButton) {
+        if (n == null) {
+            Toast.makeText(this, "Note not found", Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+
+        isLocked = n.isLocked();
+        isTextChangingProgrammatically = true;
+        // Unless the editor was recreated with the user's own edits in it.
+        if (etNoteTitle.length() == 0) etNoteTitle.setText(n.getTitle());
+        String peeked = isLocked ? noteManager.getPeekedContent(n.getId()) : null;
+        if (peeked != null) {
+            showPeeked(peeked);
+            etNoteTitle.setEnabled(false);
+            lockButton.setBackgroundResource(android.R.drawable.ic_lock_lock);
+        } else if (isLocked) {
+            int len = n.getPlaintextLength() > 0 ? n.getPlaintextLength() : 16;
+            etNoteContent.setText(scrambleFromLengthPreserveSpaces(len));
+            etNoteTitle.setEnabled(false);
+            lockButton.setBackgroundResource(android.R.drawable.ic_lock_lock);
+        } else {
+            // The restored text and its undo history are the user's latest edits.
+            if (etNoteContent.length() == 0) {
+                etNoteContent.setText(Html.fromHtml(n.getContent()));
+                history.clear();
+            }
+            etNoteContent.setEnabled(true);
+            etNoteTitle.setEnabled(true);
+            lockButton.setBackgroundResource(android.R.drawable.ic_lock_idle_lock);
+        }
+        isTextChangingProgrammatically = false;
+        if (isLocked) history.clear();
+    }
+
     private void lockNote(Button lockButton) {
 
         LinearLayout layout = new LinearLayout(this);
@@ -151,36 +220,40 @@ public class NoteEditorActivity extends AppCompatActivity {
 
                     int len = Html.fromHtml(originalHtml).toString().length();
 
-                    noteManager.updateNote(noteId,
-                            etNoteTitle.getText().toString(),
-                            originalHtml); 
-                    List<Note> all = noteManager.getAllNotes();
-                    for (Note n : all) {
-                        if (n.getId().equals(noteId)) {
-                            n.setPlaintextLength(len);
-                            break;
-                        }
-                    }
-
-                    boolean ok = noteManager.encryptNote(noteId, p1);
-                    if (!ok) {
-                        Toast.makeText(this,"Encryption failed",Toast.LENGTH_SHORT).show();
-                        return;
-                    }
-
-                    etNoteContent.setText(scrambleFromLengthPreserveSpaces(len));
+                    // The lock saves the text itself; a later draft must not follow it.
+                    etNoteContent.removeCallbacks(autosave);
+                    draftDirty = false;
                     etNoteContent.setEnabled(false);
                     etNoteTitle.setEnabled(false);
+                    lockButton.setEnabled(false);
+
+                    noteManager.lockNoteAsync(noteId, etNoteTitle.getText().toString(),
+                            originalHtml, p1, ok -> {
+                        lockButton.setEnabled(true);
+                        if (ok == null || !ok) {
+                            etNoteContent.setEnabled(true);
+                            etNoteTitle.setEnabled(true);
+                            Toast.makeText(this,"Encryption failed",Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+
+                        isTextChangingProgrammatically = true;
+                        etNoteContent.setText(scrambleFromLengthPreserveSpaces(len));
+                        isTextChangingProgrammatically = false;
+                        history.clear();
 
-                    lockButton.setBackgroundResource(android.R.drawable.ic_lock_lock);
-                    isLocked = true;
-                    Toast.makeText(this,"Note locked",Toast.LENGTH_SHORT).show();
+                        lockButton.setBackgroundResource(android.R.drawable.ic_lock_lock);
+                        isLocked = true;
+                        Toast.makeText(this,"Note locked",Toast.LENGTH_SHORT).show();
+                    });
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
     }
 
     
+    // "View" decrypts into memory only and leaves the note locked; "Edit"
+    // unlocks it for good, writing the plaintext back.
     private void unlockNote(Button lockButton) {
 
         EditText passField = new EditText(this);
@@ -190,29 +263,59 @@ public class NoteEditorActivity extends AppCompatActivity {
         new androidx.appcompat.app.AlertDialog.Builder(this)
                 .setTitle("Unlock Note")
                 .setView(passField)
-                .setPositiveButton("OK", (d, w) -> {
+                .setPositiveButton("View", (d, w) -> {
 
                     String pass = passField.getText().toString();
-                    String decrypted = noteManager.decryptNote(noteId, pass);
+                    lockButton.setEnabled(false);
 
-                    if (decrypted == null) {
-                        Toast.makeText(this,"Wrong password",Toast.LENGTH_SHORT).show();
-                        return;
-                    }
+                    noteManager.peekNoteAsync(noteId, pass, decrypted -> {
+                        lockButton.setEnabled(true);
+                        if (decrypted == null) {
+                            Toast.makeText(this,"Wrong password",Toast.LENGTH_SHORT).show();
+                            return;
+                        }
 
-                    etNoteContent.setText(Html.fromHtml(decrypted));
-                    etNoteContent.setEnabled(true);
-                    etNoteTitle.setEnabled(true);
+                        isTextChangingProgrammatically = true;
+                        showPeeked(decrypted);
+                        isTextChangingProgrammatically = false;
+                    });
+                })
+                .setNeutralButton("Edit", (d, w) -> {
+
+                    String pass = passField.getText().toString();
+                    lockButton.setEnabled(false);
 
-                    lockButton.setBackgroundResource(android.R.drawable.ic_lock_idle_lock);
-                    isLocked = false;
+                    noteManager.decryptNoteAsync(noteId, pass, decrypted -> {
+                        lockButton.setEnabled(true);
+                        if (decrypted == null) {
+                            Toast.makeText(this,"Wrong password",Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+
+                        isTextChangingProgrammatically = true;
+                        etNoteContent.setText(Html.fromHtml(decrypted));
+                        isTextChangingProgrammatically = false;
+                        history.clear();
+                        etNoteContent.setEnabled(true);
+                        etNoteTitle.setEnabled(true);
 
-                    Toast.makeText(this,"Note unlocked",Toast.LENGTH_SHORT).show();
+                        lockButton.setBackgroundResource(android.R.drawable.ic_lock_idle_lock);
+                        isLocked = false;
+
+                        Toast.makeText(this,"Note unlocked",Toast.LENGTH_SHORT).show();
+                    });
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
     }
 
+    // The note stays locked, so the content is shown but cannot be edited or saved.
+    private void showPeeked(String html) {
+        etNoteContent.setText(Html.fromHtml(html));
+        etNoteContent.setEnabled(false);
+        history.clear();
+    }
+
    
     private String scrambleFromLengthPreserveSpaces(int length) {
         String symbols = "ÆØΔ¥$#@%&*?¶Ω≈≠±";
@@ -227,47 +330,112 @@ public class NoteEditorActivity extends AppCompatActivity {
     }
 
     private void undo() {
-        if (!undoStack.isEmpty()) {
-            String last = undoStack.pop();
-            redoStack.push(etNoteContent.getText().toString());
-            isTextChangingProgrammatically = true;
-            etNoteContent.setText(last);
-            etNoteContent.setSelection(last.length());
-            isTextChangingProgrammatically = false;
-        }
+        if (isLocked) return;
+        isTextChangingProgrammatically = true;
+        int cursor = history.undo(editorText);
+        isTextChangingProgrammatically = false;
+        if (cursor >= 0) etNoteContent.setSelection(cursor);
+        scheduleAutosave();
     }
 
     private void redo() {
-        if (!redoStack.isEmpty()) {
-            String next = redoStack.pop();
-            undoStack.push(etNoteContent.getText().toString());
-            isTextChangingProgrammatically = true;
-            etNoteContent.setText(next);
-            etNoteContent.setSelection(next.length());
-            isTextChangingProgrammatically = false;
-        }
+        if (isLocked) return;
+        isTextChangingProgrammatically = true;
+        int cursor = history.redo(editorText);
+        isTextChangingProgrammatically = false;
+        if (cursor >= 0) etNoteContent.setSelection(cursor);
+        scheduleAutosave();
     }
 
-    private void applyStyle(int style) {
-        int start = etNoteContent.getSelectionStart();
-        int end = etNoteContent.getSelectionEnd();
-        if (start < end) {
-            SpannableStringBuilder span = new SpannableStringBuilder(etNoteContent.getText());
-            span.setSpan(new StyleSpan(style), start, end, SpannableStringBuilder.SPAN_EXCLUSIVE_EXCLUSIVE);
-            etNoteContent.setText(span);
-            etNoteContent.setSelection(start, end);
+    // Formatting goes straight onto the live text: no copy, no setText, and one
+    // undo step per tap.
+    private void toggleStyle(int style) {
+        int start = Math.min(etNoteContent.getSelectionStart(), etNoteContent.getSelectionEnd());
+        int end = Math.max(etNoteContent.getSelectionStart(), etNoteContent.getSelectionEnd());
+        if (start >= end || isLocked) return;
+
+        List<EditHistory.Span> before = editorText.spans(start, end);
+        SpanFormatter.toggle(editorText, style, start, end);
+        history.recordStyle(start, end, before, editorText.spans(start, end), System.currentTimeMillis());
+        scheduleAutosave();
+    }
+
+    // Edits only mark the draft dirty; it is journaled once typing pauses.
+    private void scheduleAutosave() {
+        draftDirty = true;
+        etNoteContent.removeCallbacks(autosave);
+        etNoteContent.postDelayed(autosave, AUTOSAVE_DELAY);
+    }
+
+    // The text is copied here and turned into HTML on the write thread. Nothing
+    // is journaled while the content is disabled, i.e. still loading or locked.
+    private void flushDraft() {
+        etNoteContent.removeCallbacks(autosave);
+        if (!draftDirty || isLocked || !etNoteContent.isEnabled()) return;
+
+        draftDirty = false;
+        noteManager.saveDraftAsync(noteId, etNoteTitle.getText().toString().trim(),
+                new SpannableStringBuilder(etNoteContent.getText()), null);
+    }
+
+    // The live editor text as the edit history sees it: bold, italic and
+    // underline spans, ignoring the keyboard's composing spans.
+    private final EditHistory.Target editorText = new EditHistory.Target() {
+        @Override
+        public void replace(int start, int end, String text) {
+            etNoteContent.getText().replace(start, end, text);
+        }
+
+        @Override
+        public List<EditHistory.Span> spans(int start, int end) {
+            Editable text = etNoteContent.getText();
+            List<EditHistory.Span> spans = new ArrayList<>();
+            for (CharacterStyle span : formattingSpans(text, start, end)) {
+                spans.add(new EditHistory.Span(styleOf(span), text.getSpanStart(span), text.getSpanEnd(span)));
+            }
+            return spans;
+        }
+
+        @Override
+        public void removeSpans(int start, int end) {
+            Editable text = etNoteContent.getText();
+            for (CharacterStyle span : formattingSpans(text, start, end)) text.removeSpan(span);
+        }
+
+        @Override
+        public void removeSpan(EditHistory.Span span) {
+            Editable text = etNoteContent.getText();
+            for (CharacterStyle candidate : formattingSpans(text, span.start, span.end)) {
+                if (styleOf(candidate) == span.style && text.getSpanStart(candidate) == span.start
+                        && text.getSpanEnd(candidate) == span.end) {
+                    text.removeSpan(candidate);
+                    return;
+                }
+            }
         }
+
+        @Override
+        public void addSpan(EditHistory.Span span) {
+            CharacterStyle style = span.style == STYLE_UNDERLINE ? new UnderlineSpan() : new StyleSpan(span.style);
+            etNoteContent.getText().setSpan(style, span.start, span.end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    };
+
+    private static int styleOf(CharacterStyle span) {
+        return span instanceof StyleSpan ? ((StyleSpan) span).getStyle() : STYLE_UNDERLINE;
     }
 
-    private void applyUnderline() {
-        int start = etNoteContent.getSelectionStart();
-        int end = etNoteContent.getSelectionEnd();
-        if (start < end) {
-            SpannableStringBuilder span = new SpannableStringBuilder(etNoteContent.getText());
-            span.setSpan(new UnderlineSpan(), start, end, SpannableStringBuilder.SPAN_EXCLUSIVE_EXCLUSIVE);
-            etNoteContent.setText(span);
-            etNoteContent.setSelection(start, end);
+    // getSpans leaves out spans that only touch the range, so widen it by one and filter.
+    private static List<CharacterStyle> formattingSpans(Editable text, int start, int end) {
+        List<CharacterStyle> spans = new ArrayList<>();
+        CharacterStyle[] candidates = text.getSpans(Math.max(0, start - 1),
+                Math.min(text.length(), end + 1), CharacterStyle.class);
+        for (CharacterStyle span : candidates) {
+            if (!(span instanceof StyleSpan || span instanceof UnderlineSpan)) continue;
+            if ((text.getSpanFlags(span) & Spanned.SPAN_COMPOSING) != 0) continue;
+            if (text.getSpanStart(span) <= end && text.getSpanEnd(span) >= start) spans.add(span);
         }
+        return spans;
     }
 
     private void saveNote() {
@@ -276,16 +444,10 @@ public class NoteEditorActivity extends AppCompatActivity {
             return;
         }
 
-        String title = etNoteTitle.getText().toString().trim();
-        String content = Html.toHtml(etNoteContent.getText());
-
-        if (isEditMode) {
-            noteManager.updateNote(noteId, title, content);
-            Toast.makeText(this,"Note updated!",Toast.LENGTH_SHORT).show();
-        } else {
-            noteManager.saveNote(title, content);
-            Toast.makeText(this,"Note saved!",Toast.LENGTH_SHORT).show();
-        }
+        // Writes are never cancelled, so the save completes after the editor closes.
+        flushDraft();
+        noteManager.commitDraftAsync(noteId, null);
+        Toast.makeText(this, isEditMode ? "Note updated!" : "Note saved!", Toast.LENGTH_SHORT).show();
 
         finish();
     }
@@ -0,0 +1,516 @@
+package com.example.fortnote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Per-note revision history ({@code <id>.rev}). Every saved version of a note
+ * is a revision. Most are stored as a delta against the revision before: the
+ * text both share at the start and at the end is kept, and only what lies
+ * between is stored, which is small for the usual edit in one place. Every
+ * {@link #KEYFRAME_INTERVAL}th revision, and any whose delta would be about as
+ * big as the note, is stored whole and deflated instead, so reading a revision
+ * applies fewer than {@code KEYFRAME_INTERVAL} deltas.
+ *
+ * A file is {@code "FNH" 1 | sealed | records}. As in {@link DraftJournal}, a
+ * record is {@code length | crc32 | payload}, and one torn by a crash is
+ * dropped along with anything after it. Revisions are numbered from 1 and keep
+ * their numbers when older ones are compacted away.
+ *
+ * While a note is locked its history is sealed: the records are encrypted
+ * under the note's password as one {@link EncryptionManager} chunked stream,
+ * and nothing is recorded until it is unsealed again.
+ *
+ * {@link #compact} applies the retention policy: at most {@code maxRevisions}
+ * revisions, none older than {@code maxAgeMillis}, and always the newest.
+ */
+public class NoteHistory {
+
+    /** One revision of a note, without its content. */
+    public static final class Revision {
+        public final long number;
+        public final long timestamp;
+        public final String title;
+
+        Revision(long number, long timestamp, String title) {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.title = title;
+        }
+    }
+
+    static final int KEYFRAME_INTERVAL = 8;
+
+    private static final byte[] MAGIC = {'F', 'N', 'H', 1};
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+    private static final int FLAG_SEALED = 1;
+    private static final int KIND_KEYFRAME = 0;
+    private static final int KIND_DEFLATED_KEYFRAME = 1;
+    private static final int KIND_DELTA = 2;
+    private static final String SUFFIX = ".rev";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // A keyframe's text is the whole content; a delta's is what replaces the
+    // middle of the previous revision, between prefix and suffix chars of it.
+    private static final class Entry {
+        final boolean keyframe;
+        final long number;
+        final long timestamp;
+        final String title;
+        final int prefix;
+        final int suffix;
+        final String text;
+
+        Entry(boolean keyframe, long number, long timestamp, String title, int prefix, int suffix, String text) {
+            this.keyframe = keyframe;
+            this.number = number;
+            this.timestamp = timestamp;
+            this.title = title;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.text = text;
+        }
+    }
+
+    private final File dir;
+    private volatile int maxRevisions;
+    private volatile long maxAgeMillis;
+    // Deltas applied to read revisions back; keyframes keep this bounded per read.
+    final AtomicLong deltasApplied = new AtomicLong();
+
+    public NoteHistory(File dir, int maxRevisions, long maxAgeMillis) {
+        this.dir = dir;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IllegalStateException("Cannot create history directory " + dir);
+        }
+        setRetention(maxRevisions, maxAgeMillis);
+    }
+
+    /** Takes effect at the next {@link #compact}; at least one revision is always kept. */
+    public void setRetention(int maxRevisions, long maxAgeMillis) {
+        this.maxRevisions = Math.max(1, maxRevisions);
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Adds a revision, unless the history is sealed or the title and content are
+     * those of the newest one. Returns true once the history has outgrown its
+     * retention and is due a {@link #compact}. Appends are not synced: losing the
+     * newest revision in a crash loses nothing, as the note itself is in the store.
+     */
+    public synchronized boolean record(String id, String title, String content, long timestamp) throws IOException {
+        File file = file(id);
+        byte[] data = file.exists() ? readFile(file) : new byte[0];
+        if (data.length >= HEADER_LENGTH && isSealed(data)) return false;
+
+        List<Entry> entries = new ArrayList<>();
+        int end = data.length >= HEADER_LENGTH ? parse(data, HEADER_LENGTH, entries) : 0;
+        String previous = null;
+        if (!entries.isEmpty()) {
+            Entry last = entries.get(entries.size() - 1);
+            previous = contentAt(entries, entries.size() - 1);
+            if (previous.equals(content) && last.title.equals(title)) return false;
+        }
+
+        long number = entries.isEmpty() ? 1 : entries.get(entries.size() - 1).number + 1;
+        Entry entry = encode(entries, number, timestamp, title, content, previous);
+        entries.add(entry);
+
+        // A torn tail is cut off first, or it would hide every record after it.
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            if (end == 0) {
+                out.setLength(0);
+                out.write(header(false));
+                end = HEADER_LENGTH;
+            }
+            out.setLength(end);
+            out.seek(end);
+            out.write(recordBytes(entry));
+        }
+        return isDue(entries, timestamp);
+    }
+
+    /**
+     * Records every saved version of an unlocked note and queues compaction on
+     * {@code compactor} when it is due. A note saved locked keeps its history
+     * only if that was sealed first, e.g. one restored from a backup as a
+     * locked copy has no password to seal it with, so its history is dropped.
+     */
+    public NoteRepository.Listener recorder(Executor compactor) {
+        return new NoteRepository.Listener() {
+            @Override public void onNoteInserted(Note note) { onSaved(note, compactor); }
+            @Override public void onNoteUpdated(Note note) { onSaved(note, compactor); }
+            @Override public void onNoteRemoved(String id) { discard(id); }
+        };
+    }
+
+    private void onSaved(Note note, Executor compactor) {
+        String id = note.getId();
+        if (note.isLocked()) {
+            discardUnsealed(id);
+            return;
+        }
+        try {
+            if (!record(id, note.getTitle(), note.getContent(), note.getTimestamp())) return;
+            compactor.execute(() -> {
+                try {
+                    compact(id, System.currentTimeMillis());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Every revision, oldest first. A sealed history needs the note's password. */
+    public synchronized List<Revision> list(String id, String password) throws IOException, GeneralSecurityException {
+        List<Revision> revisions = new ArrayList<>();
+        for (Entry entry : read(id, password)) {
+            revisions.add(new Revision(entry.number, entry.timestamp, entry.title));
+        }
+        return revisions;
+    }
+
+    /** The content of one revision, or null if the history has no such revision. */
+    public synchronized String content(String id, long number, String password)
+            throws IOException, GeneralSecurityException {
+        List<Entry> entries = read(id, password);
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).number == number) return contentAt(entries, i);
+        }
+        return null;
+    }
+
+    /**
+     * Drops revisions the retention policy no longer keeps and rewrites the
+     * rest, starting from a keyframe. Sealed histories are left alone. Returns
+     * whether anything changed.
+     */
+    public synchronized boolean compact(String id, long now) throws IOException {
+        File file = file(id);
+        if (!file.exists()) return false;
+        byte[] data = readFile(file);
+        if (data.length < HEADER_LENGTH || isSealed(data)) return false;
+
+        List<Entry> entries = new ArrayList<>();
+        int end = parse(data, HEADER_LENGTH, entries);
+        int from = Math.max(0, entries.size() - maxRevisions);
+        while (from < entries.size() - 1 && entries.get(from).timestamp < now - maxAgeMillis) from++;
+        if (from == 0 && end == data.length) return false;
+
+        List<Entry> kept = new ArrayList<>();
+        String content = null;
+        String previous = null;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            content = apply(content, entry);
+            if (i < from) continue;
+            kept.add(encode(kept, entry.number, entry.timestamp, entry.title, content, previous));
+            previous = content;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        out.write(header(false));
+        for (Entry entry : kept) out.write(recordBytes(entry));
+        replaceFile(file, out.toByteArray());
+        return true;
+    }
+
+    /** Compacts every history, e.g. at startup so revisions also expire by age. */
+    public void compactAll(long now) {
+        for (String id : ids()) {
+            try {
+                compact(id, now);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Encrypts the note's history under its password; does nothing if it has none or is sealed. */
+    public synchronized void seal(String id, String password) throws IOException, GeneralSecurityException {
+        File file = file(id);
+        if (!file.exists()) return;
+        byte[] data = readFile(file);
+        if (data.length < HEADER_LENGTH || isSealed(data)) return;
+
+        int end = parse(data, HEADER_LENGTH, new ArrayList<>());
+        ByteArrayOutputStream out = new ByteArrayOutputStream(end + 256);
+        out.write(header(true));
+        try (OutputStream sealed = EncryptionManager.encryptingStream(out, password)) {
+            sealed.write(data, HEADER_LENGTH, end - HEADER_LENGTH);
+        }
+        replaceFile(file, out.toByteArray());
+    }
+
+    /** Decrypts a sealed history so revisions can be recorded again; does nothing if it is not sealed. */
+    public synchronized void unseal(String id, String password) throws IOException, GeneralSecurityException {
+        File file = file(id);
+        if (!file.exists()) return;
+        byte[] data = readFile(file);
+        if (data.length < HEADER_LENGTH || !isSealed(data)) return;
+
+        byte[] records = open(data, password);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_LENGTH + records.length);
+        out.write(header(false));
+        out.write(records);
+        replaceFile(file, out.toByteArray());
+    }
+
+    /** Ids of every note with a history. */
+    public List<String> ids() {
+        List<String> ids = new ArrayList<>();
+        String[] names = dir.list((d, name) -> name.endsWith(SUFFIX));
+        if (names == null) return ids;
+
+        for (String name : names) ids.add(name.substring(0, name.length() - SUFFIX.length()));
+        return ids;
+    }
+
+    public synchronized void discard(String id) {
+        file(id).delete();
+    }
+
+    // An unreadable header could be anything, so it goes too.
+    private synchronized void discardUnsealed(String id) {
+        File file = file(id);
+        if (!file.exists()) return;
+        byte[] header = new byte[HEADER_LENGTH];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(header);
+            if (isSealed(header)) return;
+        } catch (IOException e) {
+            // Torn or foreign; dropped below.
+        }
+        file.delete();
+    }
+
+    private File file(String id) {
+        return new File(dir, id + SUFFIX);
+    }
+
+    private List<Entry> read(String id, String password) throws IOException, GeneralSecurityException {
+        List<Entry> entries = new ArrayList<>();
+        File file = file(id);
+        if (!file.exists()) return entries;
+        byte[] data = readFile(file);
+        if (data.length < HEADER_LENGTH) return entries;
+
+        if (isSealed(data)) {
+            parse(open(data, password), 0, entries);
+        } else {
+            parse(data, HEADER_LENGTH, entries);
+        }
+        return entries;
+    }
+
+    private static byte[] open(byte[] data, String password) throws IOException, GeneralSecurityException {
+        if (password == null) throw new GeneralSecurityException("History is sealed");
+        InputStream in = new ByteArrayInputStream(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+        try (InputStream plain = EncryptionManager.decryptingStream(in, password)) {
+            return readAll(plain, data.length);
+        }
+    }
+
+    private static boolean isSealed(byte[] data) throws IOException {
+        if (!Arrays.equals(Arrays.copyOf(data, MAGIC.length), MAGIC)) throw new IOException("Not a note history");
+        return (data[MAGIC.length] & FLAG_SEALED) != 0;
+    }
+
+    private static byte[] header(boolean sealed) {
+        byte[] header = Arrays.copyOf(MAGIC, HEADER_LENGTH);
+        header[MAGIC.length] = (byte) (sealed ? FLAG_SEALED : 0);
+        return header;
+    }
+
+    // A delta unless it is time for a keyframe or the delta would save little.
+    private static Entry encode(List<Entry> entries, long number, long timestamp, String title,
+                                String content, String previous) {
+        int sinceKeyframe = 0;
+        for (int i = entries.size() - 1; i >= 0 && !entries.get(i).keyframe; i--) sinceKeyframe++;
+        if (previous == null || entries.isEmpty() || sinceKeyframe >= KEYFRAME_INTERVAL - 1) {
+            return new Entry(true, number, timestamp, title, 0, 0, content);
+        }
+
+        int limit = Math.min(previous.length(), content.length());
+        int prefix = 0;
+        while (prefix < limit && previous.charAt(prefix) == content.charAt(prefix)) prefix++;
+        int suffix = 0;
+        while (suffix < limit - prefix
+                && previous.charAt(previous.length() - 1 - suffix) == content.charAt(content.length() - 1 - suffix)) {
+            suffix++;
+        }
+        // Never split a surrogate pair, or the inserted text would not survive UTF-8.
+        if (prefix > 0 && Character.isHighSurrogate(content.charAt(prefix - 1))) prefix--;
+        if (suffix > 0 && Character.isLowSurrogate(content.charAt(content.length() - suffix))) suffix--;
+
+        String inserted = content.substring(prefix, content.length() - suffix);
+        if (inserted.length() * 2 >= content.length()) return new Entry(true, number, timestamp, title, 0, 0, content);
+        return new Entry(false, number, timestamp, title, prefix, suffix, inserted);
+    }
+
+    private String contentAt(List<Entry> entries, int index) throws IOException {
+        int start = index;
+        while (start > 0 && !entries.get(start).keyframe) start--;
+
+        String content = null;
+        for (int i = start; i <= index; i++) {
+            content = apply(content, entries.get(i));
+            if (!entries.get(i).keyframe) deltasApplied.incrementAndGet();
+        }
+        return content;
+    }
+
+    private static String apply(String previous, Entry entry) throws IOException {
+        if (entry.keyframe) return entry.text;
+        if (previous == null || entry.prefix < 0 || entry.suffix < 0 || entry.prefix + entry.suffix > previous.length()) {
+            throw new IOException("Damaged history");
+        }
+        return previous.substring(0, entry.prefix) + entry.text
+                + previous.substring(previous.length() - entry.suffix);
+    }
+
+    private static byte[] recordBytes(Entry entry) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(entry.text.length() + entry.title.length() + 48);
+        DataOutputStream data = new DataOutputStream(payload);
+        byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = entry.keyframe && text.length >= NoteCodec.COMPRESS_THRESHOLD
+                ? NoteCodec.deflate(text, text.length - text.length / 8) : null;
+
+        data.writeByte(!entry.keyframe ? KIND_DELTA : deflated != null ? KIND_DEFLATED_KEYFRAME : KIND_KEYFRAME);
+        data.writeLong(entry.number);
+        data.writeLong(entry.timestamp);
+        writeBytes(data, entry.title.getBytes(StandardCharsets.UTF_8));
+        if (!entry.keyframe) {
+            data.writeInt(entry.prefix);
+            data.writeInt(entry.suffix);
+        }
+        writeBytes(data, deflated != null ? deflated : text);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        ByteArrayOutputStream record = new ByteArrayOutputStream(payload.size() + 8);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(payload.size());
+        out.writeInt((int) crc.getValue());
+        payload.writeTo(out);
+        return record.toByteArray();
+    }
+
+    // Reads records from offset until the end or the first damaged one; returns
+    // where the last intact record ends.
+    private static int parse(byte[] data, int offset, List<Entry> entries) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, data.length - offset));
+        int end = offset;
+        while (true) {
+            byte[] payload;
+            int expectedCrc;
+            try {
+                int length = in.readInt();
+                expectedCrc = in.readInt();
+                if (length < 0 || length > in.available()) break;
+                payload = new byte[length];
+                in.readFully(payload);
+            } catch (EOFException e) {
+                break;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != expectedCrc) break;
+            entries.add(decode(payload));
+            end += 8 + payload.length;
+        }
+        return end;
+    }
+
+    private static Entry decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int kind = in.readUnsignedByte();
+        long number = in.readLong();
+        long timestamp = in.readLong();
+        String title = new String(readBytes(in), StandardCharsets.UTF_8);
+        switch (kind) {
+            case KIND_KEYFRAME:
+                return new Entry(true, number, timestamp, title, 0, 0, new String(readBytes(in), StandardCharsets.UTF_8));
+            case KIND_DEFLATED_KEYFRAME:
+                byte[] text = NoteCodec.inflate(readBytes(in));
+                return new Entry(true, number, timestamp, title, 0, 0, new String(text, StandardCharsets.UTF_8));
+            case KIND_DELTA:
+                int prefix = in.readInt();
+                int suffix = in.readInt();
+                String inserted = new String(readBytes(in), StandardCharsets.UTF_8);
+                return new Entry(false, number, timestamp, title, prefix, suffix, inserted);
+            default:
+                throw new IOException("Unknown revision kind " + kind);
+        }
+    }
+
+    private boolean isDue(List<Entry> entries, long now) {
+        int limit = maxRevisions;
+        if (entries.size() > limit + Math.max(1, limit / 4)) return true;
+        return entries.size() > 1 && entries.get(0).timestamp < now - maxAgeMillis;
+    }
+
+    // Synced before the rename, so a crash leaves either the old history or the new one.
+    private void replaceFile(File target, byte[] data) throws IOException {
+        File temp = new File(dir, target.getName() + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + target);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new IOException("Damaged revision");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return readAll(in, (int) file.length());
+        }
+    }
+
+    private static byte[] readAll(InputStream in, int sizeHint) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, sizeHint));
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,350 @@
+package com.example.fortnote;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Every note's summary in one file beside the store ({@code notes.index}), so
+ * the note list is opened by reading that file instead of every record.
+ * Summaries in the index carry no preview; previews stay in the records and are
+ * read a page at a time as rows are shown.
+ *
+ * The file is a log of groups, {@code length | crc32 | flags | count | ops}.
+ * The first group is a snapshot of every summary; each later one puts or
+ * removes notes, and is synced before the store write it describes. A group
+ * whose write fails is followed by a correction read back from the records, so
+ * only the last group can describe a write cut short by a crash, and only its
+ * notes are checked against their records on open. A missing or unreadable
+ * index is rebuilt from every record, and the log is rewritten as a snapshot
+ * once it grows well past one.
+ */
+public class NoteIndex {
+
+    /** The records the index is rebuilt and checked from. */
+    public interface Source {
+        Collection<String> ids();
+        NoteSummary read(String id);
+    }
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int FLAG_SNAPSHOT = 1;
+    // Read back from the records rather than logged ahead of a write.
+    private static final int FLAG_CHECKED = 2;
+    static final int MIN_COMPACT_OPS = 64;
+
+    private static final class Group {
+        final int flags;
+        final List<NoteSummary> puts = new ArrayList<>();
+        final List<String> removes = new ArrayList<>();
+
+        Group(int flags) {
+            this.flags = flags;
+        }
+
+        Set<String> ids() {
+            Set<String> ids = new LinkedHashSet<>(removes);
+            for (NoteSummary summary : puts) ids.add(summary.getId());
+            return ids;
+        }
+    }
+
+    private final File file;
+    private final Source source;
+    // Null until first asked for.
+    private Map<String, NoteSummary> entries;
+    // Operations in the file, for deciding when to compact.
+    private int ops;
+
+    public NoteIndex(File file, Source source) {
+        this.file = file;
+        this.source = source;
+    }
+
+    /** Every summary in the index, without previews. */
+    public synchronized List<NoteSummary> entries() {
+        if (entries == null) load();
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Records notes about to be written or deleted. Until the index has been
+     * loaded, nothing is logged to an index that does not exist yet: it will be
+     * built from the records anyway.
+     */
+    public synchronized void log(Collection<NoteSummary> puts, Collection<String> removes) throws IOException {
+        if (entries == null && !file.exists()) return;
+        Group group = new Group(0);
+        for (NoteSummary summary : puts) group.puts.add(withoutPreview(summary));
+        group.removes.addAll(removes);
+        try {
+            append(group);
+        } catch (IOException e) {
+            // The write will not happen, but the group is already applied.
+            entries = null;
+            throw e;
+        }
+    }
+
+    /** Called once the logged write is in the store; compacts the log if it is due. */
+    public synchronized void committed() {
+        if (entries == null || ops <= 2 * entries.size() + MIN_COMPACT_OPS) return;
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            e.printStackTrace();
+            invalidate();
+        }
+    }
+
+    /** Called when a logged write failed: the notes are read back from their records. */
+    public synchronized void failed(Collection<String> ids) {
+        try {
+            append(readBack(ids));
+        } catch (IOException e) {
+            e.printStackTrace();
+            invalidate();
+        }
+    }
+
+    /** Drops the file and what was loaded from it; the index is rebuilt when next needed. */
+    public synchronized void invalidate() {
+        file.delete();
+        entries = null;
+    }
+
+    private void load() {
+        entries = new HashMap<>();
+        ops = 0;
+        Group last = null;
+        long end = 0;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                byte[] payload;
+                while ((payload = readGroup(in, file.length() - end)) != null) {
+                    Group group = decode(payload);
+                    if (last == null && (group.flags & FLAG_SNAPSHOT) == 0) break;
+                    apply(group);
+                    end += 8 + payload.length;
+                    last = group;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                last = null;
+            }
+        }
+
+        // Without a readable snapshot to start from, the index is rebuilt.
+        if (last == null) {
+            rebuild();
+            return;
+        }
+        try {
+            // A group torn by a crash is cut off, so later groups are not appended after it.
+            if (end < file.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(end);
+                }
+            }
+            if ((last.flags & FLAG_CHECKED) == 0) check(last);
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+        }
+    }
+
+    // The last logged group may describe a write that never happened.
+    private void check(Group last) throws IOException {
+        Group correction = new Group(FLAG_CHECKED);
+        for (String id : last.ids()) {
+            NoteSummary stored = source.read(id);
+            NoteSummary indexed = entries.get(id);
+            if (stored == null && indexed != null) {
+                correction.removes.add(id);
+            } else if (stored != null && !same(stored, indexed)) {
+                correction.puts.add(withoutPreview(stored));
+            }
+        }
+        if (!correction.puts.isEmpty() || !correction.removes.isEmpty()) append(correction);
+    }
+
+    private void rebuild() {
+        entries = new HashMap<>();
+        for (String id : source.ids()) {
+            NoteSummary summary = source.read(id);
+            if (summary != null) entries.put(id, withoutPreview(summary));
+        }
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+        }
+    }
+
+    private Group readBack(Collection<String> ids) {
+        Group group = new Group(FLAG_CHECKED);
+        for (String id : ids) {
+            NoteSummary summary = source.read(id);
+            if (summary == null) {
+                group.removes.add(id);
+            } else {
+                group.puts.add(withoutPreview(summary));
+            }
+        }
+        return group;
+    }
+
+    private void apply(Group group) {
+        if ((group.flags & FLAG_SNAPSHOT) != 0) {
+            entries.clear();
+            ops = 0;
+        }
+        for (NoteSummary summary : group.puts) entries.put(summary.getId(), summary);
+        for (String id : group.removes) entries.remove(id);
+        ops += group.puts.size() + group.removes.size();
+    }
+
+    // An index that was loaded but whose file is gone is written out whole again
+    // first, so the group stays last and is checked if its write never happens.
+    private void append(Group group) throws IOException {
+        if (entries != null && !file.exists()) writeSnapshot();
+        if (entries != null) apply(group);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            writeGroup(out, encode(group));
+            out.getFD().sync();
+        } catch (IOException e) {
+            // A half-written group would hide every group after it.
+            file.delete();
+            throw e;
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        Group snapshot = new Group(FLAG_SNAPSHOT | FLAG_CHECKED);
+        snapshot.puts.addAll(entries.values());
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            writeGroup(out, encode(snapshot));
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+        ops = entries.size();
+    }
+
+    private static void writeGroup(FileOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(payload.length);
+        data.writeInt((int) crc.getValue());
+        data.write(payload);
+        data.flush();
+    }
+
+    // Null at the end of the file or at a torn or corrupt group.
+    private static byte[] readGroup(DataInputStream in, long remaining) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length < 0 || length > remaining - 8) return null;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            CRC32 check = new CRC32();
+            check.update(payload);
+            return (int) check.getValue() == crc ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encode(Group group) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 64 * (group.puts.size() + group.removes.size()));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(group.flags);
+        out.writeInt(group.puts.size() + group.removes.size());
+        for (NoteSummary summary : group.puts) {
+            out.writeByte(OP_PUT);
+            writeString(out, summary.getId());
+            writeString(out, summary.getTitle());
+            out.writeLong(summary.getTimestamp());
+            out.writeLong(summary.getCreationTimestamp());
+            out.writeBoolean(summary.isLocked());
+            out.writeInt(summary.getPlaintextLength());
+        }
+        for (String id : group.removes) {
+            out.writeByte(OP_REMOVE);
+            writeString(out, id);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Group decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        Group group = new Group(in.readUnsignedByte());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int op = in.readUnsignedByte();
+            String id = readString(in);
+            if (op == OP_REMOVE) {
+                group.removes.add(id);
+            } else if (op == OP_PUT) {
+                group.puts.add(new NoteSummary(id, readString(in), in.readLong(), in.readLong(),
+                        in.readBoolean(), in.readInt(), null));
+            } else {
+                throw new IOException("Bad index op " + op);
+            }
+        }
+        return group;
+    }
+
+    private static NoteSummary withoutPreview(NoteSummary summary) {
+        if (summary.getPreview() == null) return summary;
+        return new NoteSummary(summary.getId(), summary.getTitle(), summary.getTimestamp(),
+                summary.getCreationTimestamp(), summary.isLocked(), summary.getPlaintextLength(), null);
+    }
+
+    private static boolean same(NoteSummary a, NoteSummary b) {
+        return b != null && a.getId().equals(b.getId()) && Objects.equals(a.getTitle(), b.getTitle())
+                && a.getTimestamp() == b.getTimestamp() && a.getCreationTimestamp() == b.getCreationTimestamp()
+                && a.isLocked() == b.isLocked() && a.getPlaintextLength() == b.getPlaintextLength();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) throw new IOException("Bad index string");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
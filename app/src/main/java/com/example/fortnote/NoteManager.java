@@ -1,189 +1,1072 @@
 package com.example.fortnote;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
 import android.text.Html;
+import android.text.Spanned;
 import android.util.Base64;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Entry point for reading and changing notes. The plain methods block and must
+ * not be called on the main thread; the {@code ...Async} variants run on
+ * background executors and deliver their result on the main thread.
+ */
 public class NoteManager {
 
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    public interface ProgressListener {
+        void onProgress(int done, int total);
+    }
+
+    // Returns the changed note, or null to leave the note as it is.
+    private interface NoteTransform {
+        Note apply(Note note);
+    }
+
     private static final String PREFS_NAME = "FortnotePrefs";
     private static final String NOTES_KEY = "notes";
-    private SharedPreferences prefs;
+    private static final String NOTES_DIR = "notes";
+    private static final String DRAFTS_DIR = "drafts";
+    private static final String KDF_ITERATIONS_KEY = "kdfIterations";
+    private static final String KEYSTORE_KEYS_KEY = "keystoreKeys";
+    private static final String KEYS_DIR = "keys";
+    private static final String KEYSTORE_ALIAS = "fortnote-note-keys";
+    private static final String REKEY_ON_UNLOCK_KEY = "rekeyOnUnlock";
+    private static final String HISTORY_DIR = "history";
+    private static final String HISTORY_REVISIONS_KEY = "historyRevisions";
+    private static final String HISTORY_AGE_KEY = "historyAgeMillis";
+
+    private static final int SEARCH_LIMIT = 200;
+    static final int PREVIEW_LENGTH = 200;
+    // A draft journal is folded into the store even while the editor is open once it
+    // outgrows this much plus a few copies of the draft, so long notes are not
+    // rewritten on every autosave.
+    private static final long JOURNAL_COMPACT_BYTES = 64 * 1024;
+    private static final int JOURNAL_COMPACT_DRAFTS = 4;
+    // How long deriving a password key may take on this device.
+    private static final long TARGET_KDF_MILLIS = 500;
+    // Decrypted views stay readable this long after the password was entered.
+    private static final long PEEK_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
+    private static final int MAX_PEEKED_NOTES = 8;
+    private static final int DEFAULT_HISTORY_REVISIONS = 50;
+    private static final long DEFAULT_HISTORY_AGE_MS = TimeUnit.DAYS.toMillis(90);
+
+    private static NoteRepository sharedRepository;
+    private static DraftJournal sharedJournal;
+    private static NoteHistory sharedHistory;
+    private static Future<SearchIndex> searchIndex;
+    private static volatile boolean rekeyOnUnlock;
+    private static final PeekCache PEEK_CACHE =
+            new PeekCache(PEEK_TIMEOUT_MS, MAX_PEEKED_NOTES, () -> System.nanoTime() / 1_000_000);
+
+    // Reads and crypto share a small pool; writes go through one thread so they
+    // land in the order they were issued (e.g. a save followed by a lock).
+    private static final ExecutorService READ_EXECUTOR = newReadExecutor();
+    private static final ExecutorService WRITE_EXECUTOR =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "fortnote-write"));
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    // Bulk lock/unlock fans the per-note crypto out over every core.
+    private static final ExecutorService CRYPTO_EXECUTOR = newCryptoExecutor();
+
+    private final NoteRepository repository;
+    private final DraftJournal journal;
+    private final NoteHistory history;
+    private final Set<BackgroundTask<?>> pending = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Map<NoteRepository.Listener, NoteRepository.Listener> mainThreadListeners = new HashMap<>();
 
     public NoteManager(Context context) {
-        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        repository = getRepository(context.getApplicationContext());
+        journal = sharedJournal;
+        history = sharedHistory;
+    }
+
+    // One repository per process, so every screen shares the same loaded notes.
+    private static synchronized NoteRepository getRepository(Context context) {
+        if (sharedRepository == null) {
+            // Debuggable builds record timings and show up in Perfetto; release builds skip it all.
+            if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+                Perf.setSink(TRACE_SINK);
+                Perf.setEnabled(true);
+            }
+            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            NoteStore store = new NoteStore(new File(context.getFilesDir(), NOTES_DIR));
+            migrateLegacyNotes(store, prefs);
+            configureKdf(prefs);
+            if (prefs.getBoolean(KEYSTORE_KEYS_KEY, false)) {
+                EncryptionManager.setKeySource(new KeystoreKeySource(KEYSTORE_ALIAS), keysDir(context));
+            }
+            rekeyOnUnlock = prefs.getBoolean(REKEY_ON_UNLOCK_KEY, false);
+            sharedRepository = new NoteRepository(store);
+            sharedRepository.addListener(PEEK_INVALIDATOR);
+            sharedJournal = new DraftJournal(new File(context.getFilesDir(), DRAFTS_DIR));
+            sharedHistory = new NoteHistory(new File(context.getFilesDir(), HISTORY_DIR),
+                    prefs.getInt(HISTORY_REVISIONS_KEY, DEFAULT_HISTORY_REVISIONS),
+                    prefs.getLong(HISTORY_AGE_KEY, DEFAULT_HISTORY_AGE_MS));
+            sharedRepository.addListener(sharedHistory.recorder(WRITE_EXECUTOR));
+            context.registerComponentCallbacks(KEY_CACHE_TRIMMER);
+            recoverDrafts(sharedRepository, sharedJournal);
+            WRITE_EXECUTOR.execute(() -> sharedHistory.compactAll(System.currentTimeMillis()));
+        }
+        return sharedRepository;
+    }
+
+    private static final Perf.Sink TRACE_SINK = new Perf.Sink() {
+        @Override public void beginSection(String name) { Trace.beginSection(name); }
+        @Override public void endSection() { Trace.endSection(); }
+    };
+
+    // A decrypted view never outlives a change to its note.
+    private static final NoteRepository.Listener PEEK_INVALIDATOR = new NoteRepository.Listener() {
+        @Override public void onNoteInserted(Note note) { PEEK_CACHE.invalidate(note.getId()); }
+        @Override public void onNoteUpdated(Note note) { PEEK_CACHE.invalidate(note.getId()); }
+        @Override public void onNoteRemoved(String id) { PEEK_CACHE.invalidate(id); }
+    };
+
+    // Cached session keys and decrypted views go first when the system needs memory back.
+    private static final ComponentCallbacks2 KEY_CACHE_TRIMMER = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_BACKGROUND) {
+                EncryptionManager.clearKeyCache();
+                PEEK_CACHE.clear();
+            } else {
+                EncryptionManager.trimKeyCache();
+                PEEK_CACHE.evictExpired();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            EncryptionManager.clearKeyCache();
+            PEEK_CACHE.clear();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {}
+    };
+
+    private static ExecutorService newReadExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, "fortnote-read"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ExecutorService newCryptoExecutor() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(cores, cores, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, "fortnote-crypto"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // The KDF cost is measured once per install, in the background, and never
+    // set below the cost older builds used. Notes locked before it is known use
+    // the default; either way the cost is recorded in each note.
+    private static void configureKdf(SharedPreferences prefs) {
+        int saved = prefs.getInt(KDF_ITERATIONS_KEY, 0);
+        if (saved > 0) {
+            EncryptionManager.setIterations(saved);
+            return;
+        }
+
+        CRYPTO_EXECUTOR.execute(() -> {
+            try {
+                int iterations = Math.max(EncryptionManager.LEGACY_ITERATIONS,
+                        EncryptionManager.calibrateIterations(TARGET_KDF_MILLIS));
+                EncryptionManager.setIterations(iterations);
+                prefs.edit().putInt(KDF_ITERATIONS_KEY, iterations).apply();
+            } catch (GeneralSecurityException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Whether password keys are kept wrapped by a Keystore key, so unlocking a
+     * note again skips the KDF. Off by default: it means anyone who can run code
+     * as this app can open notes without the password, so turning it off deletes
+     * every wrapped key and the Keystore key itself.
+     */
+    public static boolean isKeystoreKeys(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getBoolean(KEYSTORE_KEYS_KEY, false);
+    }
+
+    public static void setKeystoreKeys(Context context, boolean enabled) {
+        Context app = context.getApplicationContext();
+        app.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(KEYSTORE_KEYS_KEY, enabled).apply();
+        KeystoreKeySource source = new KeystoreKeySource(KEYSTORE_ALIAS);
+        if (enabled) {
+            EncryptionManager.setKeySource(source, keysDir(app));
+            return;
+        }
+
+        EncryptionManager.setKeySource(null, null);
+        EncryptionManager.forgetWrappedKeys(keysDir(app));
+        try {
+            source.delete();
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Whether viewing a locked note also re-encrypts it in the background when
+     * it was locked in an older layout or at another KDF cost. Off by default,
+     * since it turns a read into a store write.
+     */
+    public static void setRekeyOnUnlock(Context context, boolean enabled) {
+        rekeyOnUnlock = enabled;
+        context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(REKEY_ON_UNLOCK_KEY, enabled).apply();
+    }
+
+
+    /**
+     * How many revisions of each note are kept, and for how long. Revisions past
+     * either limit are dropped in the background.
+     */
+    public static void setHistoryRetention(Context context, int maxRevisions, long maxAgeMillis) {
+        Context app = context.getApplicationContext();
+        app.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(HISTORY_REVISIONS_KEY, maxRevisions).putLong(HISTORY_AGE_KEY, maxAgeMillis).apply();
+        getRepository(app);
+        sharedHistory.setRetention(maxRevisions, maxAgeMillis);
+        WRITE_EXECUTOR.execute(() -> sharedHistory.compactAll(System.currentTimeMillis()));
+    }
+
+
+    private static File keysDir(Context context) {
+        return new File(context.getFilesDir(), KEYS_DIR);
+    }
+
+
+    // Older builds kept every note in one JSON array under NOTES_KEY. Move them
+    // into the per-note store once, and only drop the key after they are written.
+    private static void migrateLegacyNotes(NoteStore store, SharedPreferences prefs) {
+        String notesJson = prefs.getString(NOTES_KEY, null);
+        if (notesJson == null) return;
+
+        try {
+            store.importJson(notesJson);
+            prefs.edit().remove(NOTES_KEY).commit();
+        } catch (JSONException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    // Drafts still journaled at startup were never committed, e.g. the process
+    // died with the editor open. They are queued ahead of any other write.
+    private static void recoverDrafts(NoteRepository repository, DraftJournal journal) {
+        WRITE_EXECUTOR.execute(() -> {
+            for (String id : journal.ids()) commitDraft(repository, journal, id);
+        });
     }
 
 
     public void saveNote(String title, String content) {
-        List<Note> notes = getAllNotes();
-        String id = UUID.randomUUID().toString();
+        insertNote(UUID.randomUUID().toString(), title, content);
+    }
+
+
+    private void insertNote(String id, String title, String content) {
+        long start = Perf.begin(Perf.NOTES_SAVE);
         long now = System.currentTimeMillis();
 
         Note newNote = new Note(id, title, content, now, now, false);
+        describe(newNote);
 
-        int ptLen = Html.fromHtml(content).toString().length();
-        newNote.setPlaintextLength(ptLen);
-
-        notes.add(0, newNote);
-        saveAllNotes(notes);
+        try {
+            repository.insert(newNote);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            Perf.end(Perf.NOTES_SAVE, start);
+        }
     }
 
  
     public void updateNote(String id, String title, String content) {
-        List<Note> notes = getAllNotes();
+        NoteSummary existing = repository.getSummary(id);
+        if (existing == null) return;
+
+        long start = Perf.begin(Perf.NOTES_SAVE);
+        Note note = existing.withContent(content);
+        note.setTitle(title);
+        note.setTimestamp(System.currentTimeMillis());
+        describe(note);
+
+        writeNote(note);
+        Perf.end(Perf.NOTES_SAVE, start);
+    }
+
+
+    /**
+     * Appends the editor's current draft to the note's journal. The journal is
+     * folded into the store once it grows past {@link #JOURNAL_COMPACT_BYTES} and
+     * {@link #JOURNAL_COMPACT_DRAFTS} times the draft's size.
+     */
+    public void saveDraft(String id, String title, String content) {
+        try {
+            long size = journal.append(id, title, content, System.currentTimeMillis());
+            if (size >= JOURNAL_COMPACT_BYTES + (long) JOURNAL_COMPACT_DRAFTS * content.length()) commitDraft(id);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        for (Note note : notes) {
-            if (note.getId().equals(id)) {
-                note.setTitle(title);
-                note.setContent(content);
-                note.setTimestamp(System.currentTimeMillis());
 
-                int ptLen = Html.fromHtml(content).toString().length();
-                note.setPlaintextLength(ptLen);
+    /** Writes the newest journaled draft of the note to the store and drops the journal. */
+    public void commitDraft(String id) {
+        commitDraft(repository, journal, id);
+    }
+
 
-                break;
+    // A draft never overwrites a locked note, and a note that was never saved
+    // is not created from an empty draft. If the store write fails the journal
+    // is kept, so the draft is retried on the next commit or at startup.
+    private static void commitDraft(NoteRepository repository, DraftJournal journal, String id) {
+        DraftJournal.Draft draft = journal.recover(id);
+        NoteSummary existing = repository.getSummary(id);
+        if (draft == null || (existing != null && existing.isLocked())) {
+            journal.discard(id);
+            return;
+        }
+
+        Note note;
+        if (existing == null) {
+            note = new Note(id, draft.title, draft.content, draft.timestamp, draft.timestamp, false);
+        } else {
+            note = existing.withContent(draft.content);
+            note.setTitle(draft.title);
+            note.setTimestamp(draft.timestamp);
+        }
+        describe(note);
+
+        try {
+            if (existing != null) {
+                repository.update(note);
+            } else if (!draft.title.isEmpty() || !note.getPreview().isEmpty()) {
+                repository.insert(note);
             }
+            journal.discard(id);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+    }
+
 
-        saveAllNotes(notes);
+    /**
+     * Streams every note into {@code out} as a {@link NoteBackup} archive and
+     * closes it, encrypted under {@code password} unless that is null. Returns
+     * how many notes were written.
+     */
+    public int backup(OutputStream out, String password) throws IOException, GeneralSecurityException {
+        return NoteBackup.write(repository, out, password);
+    }
+
+
+    /** Merges a {@link NoteBackup} archive into the notes, keeping whichever copy of each was edited last. */
+    public NoteBackup.Result restore(InputStream in, String password) throws IOException, GeneralSecurityException {
+        return NoteBackup.restore(repository, in, password);
+    }
+
+
+    /** Commit latency and bytes written by the note store since the process started. */
+    public NoteStore.Metrics getStoreMetrics() {
+        return repository.getStoreMetrics();
     }
 
 
     public void deleteNote(String id) {
-        List<Note> notes = getAllNotes();
-        notes.removeIf(note -> note.getId().equals(id));
-        saveAllNotes(notes);
+        journal.discard(id);
+        repository.remove(id);
+    }
+
+
+    public void deleteNotes(Collection<String> ids) {
+        for (String id : ids) journal.discard(id);
+        repository.removeAll(ids);
     }
 
  
-    public List<Note> getAllNotes() {
-        List<Note> notes = new ArrayList<>();
-        String notesJson = prefs.getString(NOTES_KEY, "[]");
+    public Note getNote(String id) {
+        return repository.get(id);
+    }
 
-        try {
-            JSONArray jsonArray = new JSONArray(notesJson);
 
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONObject obj = jsonArray.getJSONObject(i);
+    /**
+     * Every note in the given {@link NoteRepository} order, read off its index without
+     * sorting. Summaries come from the store's index without previews, which
+     * {@link NotePager} reads from the note records a page at a time.
+     */
+    public List<NoteSummary> getNoteSummaries(int order) {
+        return getNoteSummaries(order, 0, Integer.MAX_VALUE);
+    }
 
-                String id = obj.getString("id");
-                String title = obj.getString("title");
-                String content = obj.getString("content");
 
-                long timestamp = obj.getLong("timestamp");
-                long creationTimestamp = obj.optLong("creationTimestamp", timestamp);
+    public List<NoteSummary> getNoteSummaries(int order, int start, int count) {
+        long section = Perf.begin(Perf.NOTES_LIST);
+        try {
+            return repository.getSummaries(order, start, count);
+        } finally {
+            Perf.end(Perf.NOTES_LIST, section);
+        }
+    }
 
-                boolean locked = obj.optBoolean("locked", false);
 
-                int plaintextLength = obj.optInt("plaintextLength", 0);
+    /**
+     * Stored previews of the given unlocked notes, read from their records.
+     * Notes saved before previews were stored get one now, written back so this
+     * happens only once. Runs on the write thread when called through
+     * {@link #getPreviewsAsync}, so the backfill cannot overwrite a newer edit.
+     */
+    public Map<String, String> getPreviews(List<String> ids) {
+        Map<String, String> previews = new HashMap<>();
+        List<Note> backfilled = new ArrayList<>();
+        for (String id : ids) {
+            NoteSummary summary = repository.getSummary(id);
+            if (summary != null && !summary.isLocked() && summary.getPreview() == null) {
+                summary = repository.readSummary(id);
+            }
+            if (summary == null || summary.isLocked()) continue;
+            if (summary.getPreview() != null) {
+                previews.put(id, summary.getPreview());
+                continue;
+            }
 
-                Note note = new Note(id, title, content, timestamp, creationTimestamp, locked);
-                note.setPlaintextLength(plaintextLength);
+            Note note = repository.get(id);
+            if (note == null) continue;
+            describe(note);
+            backfilled.add(note);
+            previews.put(id, note.getPreview());
+        }
 
-                notes.add(note);
+        if (!backfilled.isEmpty()) {
+            try {
+                repository.updateAll(backfilled);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        }
+        return previews;
+    }
 
-        } catch (JSONException e) {
-            e.printStackTrace();
+
+    // The only place note HTML is parsed for the list: once per content change,
+    // on a background thread, with the result stored alongside the note.
+    private static void describe(Note note) {
+        String text = plainText(note.getContent());
+        note.setPlaintextLength(text.length());
+
+        String trimmed = text.trim();
+        note.setPreview(trimmed.length() > PREVIEW_LENGTH ? trimmed.substring(0, PREVIEW_LENGTH) : trimmed);
+    }
+
+
+    private static String plainText(String html) {
+        long start = Perf.begin(Perf.HTML_PARSE);
+        String text = Html.fromHtml(html).toString();
+        Perf.end(Perf.HTML_PARSE, start);
+        Perf.count(Perf.NOTES_PARSED, 1);
+        return text;
+    }
+
+
+    /**
+     * Notes matching every word of the query as a prefix, best match first.
+     * Locked notes never match.
+     */
+    public List<NoteSummary> search(String query) {
+        List<NoteSummary> results = new ArrayList<>();
+        SearchIndex index;
+        try {
+            index = getSearchIndex(repository).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return results;
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return results;
         }
 
-        return notes;
+        for (String id : index.search(query, SEARCH_LIMIT)) {
+            NoteSummary summary = repository.getSummary(id);
+            if (summary != null) results.add(summary);
+        }
+        return results;
     }
 
-  
-    private void saveAllNotes(List<Note> notes) {
 
-        JSONArray jsonArray = new JSONArray();
+    // The index is built on its own thread rather than the read pool, whose
+    // threads may all be searches waiting for it, and never on the write thread.
+    private static synchronized Future<SearchIndex> getSearchIndex(NoteRepository repository) {
+        if (searchIndex == null) {
+            FutureTask<SearchIndex> build = new FutureTask<>(() -> buildSearchIndex(repository));
+            Thread thread = new Thread(build, "fortnote-index");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+            searchIndex = build;
+        }
+        return searchIndex;
+    }
 
-        for (Note note : notes) {
-            try {
-                JSONObject obj = new JSONObject();
 
-                obj.put("id", note.getId());
-                obj.put("title", note.getTitle());
-                obj.put("content", note.getContent());
-                obj.put("timestamp", note.getTimestamp());
-                obj.put("creationTimestamp", note.getCreationTimestamp());
-                obj.put("locked", note.isLocked());
+    private static SearchIndex buildSearchIndex(NoteRepository repository) {
+        // Follow changes before reading the notes, so no save is missed; the ones
+        // made while building are replayed over the finished index.
+        SearchIndexer indexer = new SearchIndexer();
+        repository.addListener(indexer);
 
-                obj.put("plaintextLength", note.getPlaintextLength());
+        SearchIndex index = new SearchIndex();
+        for (NoteSummary summary : repository.getSummaries()) {
+            if (summary.isLocked()) continue;
+            Note note = repository.get(summary.getId());
+            if (note != null) indexNote(index, note);
+        }
+        indexer.start(index);
+        return index;
+    }
 
-                jsonArray.put(obj);
 
-            } catch (JSONException e) {
-                e.printStackTrace();
+    // Queues changes until the index is built, then applies them straight to it.
+    private static final class SearchIndexer implements NoteRepository.Listener {
+        private SearchIndex index;
+        private final List<Object> queued = new ArrayList<>();
+
+        @Override public synchronized void onNoteInserted(Note note) { apply(note); }
+        @Override public synchronized void onNoteUpdated(Note note) { apply(note); }
+        @Override public synchronized void onNoteRemoved(String id) { apply(id); }
+
+        synchronized void start(SearchIndex index) {
+            this.index = index;
+            for (Object change : queued) apply(change);
+            queued.clear();
+        }
+
+        // A change is the saved Note, or the id of a removed one.
+        private void apply(Object change) {
+            if (index == null) {
+                queued.add(change);
+            } else if (change instanceof Note) {
+                indexNote(index, (Note) change);
+            } else {
+                index.remove((String) change);
             }
         }
+    }
+
+
+    // Locking a note takes it out of the index, title and all.
+    private static void indexNote(SearchIndex index, Note note) {
+        if (note.isLocked()) {
+            index.remove(note.getId());
+        } else {
+            String text = plainText(note.getContent());
+            index.put(note.getId(), note.getTitle(), text, note.getTimestamp());
+        }
+    }
+
 
-        prefs.edit().putString(NOTES_KEY, jsonArray.toString()).apply();
+    private boolean writeNote(Note note) {
+        try {
+            repository.update(note);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
 
     public boolean encryptNote(String id, String password) {
-        List<Note> notes = getAllNotes();
+        Note existing = repository.get(id);
+        if (existing == null) return false;
 
-        for (Note note : notes) {
-            if (note.getId().equals(id)) {
+        if (existing.isLocked()) return true; 
 
-                if (note.isLocked()) return true; 
+        try {
+            Note note = existing.copy();
+            String encrypted = EncryptionManager.encrypt(note.getContent(), password);
+            note.setContent(encrypted);
+            note.setLocked(true);
+            note.setPreview(null);
 
-                try {
-                    String encrypted = EncryptionManager.encrypt(note.getContent(), password);
-                    note.setContent(encrypted);
-                    note.setLocked(true);
+            // Sealed first: a note that is saved locked with a readable history loses it.
+            sealHistory(id, password);
+            if (writeNote(note)) return true;
+            unsealHistory(id, password);
+            return false;
 
-                    saveAllNotes(notes);
-                    return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return false;
-                }
+
+    public String decryptNote(String id, String password) {
+        Note existing = repository.get(id);
+        if (existing == null) return null;
+
+        if (!existing.isLocked()) {
+            return existing.getContent(); 
+        }
+
+        try {
+            Note note = existing.copy();
+            String decrypted = EncryptionManager.decrypt(note.getContent(), password);
+            note.setContent(decrypted);
+            note.setLocked(false);
+            describe(note);
+
+            if (writeNote(note)) unsealHistory(id, password);
+
+            return decrypted;
+
+        } catch (Exception e) {
+            return null; 
+        }
+    }
+
+
+    /**
+     * Decrypts a locked note for viewing only: the note stays locked, nothing is
+     * written and nothing has to be encrypted again afterwards. The content is
+     * kept for {@link #getPeekedContent} until it expires or the note changes.
+     * Returns null if the password does not open the note.
+     */
+    public String peekNote(String id, String password) {
+        long stamp = PEEK_CACHE.stamp();
+        Note existing = repository.get(id);
+        if (existing == null) return null;
+        if (!existing.isLocked()) return existing.getContent();
+
+        String decrypted;
+        try {
+            decrypted = EncryptionManager.decrypt(existing.getContent(), password);
+        } catch (Exception e) {
+            return null;
+        }
+        PEEK_CACHE.put(id, decrypted, stamp);
+
+        // Re-keying rewrites the note, which drops the view; the content itself is unchanged.
+        if (rekeyOnUnlock && !EncryptionManager.isCurrent(existing.getContent())) {
+            WRITE_EXECUTOR.execute(() -> {
+                if (rekeyNote(id, password)) PEEK_CACHE.put(id, decrypted, PEEK_CACHE.stamp());
+            });
+        }
+        return decrypted;
+    }
+
+
+    /** Content of a locked note peeked at in the last few minutes, or null. Never blocks. */
+    public String getPeekedContent(String id) {
+        return PEEK_CACHE.get(id);
+    }
+
+
+    /**
+     * Re-encrypts a locked note in the current layout and at the current KDF
+     * cost, leaving it locked. Returns false if the password does not open it.
+     * The note's old key is normally still cached from opening it, so this
+     * costs at most one KDF run per session, for the new cost.
+     */
+    public boolean rekeyNote(String id, String password) {
+        Note existing = repository.get(id);
+        if (existing == null || !existing.isLocked()) return false;
+        if (EncryptionManager.isCurrent(existing.getContent())) return true;
+
+        try {
+            Note note = existing.copy();
+            String plainText = EncryptionManager.decrypt(existing.getContent(), password);
+            note.setContent(EncryptionManager.encrypt(plainText, password));
+            return writeNote(note);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Encrypts every listed note that is not locked yet, in parallel, and commits
+     * them all in one store transaction. Returns how many notes were locked.
+     */
+    public int encryptNotes(Collection<String> ids, String password, ProgressListener progress) {
+        try {
+            EncryptionManager.prepareSession(password);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 0;
+        }
+
+        // Histories are sealed before the locked notes are saved, since saving one
+        // locked drops a readable history; any that end up not committed are unsealed.
+        List<String> sealed = Collections.synchronizedList(new ArrayList<>());
+        List<Note> locked = transformNotes(ids, progress, existing -> {
+            if (existing.isLocked()) return null;
+            try {
+                Note note = existing.copy();
+                note.setContent(EncryptionManager.encrypt(note.getContent(), password));
+                note.setLocked(true);
+                note.setPreview(null);
+                sealHistory(note.getId(), password);
+                sealed.add(note.getId());
+                return note;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
             }
+        });
+        Set<String> committed = new HashSet<>();
+        for (Note note : locked) committed.add(note.getId());
+        for (String id : sealed) {
+            if (!committed.contains(id)) unsealHistory(id, password);
         }
+        return locked.size();
+    }
 
-        return false;
+
+    /**
+     * Decrypts every listed note the password opens, in parallel, and commits
+     * them all in one store transaction. Returns how many notes were unlocked.
+     */
+    public int decryptNotes(Collection<String> ids, String password, ProgressListener progress) {
+        List<Note> unlocked = transformNotes(ids, progress, existing -> {
+            if (!existing.isLocked()) return null;
+            try {
+                Note note = existing.copy();
+                String decrypted = EncryptionManager.decrypt(note.getContent(), password);
+                note.setContent(decrypted);
+                note.setLocked(false);
+                describe(note);
+                return note;
+            } catch (Exception e) {
+                return null;
+            }
+        });
+        // Only notes this call unlocked and committed.
+        for (Note note : unlocked) unsealHistory(note.getId(), password);
+        return unlocked.size();
     }
 
 
-    public String decryptNote(String id, String password) {
-        List<Note> notes = getAllNotes();
+    // A locked note's revisions are never left readable: if they cannot be
+    // sealed, they are dropped.
+    private void sealHistory(String id, String password) {
+        try {
+            history.seal(id, password);
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            history.discard(id);
+        }
+    }
 
-        for (Note note : notes) {
-            if (note.getId().equals(id)) {
 
-                if (!note.isLocked()) {
-                    return note.getContent(); 
-                }
+    private void unsealHistory(String id, String password) {
+        try {
+            history.unseal(id, password);
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+        }
+    }
 
-                try {
-                    String decrypted = EncryptionManager.decrypt(note.getContent(), password);
-                    note.setContent(decrypted);
-                    note.setLocked(false);
 
-                    int ptLen = Html.fromHtml(decrypted).toString().length();
-                    note.setPlaintextLength(ptLen);
+    /**
+     * Saved versions of the note, oldest first. A locked note's revisions are
+     * sealed and need its password; otherwise it may be null.
+     */
+    public List<NoteHistory.Revision> getRevisions(String id, String password)
+            throws IOException, GeneralSecurityException {
+        return history.list(id, password);
+    }
+
+
+    /** The note as it was at one of its revisions, or null if that revision is gone. */
+    public String getRevisionContent(String id, long number, String password)
+            throws IOException, GeneralSecurityException {
+        return history.content(id, number, password);
+    }
 
-                    saveAllNotes(notes);
 
-                    return decrypted;
+    // Returns the notes that were committed.
+    private List<Note> transformNotes(Collection<String> ids, ProgressListener progress, NoteTransform transform) {
+        int total = ids.size();
+        AtomicInteger done = new AtomicInteger();
+        List<Future<Note>> results = new ArrayList<>();
 
-                } catch (Exception e) {
-                    return null; 
+        for (String id : ids) {
+            results.add(CRYPTO_EXECUTOR.submit(() -> {
+                try {
+                    Note note = repository.get(id);
+                    return note == null ? null : transform.apply(note);
+                } finally {
+                    if (progress != null) progress.onProgress(done.incrementAndGet(), total);
                 }
+            }));
+        }
+
+        // A note whose transform failed is left as it was; the rest are still committed.
+        List<Note> changed = new ArrayList<>();
+        for (Future<Note> result : results) {
+            try {
+                Note note = result.get();
+                if (note != null) changed.add(note);
+            } catch (InterruptedException e) {
+                for (Future<Note> pending : results) pending.cancel(true);
+                Thread.currentThread().interrupt();
+                return Collections.emptyList();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
             }
         }
 
-        return null;
+        if (changed.isEmpty()) return changed;
+        try {
+            repository.updateAll(changed);
+            return changed;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+    }
+
+
+    /** Listeners added here are called on the main thread, whichever thread made the change. */
+    public void addListener(NoteRepository.Listener listener) {
+        NoteRepository.Listener wrapper = new NoteRepository.Listener() {
+            @Override public void onNoteInserted(Note note) { MAIN_HANDLER.post(() -> listener.onNoteInserted(note)); }
+            @Override public void onNoteUpdated(Note note) { MAIN_HANDLER.post(() -> listener.onNoteUpdated(note)); }
+            @Override public void onNoteRemoved(String id) { MAIN_HANDLER.post(() -> listener.onNoteRemoved(id)); }
+        };
+        mainThreadListeners.put(listener, wrapper);
+        repository.addListener(wrapper);
+    }
+
+
+    public void removeListener(NoteRepository.Listener listener) {
+        NoteRepository.Listener wrapper = mainThreadListeners.remove(listener);
+        if (wrapper != null) repository.removeListener(wrapper);
+    }
+
+
+    public Future<List<NoteSummary>> getNoteSummariesAsync(int order, Callback<List<NoteSummary>> callback) {
+        return read(() -> getNoteSummaries(order), callback);
+    }
+
+
+    public Future<Map<String, String>> getPreviewsAsync(List<String> ids, Callback<Map<String, String>> callback) {
+        return write(() -> getPreviews(ids), callback);
+    }
+
+
+    public Future<List<NoteSummary>> searchAsync(String query, Callback<List<NoteSummary>> callback) {
+        return read(() -> search(query), callback);
+    }
+
+
+    public Future<Note> getNoteAsync(String id, Callback<Note> callback) {
+        return read(() -> getNote(id), callback);
+    }
+
+
+    /** Like {@link #getNoteAsync}, but runs after every write already queued, e.g. a draft commit. */
+    public Future<Note> getNoteAfterWritesAsync(String id, Callback<Note> callback) {
+        return write(() -> getNote(id), callback);
+    }
+
+
+    public Future<Void> saveNoteAsync(String title, String content, Callback<Void> callback) {
+        return write(() -> {
+            saveNote(title, content);
+            return null;
+        }, callback);
+    }
+
+
+    public Future<Void> updateNoteAsync(String id, String title, String content, Callback<Void> callback) {
+        return write(() -> {
+            updateNote(id, title, content);
+            return null;
+        }, callback);
+    }
+
+
+    public Future<Void> deleteNoteAsync(String id, Callback<Void> callback) {
+        return write(() -> {
+            deleteNote(id);
+            return null;
+        }, callback);
+    }
+
+
+    /** Deletes every listed note as one queued write. */
+    public Future<Void> deleteNotesAsync(Collection<String> ids, Callback<Void> callback) {
+        List<String> snapshot = new ArrayList<>(ids);
+        return write(() -> {
+            deleteNotes(snapshot);
+            return null;
+        }, callback);
+    }
+
+
+    /** Saves the latest title and content, then encrypts the note, as one queued write. */
+    public Future<Boolean> lockNoteAsync(String id, String title, String content,
+                                         String password, Callback<Boolean> callback) {
+        return write(() -> {
+            journal.discard(id);
+            if (repository.getSummary(id) == null) insertNote(id, title, content);
+            else updateNote(id, title, content);
+            return encryptNote(id, password);
+        }, callback);
+    }
+
+
+    /** Journals a draft; pass a copy of the editor's text, as its HTML is built on the write thread. */
+    public Future<Void> saveDraftAsync(String id, String title, Spanned content, Callback<Void> callback) {
+        return write(() -> {
+            saveDraft(id, title, Html.toHtml(content));
+            return null;
+        }, callback);
+    }
+
+
+    public Future<Void> commitDraftAsync(String id, Callback<Void> callback) {
+        return write(() -> {
+            commitDraft(id);
+            return null;
+        }, callback);
+    }
+
+
+    // Both run on the write thread, so a backup is a consistent snapshot and a
+    // restore cannot interleave with an edit. A failure is reported as null.
+    public Future<Integer> backupAsync(OutputStream out, String password, Callback<Integer> callback) {
+        return write(() -> backup(out, password), callback);
+    }
+
+
+    public Future<NoteBackup.Result> restoreAsync(InputStream in, String password,
+                                                  Callback<NoteBackup.Result> callback) {
+        return write(() -> restore(in, password), callback);
+    }
+
+
+    public Future<List<NoteHistory.Revision>> getRevisionsAsync(String id, String password,
+                                                                Callback<List<NoteHistory.Revision>> callback) {
+        return read(() -> getRevisions(id, password), callback);
+    }
+
+
+    public Future<String> getRevisionContentAsync(String id, long number, String password,
+                                                  Callback<String> callback) {
+        return read(() -> getRevisionContent(id, number, password), callback);
+    }
+
+
+    public Future<String> peekNoteAsync(String id, String password, Callback<String> callback) {
+        return read(() -> peekNote(id, password), callback);
+    }
+
+
+    public Future<String> decryptNoteAsync(String id, String password, Callback<String> callback) {
+        return write(() -> decryptNote(id, password), callback);
+    }
+
+
+    public Future<Boolean> rekeyNoteAsync(String id, String password, Callback<Boolean> callback) {
+        return write(() -> rekeyNote(id, password), callback);
+    }
+
+
+    public Future<Integer> encryptNotesAsync(Collection<String> ids, String password,
+                                             ProgressListener progress, Callback<Integer> callback) {
+        List<String> snapshot = new ArrayList<>(ids);
+        return write(() -> encryptNotes(snapshot, password, onMainThread(progress)), callback);
+    }
+
+
+    public Future<Integer> decryptNotesAsync(Collection<String> ids, String password,
+                                             ProgressListener progress, Callback<Integer> callback) {
+        List<String> snapshot = new ArrayList<>(ids);
+        return write(() -> decryptNotes(snapshot, password, onMainThread(progress)), callback);
+    }
+
+
+    private static ProgressListener onMainThread(ProgressListener progress) {
+        if (progress == null) return null;
+        return (done, total) -> MAIN_HANDLER.post(() -> progress.onProgress(done, total));
+    }
+
+
+    /**
+     * Drops the callbacks of everything this instance started and cancels reads
+     * that have not run yet. Call from the owning activity's onDestroy.
+     */
+    public void cancelPending() {
+        for (BackgroundTask<?> task : pending) task.dispose();
+        pending.clear();
+    }
+
+
+    private <T> Future<T> read(Callable<T> work, Callback<T> callback) {
+        return submit(READ_EXECUTOR, work, callback, true);
+    }
+
+
+    private <T> Future<T> write(Callable<T> work, Callback<T> callback) {
+        return submit(WRITE_EXECUTOR, work, callback, false);
+    }
+
+
+    private <T> Future<T> submit(Executor executor, Callable<T> work,
+                                 Callback<T> callback, boolean cancellable) {
+        BackgroundTask<T> task = new BackgroundTask<>(work, callback, MAIN_HANDLER::post, cancellable);
+        pending.removeIf(BackgroundTask::isFinished);
+        pending.add(task);
+        executor.execute(task);
+        return task;
     }
 }
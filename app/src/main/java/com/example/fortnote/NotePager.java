@@ -0,0 +1,86 @@
+package com.example.fortnote;
+
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Preview source for {@link NoteAdapter}. Listed summaries come from the store's
+ * index and carry no preview, so previews are read from the note records a page
+ * at a time, in the background, as rows are bound; notes saved before previews
+ * were stored have them built and written back. A preview already on a summary
+ * is returned as is; the rest are kept in a small LRU keyed by id and edit time.
+ */
+public class NotePager {
+
+    public interface Listener {
+        void onPageLoaded(int start, int count);
+    }
+
+    static final int PAGE_SIZE = 30;
+    private static final int MAX_CACHED_PREVIEWS = 10 * PAGE_SIZE;
+
+    private final NoteManager noteManager;
+    private final Listener listener;
+    private final LruCache<String, String> previews = new LruCache<>(MAX_CACHED_PREVIEWS);
+    private final Set<Integer> loadingPages = new HashSet<>();
+
+    public NotePager(NoteManager noteManager, Listener listener) {
+        this.noteManager = noteManager;
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the preview for the row at {@code position}, or null while its page
+     * is still loading. Binding a row late in a page also starts on the next one.
+     */
+    public String getPreview(List<NoteSummary> notes, int position) {
+        String stored = notes.get(position).getPreview();
+        if (stored != null) return stored;
+
+        int page = position / PAGE_SIZE;
+        if (position % PAGE_SIZE >= PAGE_SIZE * 2 / 3) loadPage(notes, page + 1);
+
+        String preview = previews.get(key(notes.get(position)));
+        if (preview == null) loadPage(notes, page);
+        return preview;
+    }
+
+    private void loadPage(List<NoteSummary> notes, int page) {
+        int start = page * PAGE_SIZE;
+        int end = Math.min(start + PAGE_SIZE, notes.size());
+        if (start >= end || loadingPages.contains(page)) return;
+
+        List<NoteSummary> missing = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            NoteSummary note = notes.get(i);
+            if (!note.isLocked() && note.getPreview() == null && previews.get(key(note)) == null) {
+                missing.add(note);
+                ids.add(note.getId());
+            }
+        }
+        if (ids.isEmpty()) return;
+
+        loadingPages.add(page);
+        noteManager.getPreviewsAsync(ids, (Map<String, String> result) -> {
+            loadingPages.remove(page);
+            if (result == null) return;
+
+            // Notes that vanished get an empty preview so their rows stop asking.
+            for (NoteSummary note : missing) {
+                String preview = result.get(note.getId());
+                previews.put(key(note), preview != null ? preview : "");
+            }
+            listener.onPageLoaded(start, end - start);
+        });
+    }
+
+    private static String key(NoteSummary note) {
+        return note.getId() + '@' + note.getTimestamp();
+    }
+}
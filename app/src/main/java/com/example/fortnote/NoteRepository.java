@@ -0,0 +1,193 @@
+package com.example.fortnote;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory view of the note store. Note summaries are read from the store's
+ * index once and then served from a map keyed by id; previews and content stay
+ * in each note's record until a page of rows or a single note asks for them.
+ * Every mutation is written through to the store before the map is changed
+ * and listeners are told.
+ *
+ * Notes handed to the repository are treated as immutable: mutations always
+ * pass in a fresh {@link Note} (see {@link Note#copy()}).
+ *
+ * Summaries are also kept in one sorted index per list order, updated with
+ * each mutation, so listing notes in any order walks an index instead of
+ * sorting.
+ */
+public class NoteRepository {
+
+    public static final int ORDER_CREATED = 0;
+    public static final int ORDER_LAST_EDITED = 1;
+    public static final int ORDER_TITLE = 2;
+
+    // Ties are broken by id, so every summary has exactly one place in each index.
+    private static final Comparator<NoteSummary> BY_ID = Comparator.comparing(NoteSummary::getId);
+    private static final Comparator<NoteSummary> NEWEST_CREATED =
+            Comparator.comparingLong(NoteSummary::getCreationTimestamp).reversed().thenComparing(BY_ID);
+    private static final Comparator<NoteSummary> NEWEST_EDITED =
+            Comparator.comparingLong(NoteSummary::getTimestamp).reversed().thenComparing(BY_ID);
+    private static final Comparator<NoteSummary> TITLE =
+            Comparator.comparing(NoteSummary::getTitle, String.CASE_INSENSITIVE_ORDER).thenComparing(BY_ID);
+
+    public interface Listener {
+        void onNoteInserted(Note note);
+        void onNoteUpdated(Note note);
+        void onNoteRemoved(String id);
+    }
+
+    private final NoteStore store;
+    private final Map<String, NoteSummary> summaries = new HashMap<>();
+    // Indexed by ORDER_* constant.
+    private final List<NavigableSet<NoteSummary>> indexes = new ArrayList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private boolean loaded = false;
+
+    public NoteRepository(NoteStore store) {
+        this.store = store;
+        indexes.add(new TreeSet<>(NEWEST_CREATED));
+        indexes.add(new TreeSet<>(NEWEST_EDITED));
+        indexes.add(new TreeSet<>(TITLE));
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        for (NoteSummary summary : store.readIndex()) {
+            put(summary);
+        }
+        loaded = true;
+    }
+
+    private void put(NoteSummary summary) {
+        NoteSummary old = summaries.put(summary.getId(), summary);
+        for (NavigableSet<NoteSummary> index : indexes) {
+            if (old != null) index.remove(old);
+            index.add(summary);
+        }
+    }
+
+    /**
+     * Loads one full note from its own record and body, so opening one note
+     * costs the same however many there are, and needs no summaries loaded.
+     */
+    public Note get(String id) {
+        return store.read(id);
+    }
+
+    /** The listed summary, which may have no preview; see {@link #readSummary}. */
+    public synchronized NoteSummary getSummary(String id) {
+        if (!loaded) return store.readSummary(id);
+        return summaries.get(id);
+    }
+
+    /** The summary as stored in the note's record, preview included. */
+    public NoteSummary readSummary(String id) {
+        return store.readSummary(id);
+    }
+
+    public synchronized List<NoteSummary> getSummaries() {
+        ensureLoaded();
+        return new ArrayList<>(summaries.values());
+    }
+
+    /**
+     * Up to {@code count} summaries in the given order, starting at position
+     * {@code start}. Only the first {@code start + count} entries of the index are
+     * visited.
+     */
+    public synchronized List<NoteSummary> getSummaries(int order, int start, int count) {
+        ensureLoaded();
+        List<NoteSummary> page = new ArrayList<>(Math.max(0, Math.min(count, summaries.size() - start)));
+        Iterator<NoteSummary> it = indexes.get(order).iterator();
+        for (int i = 0; i < start && it.hasNext(); i++) it.next();
+        while (page.size() < count && it.hasNext()) page.add(it.next());
+        return page;
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return summaries.size();
+    }
+
+    public void insert(Note note) throws IOException {
+        synchronized (this) {
+            ensureLoaded();
+            store.write(note);
+            put(NoteSummary.of(note));
+        }
+        for (Listener listener : listeners) listener.onNoteInserted(note);
+    }
+
+    public void update(Note note) throws IOException {
+        synchronized (this) {
+            ensureLoaded();
+            store.write(note);
+            put(NoteSummary.of(note));
+        }
+        for (Listener listener : listeners) listener.onNoteUpdated(note);
+    }
+
+    /** Writes all the notes in a single store transaction, then reports each as updated. */
+    public void updateAll(Collection<Note> changed) throws IOException {
+        synchronized (this) {
+            ensureLoaded();
+            store.writeAll(changed);
+            for (Note note : changed) put(NoteSummary.of(note));
+        }
+        for (Note note : changed) {
+            for (Listener listener : listeners) listener.onNoteUpdated(note);
+        }
+    }
+
+    public void remove(String id) {
+        synchronized (this) {
+            ensureLoaded();
+            NoteSummary old = summaries.remove(id);
+            if (old == null) return;
+            for (NavigableSet<NoteSummary> index : indexes) index.remove(old);
+            store.delete(id);
+        }
+        for (Listener listener : listeners) listener.onNoteRemoved(id);
+    }
+
+    /** Removes every listed note under one lock, then reports each one that existed as removed. */
+    public void removeAll(Collection<String> ids) {
+        List<String> removed = new ArrayList<>();
+        synchronized (this) {
+            ensureLoaded();
+            for (String id : ids) {
+                NoteSummary old = summaries.remove(id);
+                if (old == null) continue;
+                for (NavigableSet<NoteSummary> index : indexes) index.remove(old);
+                store.delete(id);
+                removed.add(id);
+            }
+        }
+        for (String id : removed) {
+            for (Listener listener : listeners) listener.onNoteRemoved(id);
+        }
+    }
+
+    public NoteStore.Metrics getStoreMetrics() {
+        return store.getMetrics();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+}
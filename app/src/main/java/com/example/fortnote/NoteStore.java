@@ -0,0 +1,488 @@
+package com.example.fortnote;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * File-backed note storage. Every note is its own pair of files inside the store
+ * directory: a small metadata record ({@code <id>.note}) and the content
+ * ({@code <id>.body}). Saving, updating or deleting one note never reads or
+ * rewrites the others. Every summary is also kept in {@link NoteIndex}, so
+ * listing notes reads one file rather than every record.
+ *
+ * {@link #writeAll} commits many notes as one transaction: every file is staged
+ * as a temp file, then a batch journal naming them is written, and only then
+ * are the temp files moved into place. A crash before the journal exists leaves
+ * the old notes; a crash after it is rolled forward when the store is opened.
+ *
+ * Every file is synced before it is renamed into place, and the copy it
+ * replaces is kept as {@code <name>.prev}. Records are written in the binary
+ * {@link NoteCodec} layout, with a CRC32, a per-note generation and the CRC32
+ * of their body as stored; long bodies are stored deflated. A record that is torn or corrupt, or whose body does not
+ * match it, falls back to the previous generation instead of losing the note.
+ * JSON records from older builds are still read, and JSON remains the
+ * import/export format.
+ */
+public class NoteStore {
+
+    private static final String RECORD_SUFFIX = ".note";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String PREVIOUS_SUFFIX = ".prev";
+    private static final String BATCH_JOURNAL = "batch.journal";
+    private static final String INDEX_FILE = "notes.index";
+
+    /** Running totals for commits to the store, for diagnostics. */
+    public static final class Metrics {
+        private final AtomicLong commits = new AtomicLong();
+        private final AtomicLong bytesWritten = new AtomicLong();
+        private final AtomicLong commitNanos = new AtomicLong();
+        private final AtomicLong maxCommitNanos = new AtomicLong();
+        private final AtomicLong recoveries = new AtomicLong();
+
+        void commit(long nanos, long bytes) {
+            commits.incrementAndGet();
+            bytesWritten.addAndGet(bytes);
+            commitNanos.addAndGet(nanos);
+            maxCommitNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        /** Single writes and batches committed. */
+        public long getCommits() { return commits.get(); }
+        public long getBytesWritten() { return bytesWritten.get(); }
+        public long getTotalCommitNanos() { return commitNanos.get(); }
+        public long getMaxCommitNanos() { return maxCommitNanos.get(); }
+        /** Reads that had to fall back to a previous generation. */
+        public long getRecoveries() { return recoveries.get(); }
+
+        @Override
+        public String toString() {
+            long n = Math.max(1, getCommits());
+            return "commits=" + getCommits() + " bytes=" + getBytesWritten()
+                    + " avgMs=" + getTotalCommitNanos() / n / 1e6 + " maxMs=" + getMaxCommitNanos() / 1e6
+                    + " recoveries=" + getRecoveries();
+        }
+    }
+
+    // A metadata record that passed its checksum, and its body if it was read.
+    private static final class Loaded {
+        final NoteCodec.Record record;
+        final String content;
+
+        Loaded(NoteCodec.Record record, String content) {
+            this.record = record;
+            this.content = content;
+        }
+    }
+
+    private final File dir;
+    private final Metrics metrics = new Metrics();
+    private final NoteIndex index;
+
+    public NoteStore(File dir) {
+        this.dir = dir;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IllegalStateException("Cannot create note directory " + dir);
+        }
+        try {
+            commitBatch();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        index = new NoteIndex(new File(dir, INDEX_FILE), new NoteIndex.Source() {
+            @Override public Collection<String> ids() { return NoteStore.this.ids(); }
+            @Override public NoteSummary read(String id) { return readSummary(id); }
+        });
+    }
+
+    /** Every summary, from the index; previews are left out. */
+    public List<NoteSummary> readIndex() {
+        return index.entries();
+    }
+
+    public List<NoteSummary> readSummaries() {
+        List<NoteSummary> summaries = new ArrayList<>();
+        for (String id : ids()) {
+            Loaded loaded = load(id, false);
+            if (loaded != null) summaries.add(loaded.record.summary);
+        }
+        return summaries;
+    }
+
+    // Includes notes caught between moving the old record aside and the new one in.
+    private Set<String> ids() {
+        Set<String> ids = new LinkedHashSet<>();
+        String[] names = dir.list();
+        if (names == null) return ids;
+
+        String previousRecord = RECORD_SUFFIX + PREVIOUS_SUFFIX;
+        for (String name : names) {
+            if (name.endsWith(RECORD_SUFFIX)) {
+                ids.add(name.substring(0, name.length() - RECORD_SUFFIX.length()));
+            } else if (name.endsWith(previousRecord)) {
+                ids.add(name.substring(0, name.length() - previousRecord.length()));
+            }
+        }
+        return ids;
+    }
+
+    public List<Note> readAll() {
+        List<Note> notes = new ArrayList<>();
+        for (NoteSummary summary : readSummaries()) {
+            String content = readContent(summary.getId());
+            if (content != null) notes.add(summary.withContent(content));
+        }
+        return notes;
+    }
+
+    public Note read(String id) {
+        Loaded loaded = load(id, true);
+        return loaded == null ? null : loaded.record.summary.withContent(loaded.content);
+    }
+
+    public NoteSummary readSummary(String id) {
+        Loaded loaded = load(id, false);
+        return loaded == null ? null : loaded.record.summary;
+    }
+
+    public String readContent(String id) {
+        Loaded loaded = load(id, true);
+        return loaded == null ? null : loaded.content;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // The newest record that passes its checksum, with the body copy that
+    // matches it. Without a usable pair in the current generation the
+    // previous one is used, so a torn write only loses that write.
+    private Loaded load(String id, boolean withContent) {
+        long start = Perf.begin(Perf.STORE_READ);
+        try {
+            File current = recordFile(id);
+            for (File file : new File[] {current, previous(current)}) {
+                NoteCodec.Record record = readRecord(file);
+                if (record == null) continue;
+
+                Loaded loaded = new Loaded(record, withContent ? readBody(id, record) : null);
+                if (withContent && loaded.content == null) continue;
+                if (file != current) metrics.recoveries.incrementAndGet();
+                return loaded;
+            }
+            return null;
+        } finally {
+            Perf.end(Perf.STORE_READ, start);
+        }
+    }
+
+    private NoteCodec.Record readRecord(File file) {
+        if (!file.exists()) return null;
+        try {
+            byte[] data = readBytes(file);
+            if (NoteCodec.isRecord(data)) return NoteCodec.decodeRecord(data);
+
+            // Older builds wrote JSON: bare at first, later behind a checksum line.
+            String text = new String(data, StandardCharsets.UTF_8);
+            if (text.startsWith("{")) return recordFromJson(new JSONObject(text));
+
+            int newline = text.indexOf('\n');
+            if (newline < 0) return null;
+            String json = text.substring(newline + 1);
+            if (Long.parseLong(text.substring(0, newline), 16) != crc(json.getBytes(StandardCharsets.UTF_8))) {
+                return null;
+            }
+            return recordFromJson(new JSONObject(json));
+        } catch (IOException | JSONException | NumberFormatException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static NoteCodec.Record recordFromJson(JSONObject obj) throws JSONException {
+        return new NoteCodec.Record(summaryFromJson(obj), obj.optLong("generation", 0),
+                obj.optLong("bodyCrc", NoteCodec.NO_CRC), false, false, obj.optString("content", null));
+    }
+
+    private String readBody(String id, NoteCodec.Record record) {
+        // Records written before the metadata/body split kept the content inline.
+        if (record.inlineContent != null) return record.inlineContent;
+
+        File current = bodyFile(id);
+        try {
+            if (record.bodyCrc == NoteCodec.NO_CRC) return current.exists() ? readFile(current) : null;
+
+            for (File file : new File[] {current, previous(current)}) {
+                if (!file.exists()) continue;
+                byte[] bytes = readBytes(file);
+                if (crc(bytes) == record.bodyCrc) return NoteCodec.decodeBody(bytes, record);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Writes a single note. The body is replaced before the metadata, so a
+     * metadata record never points at content older than itself.
+     */
+    public void write(Note note) throws IOException {
+        long start = System.nanoTime();
+        long section = Perf.begin(Perf.STORE_WRITE);
+        try {
+            NoteCodec.Body body = NoteCodec.encodeBody(note, true);
+            byte[] meta = recordBytes(note, body);
+
+            index.log(Collections.singletonList(NoteSummary.of(note)), Collections.emptyList());
+            try {
+                install(stageFile(bodyFile(note.getId()), body.bytes), bodyFile(note.getId()));
+                install(stageFile(recordFile(note.getId()), meta), recordFile(note.getId()));
+            } catch (IOException e) {
+                index.failed(Collections.singletonList(note.getId()));
+                throw e;
+            }
+            index.committed();
+            metrics.commit(System.nanoTime() - start, body.bytes.length + meta.length);
+            Perf.count(Perf.BYTES_WRITTEN, body.bytes.length + meta.length);
+        } finally {
+            Perf.end(Perf.STORE_WRITE, section);
+        }
+    }
+
+    /** Writes every note in one transaction; see the class comment. */
+    public void writeAll(Collection<Note> notes) throws IOException {
+        long section = Perf.begin(Perf.STORE_WRITE);
+        try {
+            writeBatch(notes);
+        } finally {
+            Perf.end(Perf.STORE_WRITE, section);
+        }
+    }
+
+    private void writeBatch(Collection<Note> notes) throws IOException {
+        long start = System.nanoTime();
+        long bytes = 0;
+        List<File> staged = new ArrayList<>();
+        List<NoteSummary> summaries = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        StringBuilder journal = new StringBuilder();
+
+        try {
+            for (Note note : notes) {
+                NoteCodec.Body body = NoteCodec.encodeBody(note, true);
+                byte[] meta = recordBytes(note, body);
+                staged.add(stageFile(bodyFile(note.getId()), body.bytes));
+                staged.add(stageFile(recordFile(note.getId()), meta));
+                bytes += body.bytes.length + meta.length;
+                journal.append(bodyFile(note.getId()).getName()).append('\n')
+                        .append(recordFile(note.getId()).getName()).append('\n');
+                summaries.add(NoteSummary.of(note));
+                ids.add(note.getId());
+            }
+            index.log(summaries, Collections.emptyList());
+        } catch (IOException e) {
+            for (File file : staged) file.delete();
+            throw e;
+        }
+
+        // Once the journal exists the batch is rolled forward even after a crash.
+        try {
+            replaceFile(new File(dir, BATCH_JOURNAL), journal.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            for (File file : staged) file.delete();
+            index.failed(ids);
+            throw e;
+        }
+
+        commitBatch();
+        index.committed();
+        metrics.commit(System.nanoTime() - start, bytes);
+        Perf.count(Perf.BYTES_WRITTEN, bytes);
+    }
+
+    // Moves the staged files named in the batch journal into place, then drops
+    // the journal. Without a journal, staged files belong to an aborted batch.
+    private void commitBatch() throws IOException {
+        File journal = new File(dir, BATCH_JOURNAL);
+        if (journal.exists()) {
+            for (String name : readFile(journal).split("\n")) {
+                if (name.isEmpty()) continue;
+                File temp = new File(dir, name + TEMP_SUFFIX);
+                if (temp.exists()) install(temp, new File(dir, name));
+            }
+            journal.delete();
+        }
+
+        File[] leftovers = dir.listFiles((d, name) -> name.endsWith(TEMP_SUFFIX));
+        if (leftovers == null) return;
+        for (File file : leftovers) file.delete();
+    }
+
+    public void delete(String id) {
+        try {
+            index.log(Collections.emptyList(), Collections.singletonList(id));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        recordFile(id).delete();
+        previous(recordFile(id)).delete();
+        bodyFile(id).delete();
+        previous(bodyFile(id)).delete();
+        if (recordFile(id).exists() || previous(recordFile(id)).exists()) {
+            index.failed(Collections.singletonList(id));
+        } else {
+            index.committed();
+        }
+    }
+
+    public boolean isEmpty() {
+        return ids().isEmpty();
+    }
+
+    /**
+     * Imports notes from the legacy single-array JSON format that used to live in
+     * SharedPreferences. Returns the number of notes written.
+     */
+    public int importJson(String notesJson) throws JSONException, IOException {
+        JSONArray jsonArray = new JSONArray(notesJson);
+        List<Note> notes = new ArrayList<>();
+
+        for (int i = 0; i < jsonArray.length(); i++) {
+            JSONObject obj = jsonArray.getJSONObject(i);
+            notes.add(summaryFromJson(obj).withContent(obj.getString("content")));
+        }
+        writeAll(notes);
+        return notes.size();
+    }
+
+    /** Every note, content included, in the array format {@link #importJson} reads. */
+    public String exportJson() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (Note note : readAll()) {
+            JSONObject obj = toJson(note);
+            obj.put("content", note.getContent());
+            array.put(obj);
+        }
+        return array.toString();
+    }
+
+    private File recordFile(String id) {
+        return new File(dir, id + RECORD_SUFFIX);
+    }
+
+    private File bodyFile(String id) {
+        return new File(dir, id + BODY_SUFFIX);
+    }
+
+    private static File previous(File file) {
+        return new File(file.getPath() + PREVIOUS_SUFFIX);
+    }
+
+    // The generation counts this note's writes.
+    private byte[] recordBytes(Note note, NoteCodec.Body body) {
+        NoteCodec.Record current = readRecord(recordFile(note.getId()));
+        long generation = current == null ? 1 : current.generation + 1;
+        return NoteCodec.encodeRecord(note, generation, body);
+    }
+
+    // The current copy becomes the previous generation, then the synced temp
+    // file takes its place. A crash in between leaves only the previous copy,
+    // which reads fall back to.
+    private void install(File temp, File target) throws IOException {
+        if (target.exists() && !target.renameTo(previous(target))) {
+            throw new IOException("Cannot keep previous " + target);
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + target);
+        }
+    }
+
+    // The batch journal has no previous generation: it only ever exists mid-commit.
+    private void replaceFile(File target, byte[] data) throws IOException {
+        File temp = stageFile(target, data);
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + target);
+        }
+    }
+
+    private File stageFile(File target, byte[] data) throws IOException {
+        File temp = new File(dir, target.getName() + TEMP_SUFFIX);
+
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        return temp;
+    }
+
+    private static long crc(byte[] data) {
+        return NoteCodec.crc(data, 0, data.length);
+    }
+
+    static JSONObject toJson(Note note) throws JSONException {
+        JSONObject obj = new JSONObject();
+
+        obj.put("id", note.getId());
+        obj.put("title", note.getTitle());
+        obj.put("timestamp", note.getTimestamp());
+        obj.put("creationTimestamp", note.getCreationTimestamp());
+        obj.put("locked", note.isLocked());
+
+        obj.put("plaintextLength", note.getPlaintextLength());
+        // Never store readable text next to encrypted content.
+        if (note.getPreview() != null && !note.isLocked()) obj.put("preview", note.getPreview());
+
+        return obj;
+    }
+
+    static NoteSummary summaryFromJson(JSONObject obj) throws JSONException {
+        String id = obj.getString("id");
+        String title = obj.getString("title");
+
+        long timestamp = obj.getLong("timestamp");
+        long creationTimestamp = obj.optLong("creationTimestamp", timestamp);
+
+        boolean locked = obj.optBoolean("locked", false);
+
+        int plaintextLength = obj.optInt("plaintextLength", 0);
+        String preview = locked || !obj.has("preview") ? null : obj.getString("preview");
+
+        return new NoteSummary(id, title, timestamp, creationTimestamp, locked, plaintextLength, preview);
+    }
+
+    private static String readFile(File file) throws IOException {
+        return new String(readBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            Perf.count(Perf.BYTES_READ, out.size());
+            return out.toByteArray();
+        }
+    }
+}
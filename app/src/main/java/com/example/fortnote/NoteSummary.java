@@ -0,0 +1,54 @@
+package com.example.fortnote;
+
+/**
+ * The part of a note the list needs: everything except the content. Summaries
+ * are immutable, and the repository keeps one per note in memory.
+ */
+public class NoteSummary {
+
+    private final String id;
+    private final String title;
+    private final long timestamp;
+    private final long creationTimestamp;
+    private final boolean locked;
+    private final int plaintextLength;
+    private final String preview;
+
+    public NoteSummary(String id, String title, long timestamp, long creationTimestamp,
+                       boolean locked, int plaintextLength, String preview) {
+        this.id = id;
+        this.title = title;
+        this.timestamp = timestamp;
+        this.creationTimestamp = creationTimestamp;
+        this.locked = locked;
+        this.plaintextLength = plaintextLength;
+        this.preview = preview;
+    }
+
+    public static NoteSummary of(Note note) {
+        return new NoteSummary(note.getId(), note.getTitle(), note.getTimestamp(),
+                note.getCreationTimestamp(), note.isLocked(), note.getPlaintextLength(), note.getPreview());
+    }
+
+    /** Rebuilds the full note around content loaded separately. */
+    public Note withContent(String content) {
+        Note note = new Note(id, title, content, timestamp, creationTimestamp, locked);
+        note.setPlaintextLength(plaintextLength);
+        note.setPreview(preview);
+        return note;
+    }
+
+    public String getId() { return id; }
+
+    public String getTitle() { return title; }
+
+    public long getTimestamp() { return timestamp; }
+
+    public long getCreationTimestamp() { return creationTimestamp; }
+
+    public boolean isLocked() { return locked; }
+
+    public int getPlaintextLength() { return plaintextLength; }
+
+    public String getPreview() { return preview; }
+}
@@ -0,0 +1,85 @@
+package com.example.fortnote;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Decrypted content of locked notes that were opened for viewing, by note id.
+ * Entries expire {@code ttlMillis} after they were decrypted, however often
+ * they are read, and the least recently used one is dropped past
+ * {@code maxEntries}. Nothing here is ever written anywhere.
+ *
+ * A change to a note invalidates it. Because decryption runs on another thread,
+ * callers take a {@link #stamp} before reading the note and pass it to
+ * {@link #put}, which ignores content that an invalidation has overtaken.
+ */
+class PeekCache {
+
+    private static final class Entry {
+        final String content;
+        final long decryptedAt;
+
+        Entry(String content, long decryptedAt) {
+            this.content = content;
+            this.decryptedAt = decryptedAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long invalidations;
+
+    PeekCache(long ttlMillis, int maxEntries, LongSupplier clock) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    synchronized long stamp() {
+        return invalidations;
+    }
+
+    synchronized void put(String id, String content, long stamp) {
+        if (stamp != invalidations) return;
+        evictExpired();
+        entries.put(id, new Entry(content, clock.getAsLong()));
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    synchronized String get(String id) {
+        evictExpired();
+        Entry entry = entries.get(id);
+        return entry == null ? null : entry.content;
+    }
+
+    synchronized void invalidate(String id) {
+        invalidations++;
+        entries.remove(id);
+    }
+
+    synchronized void evictExpired() {
+        long now = clock.getAsLong();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().decryptedAt >= ttlMillis) it.remove();
+        }
+    }
+
+    synchronized void clear() {
+        invalidations++;
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
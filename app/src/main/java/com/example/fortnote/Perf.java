@@ -0,0 +1,162 @@
+package com.example.fortnote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Timing sections and counters for the app's hot paths. Sections are used as
+ * <pre>
+ *     long start = Perf.begin(Perf.STORE_READ);
+ *     try { ... } finally { Perf.end(Perf.STORE_READ, start); }
+ * </pre>
+ * and feed a {@link LatencyHistogram} per section, and the {@link Sink}, which
+ * in the app emits android.os.Trace sections for Perfetto. While disabled,
+ * which is the default, every call returns after one volatile read.
+ *
+ * {@link #dump} prints p50/p95/p99 and max per section plus every counter; the
+ * app serves it through {@code adb shell dumpsys activity
+ * com.example.fortnote/.MainActivity}.
+ */
+public final class Perf {
+
+    /** Receives section boundaries, on the thread that runs the section. */
+    public interface Sink {
+        void beginSection(String name);
+
+        void endSection();
+    }
+
+    public static final String STORE_READ = "store.read";
+    public static final String STORE_WRITE = "store.write";
+    public static final String NOTES_LIST = "notes.list";
+    public static final String NOTES_SAVE = "notes.save";
+    public static final String KDF = "crypto.kdf";
+    public static final String ENCRYPT = "crypto.encrypt";
+    public static final String DECRYPT = "crypto.decrypt";
+    public static final String HTML_PARSE = "html.parse";
+    public static final String BIND_ROW = "ui.bind";
+
+    public static final String BYTES_READ = "store.bytesRead";
+    public static final String BYTES_WRITTEN = "store.bytesWritten";
+    public static final String NOTES_PARSED = "html.notesParsed";
+
+    // What begin returns while disabled; never a real clock reading in practice.
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private static final Sink NO_SINK = new Sink() {
+        @Override public void beginSection(String name) {}
+        @Override public void endSection() {}
+    };
+
+    private static final Map<String, LatencyHistogram> SECTIONS = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicLong> COUNTERS = new ConcurrentHashMap<>();
+
+    private static volatile boolean enabled;
+    private static volatile LongSupplier clock = System::nanoTime;
+    private static volatile Sink sink = NO_SINK;
+
+    private Perf() {
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Replaces the nanosecond clock, e.g. with a fake one in tests. */
+    public static void setClock(LongSupplier nanoClock) {
+        clock = nanoClock;
+    }
+
+    /** Where section boundaries go besides the histograms; null for nowhere. */
+    public static void setSink(Sink newSink) {
+        sink = newSink != null ? newSink : NO_SINK;
+    }
+
+    /** Starts a section; pass the result to {@link #end}. */
+    public static long begin(String section) {
+        if (!enabled) return NOT_TIMED;
+        sink.beginSection(section);
+        return clock.getAsLong();
+    }
+
+    // A section that began while disabled is not counted, even if recording was
+    // switched on before it ended, so the sink always sees balanced calls.
+    public static void end(String section, long start) {
+        if (start == NOT_TIMED) return;
+        long elapsed = clock.getAsLong() - start;
+        sink.endSection();
+        histogram(section).record(elapsed);
+    }
+
+    public static void count(String counter, long amount) {
+        if (!enabled) return;
+        AtomicLong value = COUNTERS.get(counter);
+        if (value == null) value = COUNTERS.computeIfAbsent(counter, k -> new AtomicLong());
+        value.addAndGet(amount);
+    }
+
+    public static long getCount(String counter) {
+        AtomicLong value = COUNTERS.get(counter);
+        return value == null ? 0 : value.get();
+    }
+
+    /** Percentile of a section's durations in nanoseconds, or 0 if it never ran. */
+    public static long getPercentile(String section, double percentile) {
+        LatencyHistogram histogram = SECTIONS.get(section);
+        return histogram == null ? 0 : histogram.percentile(percentile);
+    }
+
+    public static long getSectionCount(String section) {
+        LatencyHistogram histogram = SECTIONS.get(section);
+        return histogram == null ? 0 : histogram.count();
+    }
+
+    public static void reset() {
+        for (LatencyHistogram histogram : SECTIONS.values()) histogram.reset();
+        for (AtomicLong value : COUNTERS.values()) value.set(0);
+    }
+
+    /** A table of every section (times in microseconds) and counter, sorted by name. */
+    public static String dump() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.US, "%-20s %8s %10s %10s %10s %10s%n",
+                "section", "count", "p50 us", "p95 us", "p99 us", "max us"));
+        for (String name : sorted(SECTIONS.keySet())) {
+            LatencyHistogram histogram = SECTIONS.get(name);
+            if (histogram.count() == 0) continue;
+            out.append(String.format(Locale.US, "%-20s %8d %10.1f %10.1f %10.1f %10.1f%n", name,
+                    histogram.count(), micros(histogram.percentile(50)), micros(histogram.percentile(95)),
+                    micros(histogram.percentile(99)), micros(histogram.max())));
+        }
+        for (String name : sorted(COUNTERS.keySet())) {
+            out.append(String.format(Locale.US, "%-20s %8d%n", name, COUNTERS.get(name).get()));
+        }
+        return out.toString();
+    }
+
+    private static LatencyHistogram histogram(String section) {
+        LatencyHistogram histogram = SECTIONS.get(section);
+        return histogram != null ? histogram : SECTIONS.computeIfAbsent(section, k -> new LatencyHistogram());
+    }
+
+    private static List<String> sorted(Iterable<String> names) {
+        List<String> list = new ArrayList<>();
+        for (String name : names) list.add(name);
+        Collections.sort(list);
+        return list;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+}
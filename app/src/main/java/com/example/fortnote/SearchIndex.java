@@ -0,0 +1,163 @@
+package com.example.fortnote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Inverted index from words to the notes containing them. Terms are kept
+ * sorted, so every query word matches as a prefix with a single range lookup;
+ * notes are never read at query time.
+ *
+ * A note matches when every query word prefixes one of its words. Matches are
+ * ranked by how many times the query words occur, a title hit counting as
+ * {@link #TITLE_WEIGHT} body hits, then by most recently edited.
+ */
+public class SearchIndex {
+
+    static final int TITLE_WEIGHT = 3;
+
+    // Notes are numbered by slot so postings and scores are plain int arrays.
+    private static final class Posting {
+        int[] slots = new int[4];
+        int[] counts = new int[4];
+        int size = 0;
+
+        void add(int slot, int count) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            slots[size] = slot;
+            counts[size] = count;
+            size++;
+        }
+
+        void remove(int slot) {
+            for (int i = 0; i < size; i++) {
+                if (slots[i] == slot) {
+                    size--;
+                    slots[i] = slots[size];
+                    counts[i] = counts[size];
+                    return;
+                }
+            }
+        }
+    }
+
+    private final TreeMap<String, Posting> postings = new TreeMap<>();
+    private final Map<String, Integer> slotsById = new HashMap<>();
+    private final List<Integer> freeSlots = new ArrayList<>();
+    private String[] ids = new String[16];
+    private String[][] terms = new String[16][];
+    private long[] timestamps = new long[16];
+    private int slotCount = 0;
+
+    /** Adds or replaces a note; {@code text} is its plain text, without markup. */
+    public synchronized void put(String id, String title, String text, long timestamp) {
+        remove(id);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (String term : tokenize(title)) counts.merge(term, TITLE_WEIGHT, Integer::sum);
+        for (String term : tokenize(text)) counts.merge(term, 1, Integer::sum);
+
+        int slot = allocateSlot();
+        ids[slot] = id;
+        terms[slot] = counts.keySet().toArray(new String[0]);
+        timestamps[slot] = timestamp;
+        slotsById.put(id, slot);
+
+        for (Map.Entry<String, Integer> term : counts.entrySet()) {
+            postings.computeIfAbsent(term.getKey(), k -> new Posting()).add(slot, term.getValue());
+        }
+    }
+
+    public synchronized void remove(String id) {
+        Integer slot = slotsById.remove(id);
+        if (slot == null) return;
+
+        for (String term : terms[slot]) {
+            Posting posting = postings.get(term);
+            posting.remove(slot);
+            if (posting.size == 0) postings.remove(term);
+        }
+        ids[slot] = null;
+        terms[slot] = null;
+        freeSlots.add(slot);
+    }
+
+    public synchronized boolean contains(String id) {
+        return slotsById.containsKey(id);
+    }
+
+    public synchronized int size() {
+        return slotsById.size();
+    }
+
+    /** Ids of the matching notes, best first; at most {@code limit} of them. */
+    public synchronized List<String> search(String query, int limit) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty()) return Collections.emptyList();
+
+        // matched[slot] counts the query words seen so far that the note matched.
+        int[] matched = new int[slotCount];
+        int[] scores = new int[slotCount];
+        for (int w = 0; w < words.size(); w++) {
+            String word = words.get(w);
+            for (Posting posting : postings.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+                for (int i = 0; i < posting.size; i++) {
+                    int slot = posting.slots[i];
+                    if (matched[slot] < w) continue;
+                    matched[slot] = w + 1;
+                    scores[slot] += posting.counts[i];
+                }
+            }
+        }
+
+        List<Integer> hits = new ArrayList<>();
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (matched[slot] == words.size()) hits.add(slot);
+        }
+        hits.sort((a, b) -> {
+            int byScore = Integer.compare(scores[b], scores[a]);
+            return byScore != 0 ? byScore : Long.compare(timestamps[b], timestamps[a]);
+        });
+
+        List<String> result = new ArrayList<>(Math.min(limit, hits.size()));
+        for (int i = 0; i < hits.size() && i < limit; i++) result.add(ids[hits.get(i)]);
+        return result;
+    }
+
+    private int allocateSlot() {
+        if (!freeSlots.isEmpty()) return freeSlots.remove(freeSlots.size() - 1);
+        if (slotCount == ids.length) {
+            ids = Arrays.copyOf(ids, slotCount * 2);
+            terms = Arrays.copyOf(terms, slotCount * 2);
+            timestamps = Arrays.copyOf(timestamps, slotCount * 2);
+        }
+        return slotCount++;
+    }
+
+    // Words are maximal runs of letters and digits, lower-cased.
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) return words;
+
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.fortnote;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * {@link EncryptionManager.KeySource} backed by an AES key held in memory. It
+ * does what {@link KeystoreKeySource} does on a plain JVM, for unit tests and
+ * benchmarks. Wrapped keys are {@code iv | ciphertext} under AES-GCM.
+ */
+public class SoftwareKeySource implements EncryptionManager.KeySource {
+
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+
+    public SoftwareKeySource() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        key = new SecretKeySpec(bytes, "AES");
+        Arrays.fill(bytes, (byte) 0);
+    }
+
+    @Override
+    public byte[] wrap(byte[] plainKey) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+
+        ByteBuffer out = ByteBuffer.allocate(IV_LENGTH + cipher.getOutputSize(plainKey.length));
+        out.put(iv);
+        cipher.doFinal(ByteBuffer.wrap(plainKey), out);
+        return out.array();
+    }
+
+    @Override
+    public byte[] unwrap(byte[] wrapped) throws GeneralSecurityException {
+        if (wrapped.length <= IV_LENGTH) throw new GeneralSecurityException("Wrapped key too short");
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, wrapped, 0, IV_LENGTH));
+        return cipher.doFinal(wrapped, IV_LENGTH, wrapped.length - IV_LENGTH);
+    }
+}
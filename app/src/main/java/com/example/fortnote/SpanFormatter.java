@@ -0,0 +1,73 @@
+package com.example.fortnote;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Formatting toggles applied straight to the editor's text. Spans of one
+ * style never overlap or sit end to end: turning a style on merges it with
+ * every span of that style it overlaps or touches, and turning it off splits
+ * the spans around the range.
+ */
+class SpanFormatter {
+
+    private SpanFormatter() {
+    }
+
+    /**
+     * Turns {@code style} off over [start, end) if every character there already
+     * has it, and on otherwise. Returns true if the style is now on.
+     */
+    static boolean toggle(EditHistory.Target target, int style, int start, int end) {
+        List<EditHistory.Span> spans = spansOf(target, style, start, end);
+        if (covers(spans, start, end)) {
+            remove(target, spans, start, end);
+            return false;
+        }
+        apply(target, spans, style, start, end);
+        return true;
+    }
+
+    private static void apply(EditHistory.Target target, List<EditHistory.Span> spans, int style, int start, int end) {
+        int mergedStart = start;
+        int mergedEnd = end;
+        for (EditHistory.Span span : spans) {
+            mergedStart = Math.min(mergedStart, span.start);
+            mergedEnd = Math.max(mergedEnd, span.end);
+            target.removeSpan(span);
+        }
+        target.addSpan(new EditHistory.Span(style, mergedStart, mergedEnd));
+    }
+
+    // Spans that merely touch the range are left alone; overlapping ones keep
+    // whatever lies outside it.
+    private static void remove(EditHistory.Target target, List<EditHistory.Span> spans, int start, int end) {
+        for (EditHistory.Span span : spans) {
+            if (span.end <= start || span.start >= end) continue;
+            target.removeSpan(span);
+            if (span.start < start) target.addSpan(new EditHistory.Span(span.style, span.start, start));
+            if (span.end > end) target.addSpan(new EditHistory.Span(span.style, end, span.end));
+        }
+    }
+
+    private static boolean covers(List<EditHistory.Span> spans, int start, int end) {
+        List<EditHistory.Span> sorted = new ArrayList<>(spans);
+        sorted.sort((a, b) -> Integer.compare(a.start, b.start));
+
+        int covered = start;
+        for (EditHistory.Span span : sorted) {
+            if (span.start > covered) break;
+            covered = Math.max(covered, span.end);
+            if (covered >= end) return true;
+        }
+        return false;
+    }
+
+    private static List<EditHistory.Span> spansOf(EditHistory.Target target, int style, int start, int end) {
+        List<EditHistory.Span> spans = new ArrayList<>();
+        for (EditHistory.Span span : target.spans(start, end)) {
+            if (span.style == style) spans.add(span);
+        }
+        return spans;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.fortnote;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Password keys wrapped by a {@link EncryptionManager.KeySource}, one file per
+ * (salt, KDF cost): {@code <hex salt>-<cost>.key} holding
+ * {@code verifier | wrapped key}. The verifier is an HMAC of the password under
+ * the key itself, so it only tells a password apart once the key is unwrapped.
+ */
+class WrappedKeys {
+
+    static final int VERIFIER_LENGTH = 32;
+
+    static final class Entry {
+        final byte[] verifier;
+        final byte[] wrappedKey;
+
+        Entry(byte[] verifier, byte[] wrappedKey) {
+            this.verifier = verifier;
+            this.wrappedKey = wrappedKey;
+        }
+    }
+
+    private static final String SUFFIX = ".key";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    // Loaded on first use; the directory only ever changes through this object.
+    private Map<String, Entry> entries;
+
+    WrappedKeys(File dir) {
+        this.dir = dir;
+    }
+
+    synchronized Entry get(byte[] salt, int cost) {
+        return entries().get(name(salt, cost));
+    }
+
+    synchronized void put(byte[] salt, int cost, byte[] verifier, byte[] wrappedKey) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create key directory " + dir);
+
+        String name = name(salt, cost);
+        File temp = new File(dir, name + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(verifier);
+            out.write(wrappedKey);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(new File(dir, name))) {
+            temp.delete();
+            throw new IOException("Cannot install " + name);
+        }
+        entries().put(name, new Entry(verifier.clone(), wrappedKey.clone()));
+    }
+
+    synchronized void remove(byte[] salt, int cost) {
+        String name = name(salt, cost);
+        new File(dir, name).delete();
+        if (entries != null) entries.remove(name);
+    }
+
+    synchronized void clear() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        entries = new HashMap<>();
+    }
+
+    synchronized int size() {
+        return entries().size();
+    }
+
+    private Map<String, Entry> entries() {
+        if (entries != null) return entries;
+
+        entries = new HashMap<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) return entries;
+
+        for (File file : files) {
+            try (InputStream in = new FileInputStream(file)) {
+                byte[] data = new byte[(int) file.length()];
+                int read = 0;
+                while (read < data.length) {
+                    int n = in.read(data, read, data.length - read);
+                    if (n == -1) break;
+                    read += n;
+                }
+                if (read <= VERIFIER_LENGTH) continue;
+                entries.put(file.getName(), new Entry(Arrays.copyOf(data, VERIFIER_LENGTH),
+                        Arrays.copyOfRange(data, VERIFIER_LENGTH, read)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return entries;
+    }
+
+    private static String name(byte[] salt, int cost) {
+        StringBuilder name = new StringBuilder(salt.length * 2 + 16);
+        for (byte b : salt) name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return name.append('-').append(cost).append(SUFFIX).toString();
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.fortnote;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class BackgroundTaskTest {
+
+    // Stands in for the main-thread handler: callbacks queue up until drained.
+    private final List<Runnable> mainQueue = new ArrayList<>();
+    private final Executor mainThread = mainQueue::add;
+
+    private void drainMainThread() {
+        for (Runnable r : new ArrayList<>(mainQueue)) r.run();
+        mainQueue.clear();
+    }
+
+    @Test
+    public void result_isDeliveredThroughCallbackExecutor() {
+        List<String> results = new ArrayList<>();
+        BackgroundTask<String> task = new BackgroundTask<>(() -> "done", results::add, mainThread, true);
+
+        task.run();
+        assertTrue(results.isEmpty());
+
+        drainMainThread();
+        assertEquals(List.of("done"), results);
+        assertTrue(task.isFinished());
+    }
+
+    @Test
+    public void dispose_beforeRun_cancelsReads() {
+        AtomicBoolean ran = new AtomicBoolean();
+        BackgroundTask<Void> task = new BackgroundTask<>(() -> { ran.set(true); return null; },
+                r -> fail("callback after dispose"), mainThread, true);
+
+        task.dispose();
+        task.run();
+        drainMainThread();
+
+        assertFalse(ran.get());
+        assertTrue(task.isCancelled());
+    }
+
+    @Test
+    public void dispose_beforeRun_stillRunsWritesButDropsCallback() {
+        AtomicBoolean ran = new AtomicBoolean();
+        BackgroundTask<Void> task = new BackgroundTask<>(() -> { ran.set(true); return null; },
+                r -> fail("callback after dispose"), mainThread, false);
+
+        task.dispose();
+        task.run();
+        drainMainThread();
+
+        assertTrue(ran.get());
+    }
+
+    @Test
+    public void dispose_afterCompletion_dropsQueuedCallback() {
+        BackgroundTask<String> task = new BackgroundTask<>(() -> "late",
+                r -> fail("callback after dispose"), mainThread, true);
+
+        task.run();
+        task.dispose();
+        drainMainThread();
+    }
+}
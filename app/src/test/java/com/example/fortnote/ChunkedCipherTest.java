@@ -0,0 +1,156 @@
+package com.example.fortnote;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChunkedCipherTest {
+
+    private static final int CHUNK = 1024;
+    private static final byte[] KEY = new byte[32];
+    private static final byte[] PREFIX = {1, 2, 3, 4, 5, 6, 7};
+    private static final byte[] HEADER = {'h', 'd', 'r'};
+
+    @Test
+    public void roundTrip_acrossChunkBoundaries() throws Exception {
+        for (int size : new int[]{0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK, 5 * CHUNK + 17}) {
+            byte[] plain = randomBytes(size);
+            byte[] sealed = encrypt(plain);
+
+            assertEquals(ChunkedCipher.ciphertextLength(size, CHUNK), sealed.length);
+            assertArrayEquals("size " + size, plain, decrypt(sealed, HEADER));
+        }
+    }
+
+    @Test
+    public void tamperedSegment_failsToDecrypt() throws Exception {
+        byte[] sealed = encrypt(randomBytes(3 * CHUNK));
+        sealed[CHUNK + 40] ^= 1;
+
+        assertDecryptFails(sealed, HEADER);
+    }
+
+    @Test
+    public void streamCutAtSegmentBoundary_failsToDecrypt() throws Exception {
+        byte[] sealed = encrypt(randomBytes(3 * CHUNK));
+
+        assertDecryptFails(Arrays.copyOf(sealed, 2 * (CHUNK + ChunkedCipher.TAG_LENGTH)), HEADER);
+    }
+
+    @Test
+    public void reorderedSegments_failToDecrypt() throws Exception {
+        byte[] sealed = encrypt(randomBytes(3 * CHUNK));
+        int segment = CHUNK + ChunkedCipher.TAG_LENGTH;
+        byte[] swapped = sealed.clone();
+        System.arraycopy(sealed, 0, swapped, segment, segment);
+        System.arraycopy(sealed, segment, swapped, 0, segment);
+
+        assertDecryptFails(swapped, HEADER);
+    }
+
+    @Test
+    public void changedHeader_failsToDecrypt() throws Exception {
+        assertDecryptFails(encrypt(randomBytes(10)), new byte[]{'H', 'D', 'R'});
+    }
+
+    @Test
+    public void streams_holdNoMoreThanAChunkOfTheNote() throws Exception {
+        int segment = CHUNK + ChunkedCipher.TAG_LENGTH;
+        int chunks = 10;
+        CountingSink sink = new CountingSink();
+        try (OutputStream out = ChunkedCipher.encrypt(sink, KEY, PREFIX, HEADER, CHUNK)) {
+            byte[] block = randomBytes(CHUNK);
+            for (int i = 1; i <= chunks; i++) {
+                out.write(block);
+                // Only the newest chunk is held back, in case it turns out to be the last.
+                assertTrue("after " + i + " chunks", sink.count >= (long) (i - 1) * segment);
+            }
+        }
+        assertEquals(ChunkedCipher.ciphertextLength((long) chunks * CHUNK, CHUNK), sink.count);
+
+        byte[] sealed = encrypt(randomBytes(chunks * CHUNK));
+        CountingSource source = new CountingSource(sealed);
+        try (InputStream in = ChunkedCipher.decrypt(source, KEY, PREFIX, HEADER, CHUNK)) {
+            assertTrue(in.read() >= 0);
+            // One segment, plus the byte that shows it is not the last.
+            assertTrue("read " + source.count, source.count <= segment + 1);
+        }
+    }
+
+    private static final class CountingSink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static final class CountingSource extends ByteArrayInputStream {
+        long count;
+
+        CountingSource(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read() {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+
+    private static byte[] encrypt(byte[] plain) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream sealing = ChunkedCipher.encrypt(out, KEY, PREFIX, HEADER, CHUNK)) {
+            sealing.write(plain);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] sealed, byte[] header) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = ChunkedCipher.decrypt(new ByteArrayInputStream(sealed), KEY, PREFIX, header, CHUNK)) {
+            byte[] buffer = new byte[500];
+            int n;
+            while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertDecryptFails(byte[] sealed, byte[] header) throws Exception {
+        try {
+            decrypt(sealed, header);
+            fail("Expected authentication failure");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
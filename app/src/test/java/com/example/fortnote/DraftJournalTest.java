@@ -0,0 +1,120 @@
+package com.example.fortnote;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class DraftJournalTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private DraftJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.newFolder("drafts");
+        journal = new DraftJournal(dir);
+    }
+
+    @Test
+    public void recover_returnsTheNewestDraft() throws IOException {
+        journal.append("a", "First", "<p>one</p>", 100L);
+        journal.append("a", "Second", "<p>one two ü</p>", 200L);
+
+        DraftJournal.Draft draft = journal.recover("a");
+        assertNotNull(draft);
+        assertEquals("Second", draft.title);
+        assertEquals("<p>one two ü</p>", draft.content);
+        assertEquals(200L, draft.timestamp);
+    }
+
+    @Test
+    public void recover_ignoresARecordTornByACrash() throws IOException {
+        journal.append("a", "Kept", "intact", 100L);
+        long intact = journal.append("a", "Lost", "half written", 200L);
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "a.draft"), "rw")) {
+            file.setLength(intact - 5);
+        }
+
+        assertEquals("Kept", journal.recover("a").title);
+    }
+
+    @Test
+    public void recover_stopsAtACorruptRecord() throws IOException {
+        long first = journal.append("a", "Kept", "intact", 100L);
+        journal.append("a", "Corrupt", "flipped", 200L);
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "a.draft"), "rw")) {
+            file.seek(first + 12);
+            file.write(file.read() ^ 0xff);
+        }
+
+        assertEquals("Kept", journal.recover("a").title);
+    }
+
+    @Test
+    public void smallEdits_appendDeltasThatReadBack() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 200; i++) content.append("<p>Line ").append(i).append("</p>\n");
+        long first = journal.append("a", "Title", content.toString(), 100L);
+
+        long size = first;
+        for (int i = 0; i < DraftJournal.KEYFRAME_INTERVAL + 5; i++) {
+            content.insert(1000, "x😀");
+            size = journal.append("a", "Title " + i, content.toString(), 200L + i);
+        }
+        // One more whole draft, at the keyframe, and small deltas either side of it.
+        assertTrue("journal " + size, size < first * 3);
+
+        DraftJournal.Draft draft = journal.recover("a");
+        assertEquals(content.toString(), draft.content);
+        assertEquals("Title " + (DraftJournal.KEYFRAME_INTERVAL + 4), draft.title);
+        assertEquals(200L + DraftJournal.KEYFRAME_INTERVAL + 4, draft.timestamp);
+
+        // Another process starts from a whole draft, not a delta it cannot resolve.
+        DraftJournal reopened = new DraftJournal(dir);
+        reopened.append("a", "Reopened", "<p>short</p>", 900L);
+        assertEquals("<p>short</p>", reopened.recover("a").content);
+    }
+
+    @Test
+    public void aTornDelta_fallsBackToTheDraftBeforeIt() throws IOException {
+        String content = "<p>" + new String(new char[400]).replace('\0', 'a') + "</p>";
+        journal.append("a", "Kept", content, 100L);
+        long intact = journal.append("a", "Kept", content.replace("aaa</p>", "aab</p>"), 200L);
+        long torn = journal.append("a", "Lost", content.replace("aaa</p>", "abc</p>"), 300L);
+        assertTrue(torn - intact < 100);
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "a.draft"), "rw")) {
+            file.setLength(torn - 3);
+        }
+
+        DraftJournal.Draft draft = journal.recover("a");
+        assertEquals(200L, draft.timestamp);
+        assertEquals(content.replace("aaa</p>", "aab</p>"), draft.content);
+    }
+
+    @Test
+    public void discard_removesTheJournal() throws IOException {
+        journal.append("a", "Title", "body", 100L);
+        journal.append("b", "Title", "body", 100L);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(journal.ids()));
+
+        journal.discard("a");
+        assertFalse(journal.has("a"));
+        assertNull(journal.recover("a"));
+        assertEquals(Arrays.asList("b"), journal.ids());
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.fortnote;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class EditHistoryTest {
+
+    private static final int BOLD = 1;
+    private static final int ITALIC = 2;
+    private static final long WINDOW = 800;
+
+    private final EditHistory history = new EditHistory(100, 10_000, WINDOW);
+    private final TextDocument doc = new TextDocument();
+    private long now = 0;
+
+    @Test
+    public void typing_mergesIntoOneUndoStep() {
+        type(0, "hello");
+        now += WINDOW + 1;
+        type(5, " world");
+
+        assertEquals(5, history.undo(doc));
+        assertEquals("hello", doc.text.toString());
+        history.undo(doc);
+        assertEquals("", doc.text.toString());
+        assertFalse(history.canUndo());
+
+        history.redo(doc);
+        history.redo(doc);
+        assertEquals("hello world", doc.text.toString());
+    }
+
+    @Test
+    public void backspacing_mergesIntoOneUndoStep() {
+        doc.text.append("abcdef");
+        for (int i = 6; i > 2; i--) edit(i - 1, i, "");
+
+        assertEquals("ab", doc.text.toString());
+        history.undo(doc);
+        assertEquals("abcdef", doc.text.toString());
+    }
+
+    @Test
+    public void composingRewrites_mergeIntoOneUndoStep() {
+        edit(0, 0, "hel");
+        edit(0, 3, "hell");
+        edit(0, 4, "hello");
+
+        history.undo(doc);
+        assertEquals("", doc.text.toString());
+    }
+
+    @Test
+    public void undo_restoresSpansLostToADeletion() {
+        doc.text.append("bold and italic");
+        doc.addSpan(new EditHistory.Span(BOLD, 0, 4));
+        doc.addSpan(new EditHistory.Span(ITALIC, 9, 15));
+        Set<EditHistory.Span> original = new HashSet<>(doc.spans);
+
+        edit(2, 12, "");
+        assertEquals("bolic", doc.text.toString());
+
+        history.undo(doc);
+        assertEquals("bold and italic", doc.text.toString());
+        assertEquals(original, new HashSet<>(doc.spans));
+
+        history.redo(doc);
+        assertEquals("bolic", doc.text.toString());
+    }
+
+    @Test
+    public void styleEdits_undoAndRedo() {
+        doc.text.append("plain text");
+        List<EditHistory.Span> before = doc.spans(0, 5);
+        doc.addSpan(new EditHistory.Span(BOLD, 0, 5));
+        history.recordStyle(0, 5, before, doc.spans(0, 5), now);
+
+        history.undo(doc);
+        assertTrue(doc.spans.isEmpty());
+        history.redo(doc);
+        assertEquals(1, doc.spans.size());
+        assertEquals(new EditHistory.Span(BOLD, 0, 5), doc.spans.get(0));
+    }
+
+    @Test
+    public void newEdit_dropsRedo() {
+        type(0, "one");
+        history.undo(doc);
+        assertTrue(history.canRedo());
+
+        type(0, "two");
+        assertFalse(history.canRedo());
+    }
+
+    @Test
+    public void randomSession_undoesBackToTheStartWithSpans() {
+        Random random = new Random(7);
+        doc.text.append("The quick brown fox jumps over the lazy dog");
+        doc.addSpan(new EditHistory.Span(BOLD, 4, 9));
+        doc.addSpan(new EditHistory.Span(ITALIC, 10, 19));
+        String startText = doc.text.toString();
+        Set<EditHistory.Span> startSpans = new HashSet<>(doc.spans);
+
+        for (int i = 0; i < 60; i++) {
+            int length = doc.text.length();
+            int start = random.nextInt(length + 1);
+            int end = Math.min(length, start + random.nextInt(6));
+            now += random.nextBoolean() ? 100 : WINDOW + 1;
+            edit(start, end, random.nextInt(3) == 0 ? "" : "xy".substring(0, 1 + random.nextInt(2)));
+        }
+
+        while (history.canUndo()) history.undo(doc);
+        assertEquals(startText, doc.text.toString());
+        assertEquals(startSpans, new HashSet<>(doc.spans));
+    }
+
+    @Test
+    public void longSession_staysWithinTheMemoryBudget() {
+        EditHistory bounded = new EditHistory(200, 64 * 1024, WINDOW);
+        Random random = new Random(3);
+        for (int i = 0; i < 20_000; i++) doc.text.append((char) ('a' + random.nextInt(26)));
+
+        // 50k separate bursts on a 20k-char note; snapshots would hold ~1 GB of text.
+        for (int i = 0; i < 50_000; i++) {
+            now += WINDOW + 1;
+            int start = random.nextInt(doc.text.length());
+            String removed = doc.text.substring(start, Math.min(doc.text.length(), start + 3));
+            List<EditHistory.Span> before = doc.spans(start, start + removed.length());
+            doc.replace(start, start + removed.length(), "word");
+            bounded.recordText(doc, start, removed, "word", before, now);
+        }
+
+        assertTrue("cost " + bounded.cost(), bounded.cost() <= 64 * 1024);
+        assertEquals(200, bounded.size());
+
+        String latest = doc.text.toString();
+        for (int i = 0; i < 200; i++) bounded.undo(doc);
+        for (int i = 0; i < 200; i++) bounded.redo(doc);
+        assertEquals(latest, doc.text.toString());
+    }
+
+    @Test
+    public void budget_dropsOldestEditsButKeepsTheNewest() {
+        EditHistory small = new EditHistory(100, 100, WINDOW);
+        String big = "x".repeat(500);
+        List<EditHistory.Span> none = new ArrayList<>();
+
+        doc.replace(0, 0, "a");
+        small.recordText(doc, 0, "", "a", none, 0);
+        doc.replace(1, 1, big);
+        small.recordText(doc, 1, "", big, none, 10_000);
+
+        assertEquals(1, small.size());
+        small.undo(doc);
+        assertEquals("a", doc.text.toString());
+    }
+
+    private void type(int offset, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            now += 50;
+            edit(offset + i, offset + i, text.substring(i, i + 1));
+        }
+    }
+
+    // Applies the change to the document and records it, as the editor's TextWatcher does.
+    private void edit(int start, int end, String text) {
+        String removed = doc.text.substring(start, end);
+        List<EditHistory.Span> before = doc.spans(start, end);
+        doc.replace(start, end, text);
+        history.recordText(doc, start, removed, text, before, now);
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.fortnote;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+public class EncryptionManagerTest {
+
+    private static final String PASSWORD = "hunter2";
+    private static final byte[] TEXT = "<p>Meet at noon</p>".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        EncryptionManager.setIterations(EncryptionManager.LEGACY_ITERATIONS);
+        EncryptionManager.setKeySource(null, null);
+        EncryptionManager.clearKeyCache();
+    }
+
+    @Test
+    public void header_recordsTheKdfAndItsCost() throws Exception {
+        EncryptionManager.setIterations(12_000);
+        byte[] sealed = encrypt(TEXT);
+
+        ByteBuffer header = ByteBuffer.wrap(sealed);
+        assertEquals('F', header.get());
+        assertEquals('N', header.get());
+        assertEquals('S', header.get());
+        assertEquals(3, header.get());
+        header.getInt();
+        assertEquals(1, header.get());
+        assertEquals(12_000, header.getInt());
+        // Streams are left for the caller to compress.
+        assertEquals(0, header.get());
+
+        assertArrayEquals(TEXT, decrypt(sealed));
+    }
+
+    @Test
+    public void notesKeepTheirCostWhenTheSettingChanges() throws Exception {
+        EncryptionManager.setIterations(10_000);
+        byte[] sealed = encrypt(TEXT);
+
+        EncryptionManager.setIterations(20_000);
+        EncryptionManager.clearKeyCache();
+        assertArrayEquals(TEXT, decrypt(sealed));
+    }
+
+    @Test
+    public void versionOneAndTwoNotes_stillDecrypt() throws Exception {
+        assertArrayEquals(TEXT, decrypt(encryptOldVersion(1, TEXT)));
+        assertArrayEquals(TEXT, decrypt(encryptOldVersion(2, TEXT)));
+    }
+
+    @Test
+    public void longNotes_areDeflatedBeforeSealing() throws Exception {
+        EncryptionManager.setIterations(EncryptionManager.MIN_ITERATIONS);
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            html.append("<p dir=\"ltr\"><span style=\"color:#000000;\">Line ").append(i).append("</span></p>\n");
+        }
+        String note = html.toString();
+
+        String sealed = EncryptionManager.encrypt(note, PASSWORD);
+        assertTrue(sealed.length() < note.length() / 2);
+        assertTrue(EncryptionManager.isCurrent(sealed));
+        assertEquals(note, EncryptionManager.decrypt(sealed, PASSWORD));
+
+        EncryptionManager.setCompressNotes(false);
+        try {
+            String plain = EncryptionManager.encrypt(note, PASSWORD);
+            assertTrue(plain.length() > note.length());
+            assertEquals(note, EncryptionManager.decrypt(plain, PASSWORD));
+        } finally {
+            EncryptionManager.setCompressNotes(true);
+        }
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void anUnreasonableCostIsRefusedBeforeDerivingAKey() throws Exception {
+        EncryptionManager.setIterations(10_000);
+        byte[] sealed = encrypt(TEXT);
+        ByteBuffer.wrap(sealed).putInt(9, EncryptionManager.MAX_ITERATIONS + 1);
+
+        decrypt(sealed);
+    }
+
+    @Test
+    public void setIterations_staysWithinBounds() {
+        EncryptionManager.setIterations(1);
+        assertEquals(EncryptionManager.MIN_ITERATIONS, EncryptionManager.getIterations());
+        EncryptionManager.setIterations(Integer.MAX_VALUE);
+        assertEquals(EncryptionManager.MAX_ITERATIONS, EncryptionManager.getIterations());
+    }
+
+    @Test
+    public void calibrate_scalesWithTheTarget() throws Exception {
+        int fast = EncryptionManager.calibrateIterations(20);
+        int slow = EncryptionManager.calibrateIterations(200);
+
+        assertEquals(0, fast % 1000);
+        assertTrue(fast >= EncryptionManager.MIN_ITERATIONS);
+        assertTrue(slow <= EncryptionManager.MAX_ITERATIONS);
+        assertTrue(fast + " vs " + slow, slow > fast);
+    }
+
+    @Test
+    public void aWrappedKey_opensTheNoteWithoutTheKdf() throws Exception {
+        File dir = tmp.newFolder("keys");
+        SoftwareKeySource source = new SoftwareKeySource();
+        EncryptionManager.setKeySource(source, dir);
+        byte[] sealed = encrypt(TEXT);
+
+        // As after a restart: nothing cached, the wrapped keys read back from disk.
+        EncryptionManager.clearKeyCache();
+        EncryptionManager.setKeySource(source, dir);
+        long runs = EncryptionManager.KDF_RUNS.get();
+        assertArrayEquals(TEXT, decrypt(sealed));
+        assertEquals(runs, EncryptionManager.KDF_RUNS.get());
+    }
+
+    @Test
+    public void aWrongPassword_isNotLetInByTheWrappedKey() throws Exception {
+        EncryptionManager.setKeySource(new SoftwareKeySource(), tmp.newFolder("keys"));
+        byte[] sealed = encrypt(TEXT);
+        EncryptionManager.clearKeyCache();
+
+        try {
+            EncryptionManager.decrypt(new ByteArrayInputStream(sealed), new ByteArrayOutputStream(), "hunter3");
+            fail("opened with the wrong password");
+        } catch (GeneralSecurityException expected) {
+        }
+        assertArrayEquals(TEXT, decrypt(sealed));
+    }
+
+    @Test
+    public void aWrongPassword_runsTheKdfOnlyOnce() throws Exception {
+        EncryptionManager.setIterations(EncryptionManager.MIN_ITERATIONS);
+        String sealed = EncryptionManager.encrypt("<p>Meet at noon</p>", PASSWORD);
+        EncryptionManager.clearKeyCache();
+
+        long runs = EncryptionManager.KDF_RUNS.get();
+        try {
+            EncryptionManager.decrypt(sealed, "hunter3");
+            fail("opened with the wrong password");
+        } catch (GeneralSecurityException expected) {
+            assertFalse(expected instanceof EncryptionManager.NotThisLayoutException);
+        }
+        assertEquals(runs + 1, EncryptionManager.KDF_RUNS.get());
+    }
+
+    @Test
+    public void aLostSourceKey_fallsBackToTheKdfOnce() throws Exception {
+        File dir = tmp.newFolder("keys");
+        EncryptionManager.setKeySource(new SoftwareKeySource(), dir);
+        byte[] sealed = encrypt(TEXT);
+
+        // A new source cannot open what the old one wrapped, like a Keystore key that is gone.
+        EncryptionManager.clearKeyCache();
+        EncryptionManager.setKeySource(new SoftwareKeySource(), dir);
+        long runs = EncryptionManager.KDF_RUNS.get();
+        assertArrayEquals(TEXT, decrypt(sealed));
+        assertEquals(runs + 1, EncryptionManager.KDF_RUNS.get());
+
+        EncryptionManager.clearKeyCache();
+        assertArrayEquals(TEXT, decrypt(sealed));
+        assertEquals(runs + 1, EncryptionManager.KDF_RUNS.get());
+    }
+
+    @Test
+    public void forgetWrappedKeys_bringsBackTheKdf() throws Exception {
+        File dir = tmp.newFolder("keys");
+        EncryptionManager.setKeySource(new SoftwareKeySource(), dir);
+        byte[] sealed = encrypt(TEXT);
+        assertEquals(1, dir.list().length);
+
+        EncryptionManager.forgetWrappedKeys(dir);
+        EncryptionManager.clearKeyCache();
+        long runs = EncryptionManager.KDF_RUNS.get();
+        assertArrayEquals(TEXT, decrypt(sealed));
+        assertEquals(runs + 1, EncryptionManager.KDF_RUNS.get());
+    }
+
+    private static byte[] encrypt(byte[] plain) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EncryptionManager.encrypt(new ByteArrayInputStream(plain), out, PASSWORD);
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] sealed) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EncryptionManager.decrypt(new ByteArrayInputStream(sealed), out, PASSWORD);
+        return out.toByteArray();
+    }
+
+    // Layouts earlier builds wrote: version 1 had no KDF fields and used 65536
+    // iterations, version 2 recorded them but had no codec.
+    private static byte[] encryptOldVersion(int version, byte[] plain) throws Exception {
+        SecureRandom random = new SecureRandom();
+        byte[] salt = new byte[16];
+        byte[] wrapIv = new byte[12];
+        byte[] dataKey = new byte[32];
+        byte[] noncePrefix = new byte[ChunkedCipher.NONCE_PREFIX_LENGTH];
+        random.nextBytes(salt);
+        random.nextBytes(wrapIv);
+        random.nextBytes(dataKey);
+        random.nextBytes(noncePrefix);
+
+        PBEKeySpec spec = new PBEKeySpec(PASSWORD.toCharArray(), salt, EncryptionManager.LEGACY_ITERATIONS, 256);
+        byte[] masterKey = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        Cipher wrap = Cipher.getInstance("AES/GCM/NoPadding");
+        wrap.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(masterKey, "AES"), new GCMParameterSpec(128, wrapIv));
+        byte[] wrappedKey = wrap.doFinal(dataKey);
+
+        int chunkSize = 64 * 1024;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + (version > 1 ? 5 : 0)
+                + salt.length + wrapIv.length + wrappedKey.length + noncePrefix.length);
+        buffer.put(new byte[] {'F', 'N', 'S', (byte) version}).putInt(chunkSize);
+        if (version > 1) buffer.put((byte) 1).putInt(EncryptionManager.LEGACY_ITERATIONS);
+        byte[] header = buffer.put(salt).put(wrapIv).put(wrappedKey).put(noncePrefix).array();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header);
+        try (OutputStream sealed = ChunkedCipher.encrypt(out, dataKey, noncePrefix, header, chunkSize)) {
+            sealed.write(plain);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.fortnote;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class KeyCacheTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+    private final KeyCache cache = new KeyCache(1000, 2, now::get);
+
+    private static final byte[] FP_A = {1};
+    private static final byte[] FP_B = {2};
+    private static final byte[] SALT_1 = {10, 11};
+    private static final byte[] SALT_2 = {20, 21};
+    private static final int COST = 1000;
+
+    @Test
+    public void get_returnsACopyOfTheKey() {
+        byte[] key = {7, 7, 7};
+        cache.put(FP_A, SALT_1, COST, key);
+        key[0] = 0;
+
+        byte[] first = cache.get(FP_A, SALT_1, COST);
+        assertArrayEquals(new byte[]{7, 7, 7}, first);
+        first[1] = 0;
+        assertArrayEquals(new byte[]{7, 7, 7}, cache.get(FP_A, SALT_1, COST));
+        assertNull(cache.get(FP_B, SALT_1, COST));
+        assertNull(cache.get(FP_A, SALT_2, COST));
+    }
+
+    @Test
+    public void entries_expireAfterIdleTtl() {
+        cache.put(FP_A, SALT_1, COST, new byte[]{1});
+        now.set(900);
+        assertNotNull(cache.get(FP_A, SALT_1, COST));
+
+        // Use refreshes the entry; it expires a full TTL after the last use.
+        now.set(1800);
+        assertNotNull(cache.get(FP_A, SALT_1, COST));
+        now.set(2800);
+        assertNull(cache.get(FP_A, SALT_1, COST));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedPastCapacity() {
+        cache.put(FP_A, SALT_1, COST, new byte[]{1});
+        cache.put(FP_A, SALT_2, COST, new byte[]{2});
+        cache.get(FP_A, SALT_1, COST);
+        cache.put(FP_B, SALT_1, COST, new byte[]{3});
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(FP_A, SALT_1, COST));
+        assertNull(cache.get(FP_A, SALT_2, COST));
+    }
+
+    @Test
+    public void findSalt_returnsNewestSaltForThatPassword() {
+        cache.put(FP_A, SALT_1, COST, new byte[]{1});
+        now.set(10);
+        cache.put(FP_A, SALT_2, COST, new byte[]{2});
+
+        assertArrayEquals(SALT_2, cache.findSalt(FP_A, COST));
+        assertNull(cache.findSalt(FP_B, COST));
+    }
+
+    @Test
+    public void keysAtADifferentCost_areSeparate() {
+        cache.put(FP_A, SALT_1, COST, new byte[]{1});
+
+        assertNull(cache.get(FP_A, SALT_1, COST * 2));
+        assertNull(cache.findSalt(FP_A, COST * 2));
+        assertArrayEquals(SALT_1, cache.findSalt(FP_A, COST));
+    }
+
+    @Test
+    public void clear_dropsEverything() {
+        cache.put(FP_A, SALT_1, COST, new byte[]{1});
+        cache.clear();
+
+        assertEquals(0, cache.size());
+        assertNull(cache.findSalt(FP_A, COST));
+    }
+}
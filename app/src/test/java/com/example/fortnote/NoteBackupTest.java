@@ -0,0 +1,153 @@
+package com.example.fortnote;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NoteBackupTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private NoteRepository source;
+    private NoteRepository target;
+    private String cipherText;
+
+    @Before
+    public void setUp() throws IOException {
+        EncryptionManager.setIterations(EncryptionManager.MIN_ITERATIONS);
+        source = new NoteRepository(new NoteStore(tmp.newFolder("source")));
+        target = new NoteRepository(new NoteStore(tmp.newFolder("target")));
+
+        byte[] cipher = new byte[500];
+        new Random(3).nextBytes(cipher);
+        cipherText = Base64.getEncoder().encodeToString(cipher);
+
+        source.insert(new Note("a", "Groceries", "<p>milk, eggs</p>", 10L, 10L, false));
+        source.insert(new Note("b", "Diary", cipherText, 20L, 20L, true));
+        source.insert(new Note("c", "Ideas", "<p>a backup format</p>", 30L, 30L, false));
+    }
+
+    @After
+    public void tearDown() {
+        EncryptionManager.setIterations(EncryptionManager.LEGACY_ITERATIONS);
+        EncryptionManager.clearKeyCache();
+    }
+
+    @Test
+    public void restore_bringsBackEveryNote() throws Exception {
+        NoteBackup.Result result = NoteBackup.restore(target, new ByteArrayInputStream(backup(null)), null);
+
+        assertEquals(3, result.getInserted());
+        assertEquals("<p>milk, eggs</p>", target.get("a").getContent());
+        assertEquals("Ideas", target.get("c").getTitle());
+        // The locked note comes back exactly as it was stored, still locked.
+        assertTrue(target.get("b").isLocked());
+        assertEquals(cipherText, target.get("b").getContent());
+    }
+
+    @Test
+    public void encryptedBackup_needsThePasswordAndHidesTheNotes() throws Exception {
+        byte[] archive = backup("backup pass");
+        assertFalse(new String(archive, StandardCharsets.ISO_8859_1).contains("Groceries"));
+
+        try {
+            NoteBackup.verify(new ByteArrayInputStream(archive), "wrong pass");
+            fail("opened with the wrong password");
+        } catch (GeneralSecurityException | IOException expected) {
+        }
+        EncryptionManager.clearKeyCache();
+        assertEquals(3, NoteBackup.verify(new ByteArrayInputStream(archive), "backup pass"));
+    }
+
+    @Test
+    public void restore_refusesAnIdThatIsAPath() throws Exception {
+        Note evil = new Note("../escaped", "Evil", "<p>owned</p>", 40L, 40L, false);
+        NoteRepository crafted = new NoteRepository(new NoteStore(tmp.newFolder("crafted"))) {
+            @Override public synchronized List<NoteSummary> getSummaries() { return List.of(NoteSummary.of(evil)); }
+            @Override public Note get(String id) { return evil; }
+        };
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        NoteBackup.write(crafted, archive, null);
+
+        try {
+            NoteBackup.restore(target, new ByteArrayInputStream(archive.toByteArray()), null);
+            fail("restored a note whose id is a path");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, target.size());
+        assertFalse(new File(tmp.getRoot(), "escaped.note").exists());
+        assertFalse(new File(tmp.getRoot(), "escaped.body").exists());
+    }
+
+    @Test
+    public void restore_keepsWhicheverCopyWasEditedLast() throws Exception {
+        target.insert(new Note("a", "Groceries", "<p>milk, eggs, bread</p>", 15L, 10L, false));
+        target.insert(new Note("c", "Ideas", "<p>old</p>", 25L, 30L, false));
+
+        NoteBackup.Result result = NoteBackup.restore(target, new ByteArrayInputStream(backup(null)), null);
+
+        assertEquals(1, result.getInserted());
+        assertEquals(1, result.getUpdated());
+        assertEquals(1, result.getSkipped());
+        assertEquals("<p>milk, eggs, bread</p>", target.get("a").getContent());
+        assertEquals("<p>a backup format</p>", target.get("c").getContent());
+    }
+
+    @Test
+    public void aTruncatedArchive_restoresWhatItCanAndTheFullOneFinishes() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            source.insert(new Note("n" + i, "Note " + i, randomText(i), 100L + i, 100L + i, false));
+        }
+        byte[] archive = backup("backup pass");
+
+        try {
+            NoteBackup.restore(target, new ByteArrayInputStream(Arrays.copyOf(archive, archive.length / 2)),
+                    "backup pass");
+            fail("restored a truncated archive");
+        } catch (IOException expected) {
+        }
+        int partial = target.size();
+        assertTrue(partial > 0 && partial < 203);
+
+        NoteBackup.Result result = NoteBackup.restore(target, new ByteArrayInputStream(archive), "backup pass");
+        assertEquals(partial, result.getSkipped());
+        assertEquals(203, target.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void verify_catchesADamagedArchive() throws Exception {
+        byte[] archive = backup(null);
+        archive[archive.length / 2] ^= 0x10;
+
+        NoteBackup.verify(new ByteArrayInputStream(archive), null);
+    }
+
+    private byte[] backup(String password) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(source.size(), NoteBackup.write(source, out, password));
+        return out.toByteArray();
+    }
+
+    // Incompressible, so the archive spans many encrypted chunks.
+    private static String randomText(int seed) {
+        byte[] bytes = new byte[2000];
+        new Random(seed).nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+}
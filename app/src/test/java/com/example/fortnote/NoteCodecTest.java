@@ -0,0 +1,173 @@
+package com.example.fortnote;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NoteCodecTest {
+
+    @Test
+    public void record_roundTripsEveryField() throws IOException {
+        Note note = new Note("id-1", "Tïtle ✓", "<p>Body</p>", 1_700_000_000_123L, 1_600_000_000_000L, false);
+        note.setPlaintextLength(4);
+        note.setPreview("Body");
+        NoteCodec.Body body = NoteCodec.encodeBody(note, false);
+
+        NoteCodec.Record record = NoteCodec.decodeRecord(NoteCodec.encodeRecord(note, 7, body));
+
+        NoteSummary summary = record.summary;
+        assertEquals("id-1", summary.getId());
+        assertEquals("Tïtle ✓", summary.getTitle());
+        assertEquals(1_700_000_000_123L, summary.getTimestamp());
+        assertEquals(1_600_000_000_000L, summary.getCreationTimestamp());
+        assertFalse(summary.isLocked());
+        assertEquals(4, summary.getPlaintextLength());
+        assertEquals("Body", summary.getPreview());
+        assertEquals(7, record.generation);
+        assertEquals(NoteCodec.crc(body.bytes, 0, body.bytes.length), record.bodyCrc);
+        assertFalse(record.rawBody);
+    }
+
+    @Test
+    public void lockedBody_isStoredAsRawCiphertext() throws IOException {
+        byte[] cipher = new byte[300];
+        new Random(1).nextBytes(cipher);
+        Note note = new Note("a", "T", Base64.getEncoder().encodeToString(cipher), 1L, 1L, true);
+        note.setPreview("secret");
+
+        byte[] raw = NoteCodec.rawBody(note);
+        assertArrayEquals(cipher, raw);
+        assertEquals(note.getContent(), NoteCodec.decodeBody(raw, true));
+
+        NoteCodec.Record record = NoteCodec.decodeRecord(NoteCodec.encodeRecord(note, 1, NoteCodec.encodeBody(note, true)));
+        assertTrue(record.summary.isLocked());
+        assertTrue(record.rawBody);
+        assertNull(record.summary.getPreview());
+    }
+
+    @Test
+    public void longText_isDeflatedAndFlaggedInTheRecord() throws IOException {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 50; i++) html.append("<p dir=\"ltr\">Item ").append(i).append("</p>\n");
+        Note note = new Note("a", "T", html.toString(), 1L, 1L, false);
+
+        NoteCodec.Body body = NoteCodec.encodeBody(note, true);
+        assertTrue(body.deflated);
+        assertTrue(body.bytes.length < html.length() / 2);
+
+        NoteCodec.Record record = NoteCodec.decodeRecord(NoteCodec.encodeRecord(note, 1, body));
+        assertTrue(record.deflated);
+        assertEquals(NoteCodec.crc(body.bytes, 0, body.bytes.length), record.bodyCrc);
+        assertEquals(html.toString(), NoteCodec.decodeBody(body.bytes, record));
+    }
+
+    @Test
+    public void shortTextAndCiphertext_areStoredAsTheyAre() throws IOException {
+        Note small = new Note("a", "T", "<p>Body</p>", 1L, 1L, false);
+        NoteCodec.Body body = NoteCodec.encodeBody(small, true);
+        assertFalse(body.deflated);
+        NoteCodec.Record record = NoteCodec.decodeRecord(NoteCodec.encodeRecord(small, 1, body));
+        assertEquals("<p>Body</p>", NoteCodec.decodeBody(body.bytes, record));
+
+        byte[] cipher = new byte[3000];
+        new Random(4).nextBytes(cipher);
+        Note locked = new Note("b", "T", Base64.getEncoder().encodeToString(cipher), 1L, 1L, true);
+        body = NoteCodec.encodeBody(locked, true);
+        assertTrue(body.raw);
+        assertFalse(body.deflated);
+    }
+
+    @Test
+    public void rawBody_keepsTextThatWouldNotRoundTrip() {
+        byte[] cipher = new byte[100];
+        String wrapped = Base64.getMimeEncoder().encodeToString(cipher);
+
+        assertNull(NoteCodec.rawBody(new Note("a", "T", wrapped, 1L, 1L, true)));
+        assertNull(NoteCodec.rawBody(new Note("b", "T", "not base64!", 1L, 1L, true)));
+        assertNull(NoteCodec.rawBody(new Note("c", "T", "c2Vj", 1L, 1L, false)));
+    }
+
+    @Test
+    public void base64_matchesTheStandardEncoding() {
+        Random random = new Random(9);
+        for (int length = 0; length < 64; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String expected = Base64.getEncoder().encodeToString(data);
+
+            assertEquals(expected, NoteCodec.base64Encode(data));
+            assertArrayEquals(data, NoteCodec.base64Decode(expected));
+        }
+        assertNull(NoteCodec.base64Decode("c2Vj\n"));
+        assertNull(NoteCodec.base64Decode("c2=j"));
+        // Stray bits under the padding decode elsewhere but would not encode back.
+        assertNull(NoteCodec.base64Decode("c2V="));
+    }
+
+    @Test
+    public void decode_rejectsCorruptAndTruncatedRecords() {
+        Note note = new Note("a", "Title", "x", 1L, 1L, false);
+        byte[] data = NoteCodec.encodeRecord(note, 1, NoteCodec.encodeBody(note, false));
+
+        byte[] flipped = data.clone();
+        flipped[data.length - 2] ^= 0x20;
+        assertDecodeFails(flipped);
+        assertDecodeFails(Arrays.copyOf(data, data.length - 3));
+    }
+
+    // A mix of plain and locked notes; the JSON side is the record and body as the
+    // store wrote them before. Speed is compared in CodecBenchmark.
+    @Test
+    public void binaryRecords_areSmallerThanJson() throws Exception {
+        List<Note> notes = sampleNotes(2000);
+
+        long jsonBytes = 0;
+        long binaryBytes = 0;
+        for (Note note : notes) {
+            jsonBytes += NoteStore.toJson(note).toString().getBytes(StandardCharsets.UTF_8).length
+                    + note.getContent().getBytes(StandardCharsets.UTF_8).length;
+            NoteCodec.Body body = NoteCodec.encodeBody(note, false);
+            binaryBytes += NoteCodec.encodeRecord(note, 1, body).length + body.bytes.length;
+        }
+        assertTrue("json " + jsonBytes + " B, binary " + binaryBytes + " B", binaryBytes < jsonBytes);
+    }
+
+    private static List<Note> sampleNotes(int count) {
+        Random random = new Random(5);
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long now = 1_700_000_000_000L + i * 60_000L;
+            if (i % 3 == 0) {
+                byte[] cipher = new byte[200 + random.nextInt(800)];
+                random.nextBytes(cipher);
+                Note note = new Note("id-" + i, "Locked " + i, Base64.getEncoder().encodeToString(cipher),
+                        now, now, true);
+                note.setPlaintextLength(cipher.length);
+                notes.add(note);
+            } else {
+                String text = "Shopping list " + i + ": milk, eggs, bread and \"butter\"";
+                Note note = new Note("id-" + i, "Note " + i, "<p dir=\"ltr\">" + text + "</p>", now, now, false);
+                note.setPlaintextLength(text.length());
+                note.setPreview(text);
+                notes.add(note);
+            }
+        }
+        return notes;
+    }
+
+    private static void assertDecodeFails(byte[] data) {
+        try {
+            NoteCodec.decodeRecord(data);
+            fail("decoded a damaged record");
+        } catch (IOException expected) {
+        }
+    }
+}
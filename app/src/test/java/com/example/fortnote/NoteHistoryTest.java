@@ -0,0 +1,201 @@
+package com.example.fortnote;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NoteHistoryTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private NoteHistory history;
+
+    @Before
+    public void setUp() throws IOException {
+        EncryptionManager.setIterations(EncryptionManager.MIN_ITERATIONS);
+        dir = tmp.newFolder("history");
+        history = new NoteHistory(dir, 100, 365 * DAY);
+    }
+
+    @After
+    public void tearDown() {
+        EncryptionManager.setIterations(EncryptionManager.LEGACY_ITERATIONS);
+        EncryptionManager.clearKeyCache();
+    }
+
+    @Test
+    public void everyRevision_readsBackWithBoundedDeltas() throws Exception {
+        List<String> versions = recordEdits("a", 30, 1000L);
+
+        assertEquals(30, history.list("a", null).size());
+        long stored = new File(dir, "a.rev").length();
+        long total = 0;
+        for (int i = 0; i < versions.size(); i++) {
+            history.deltasApplied.set(0);
+            assertEquals(versions.get(i), history.content("a", i + 1, null));
+            assertTrue(history.deltasApplied.get() < NoteHistory.KEYFRAME_INTERVAL);
+            total += versions.get(i).length();
+        }
+        assertTrue("stored " + stored + " of " + total, stored < total / 8);
+    }
+
+    @Test
+    public void record_skipsAnUnchangedNote() throws Exception {
+        history.record("a", "T", "<p>one</p>", 1L);
+        assertFalse(history.record("a", "T", "<p>one</p>", 2L));
+        history.record("a", "Renamed", "<p>one</p>", 3L);
+
+        List<NoteHistory.Revision> revisions = history.list("a", null);
+        assertEquals(2, revisions.size());
+        assertEquals("Renamed", revisions.get(1).title);
+        assertEquals(2, revisions.get(1).number);
+    }
+
+    @Test
+    public void compact_keepsTheNewestRevisionsAndTheirNumbers() throws Exception {
+        history.setRetention(5, 365 * DAY);
+        List<String> versions = new ArrayList<>();
+        boolean due = false;
+        for (int i = 0; i < 12; i++) {
+            String content = note(i);
+            versions.add(content);
+            due |= history.record("a", "T", content, 1000L + i);
+        }
+        assertTrue(due);
+
+        assertTrue(history.compact("a", 2000L));
+        List<NoteHistory.Revision> revisions = history.list("a", null);
+        assertEquals(5, revisions.size());
+        assertEquals(8, revisions.get(0).number);
+        for (NoteHistory.Revision revision : revisions) {
+            assertEquals(versions.get((int) revision.number - 1), history.content("a", revision.number, null));
+        }
+        assertFalse(history.compact("a", 2000L));
+    }
+
+    @Test
+    public void compact_dropsOldRevisionsButAlwaysKeepsTheNewest() throws Exception {
+        history.setRetention(100, 10 * DAY);
+        history.record("a", "T", note(0), 0L);
+        history.record("a", "T", note(1), DAY);
+        history.record("b", "T", note(2), 0L);
+
+        history.compactAll(30 * DAY);
+        assertEquals(1, history.list("a", null).size());
+        assertEquals(note(1), history.content("a", 2, null));
+        assertEquals(note(2), history.content("b", 1, null));
+    }
+
+    @Test
+    public void aSealedHistory_needsThePasswordAndRecordsNothing() throws Exception {
+        history.record("a", "T", "<p>the secret plan</p>", 1L);
+        history.seal("a", "hunter2");
+
+        byte[] file = Files.readAllBytes(new File(dir, "a.rev").toPath());
+        assertFalse(new String(file, StandardCharsets.ISO_8859_1).contains("secret"));
+        try {
+            history.list("a", null);
+            fail("listed a sealed history without the password");
+        } catch (GeneralSecurityException expected) {
+        }
+        assertEquals("<p>the secret plan</p>", history.content("a", 1, "hunter2"));
+        assertFalse(history.record("a", "T", "<p>changed</p>", 2L));
+
+        history.unseal("a", "hunter2");
+        history.record("a", "T", "<p>changed</p>", 2L);
+        assertEquals(2, history.list("a", null).size());
+        assertEquals("<p>the secret plan</p>", history.content("a", 1, null));
+    }
+
+    @Test
+    public void restoringALockedCopy_dropsTheReadableHistory() throws Exception {
+        NoteRepository repository = new NoteRepository(new NoteStore(tmp.newFolder("notes")));
+        repository.addListener(history.recorder(Runnable::run));
+        repository.insert(new Note("a", "Plan", "<p>the secret plan</p>", 1L, 1L, false));
+        repository.update(new Note("a", "Plan", "<p>the secret plan, v2</p>", 2L, 1L, false));
+        assertEquals(2, history.list("a", null).size());
+
+        NoteRepository other = new NoteRepository(new NoteStore(tmp.newFolder("other")));
+        String cipherText = Base64.getEncoder().encodeToString(new byte[64]);
+        other.insert(new Note("a", "Plan", cipherText, 10L, 1L, true));
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        NoteBackup.write(other, archive, null);
+
+        NoteBackup.restore(repository, new ByteArrayInputStream(archive.toByteArray()), null);
+        assertTrue(repository.get("a").isLocked());
+        assertFalse(new File(dir, "a.rev").exists());
+    }
+
+    @Test
+    public void aSealedHistory_survivesTheLockedSave() throws Exception {
+        NoteRepository repository = new NoteRepository(new NoteStore(tmp.newFolder("notes")));
+        repository.addListener(history.recorder(Runnable::run));
+        repository.insert(new Note("a", "Plan", "<p>the secret plan</p>", 1L, 1L, false));
+
+        history.seal("a", "hunter2");
+        String cipherText = Base64.getEncoder().encodeToString(new byte[64]);
+        repository.update(new Note("a", "Plan", cipherText, 1L, 1L, true));
+
+        assertEquals("<p>the secret plan</p>", history.content("a", 1, "hunter2"));
+    }
+
+    @Test
+    public void aTornTail_isCutOffBeforeTheNextRevision() throws Exception {
+        history.record("a", "T", note(0), 1L);
+        Files.write(new File(dir, "a.rev").toPath(), new byte[] {0, 0, 1, 0, 7},
+                StandardOpenOption.APPEND);
+
+        history.record("a", "T", note(1), 2L);
+        assertEquals(2, history.list("a", null).size());
+        assertEquals(note(1), history.content("a", 2, null));
+    }
+
+    @Test
+    public void deltas_neverSplitASurrogatePair() throws Exception {
+        history.record("a", "T", "<p>mood: 😀 and more text after it</p>", 1L);
+        history.record("a", "T", "<p>mood: 😁 and more text after it</p>", 2L);
+
+        assertEquals("<p>mood: 😁 and more text after it</p>", history.content("a", 2, null));
+    }
+
+    // Each version changes one line of a long note, as typing does.
+    private List<String> recordEdits(String id, int count, long start) throws IOException {
+        List<String> versions = new ArrayList<>();
+        StringBuilder content = new StringBuilder(note(0));
+        for (int i = 0; i < count; i++) {
+            content.insert(content.length() / 2, "<p>edit " + i + "</p>");
+            versions.add(content.toString());
+            history.record(id, "Title", content.toString(), start + i);
+        }
+        return versions;
+    }
+
+    private static String note(int seed) {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            html.append("<p dir=\"ltr\">Line ").append(i).append(" of note ").append(seed).append("</p>\n");
+        }
+        return html.toString();
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.fortnote;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class NoteIndexTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private NoteRepository repository;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.newFolder("notes");
+        repository = new NoteRepository(new NoteStore(dir));
+        for (int i = 0; i < 50; i++) repository.insert(new Note("n" + i, "N" + i, "body " + i, i, i, false));
+    }
+
+    @Test
+    public void reopening_listsFromTheIndexWithoutReadingEveryRecord() {
+        AtomicInteger reads = new AtomicInteger();
+        NoteRepository fresh = new NoteRepository(new NoteStore(dir) {
+            @Override
+            public List<NoteSummary> readSummaries() {
+                throw new AssertionError("read every record to list notes");
+            }
+
+            @Override
+            public NoteSummary readSummary(String id) {
+                reads.incrementAndGet();
+                return super.readSummary(id);
+            }
+        });
+
+        List<NoteSummary> page = fresh.getSummaries(NoteRepository.ORDER_CREATED, 0, 30);
+        assertEquals(30, page.size());
+        assertEquals("n49", page.get(0).getId());
+        assertNull(page.get(0).getPreview());
+        assertEquals(50, fresh.size());
+        // Only the last write is checked against its record.
+        assertTrue(String.valueOf(reads.get()), reads.get() <= 1);
+    }
+
+    @Test
+    public void missingIndex_isRebuiltFromTheRecords() {
+        assertTrue(new File(dir, "notes.index").delete());
+
+        assertEquals(50, new NoteRepository(new NoteStore(dir)).size());
+        assertTrue(new File(dir, "notes.index").exists());
+    }
+
+    @Test
+    public void loggedWriteThatNeverHappened_isUndoneOnOpen() throws IOException {
+        NoteStore store = new NoteStore(dir);
+        NoteIndex index = new NoteIndex(new File(dir, "notes.index"), source(store));
+        index.entries();
+        index.log(List.of(new NoteSummary("n3", "renamed", 99L, 3L, false, 0, null),
+                new NoteSummary("ghost", "G", 1L, 1L, false, 0, null)), Collections.emptyList());
+
+        NoteRepository fresh = new NoteRepository(new NoteStore(dir));
+        assertEquals(50, fresh.size());
+        assertEquals("N3", fresh.getSummary("n3").getTitle());
+        assertNull(fresh.getSummary("ghost"));
+    }
+
+    @Test
+    public void tornTail_isCutOffAndLaterWritesSurvive() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "notes.index"), true)) {
+            out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+        }
+
+        NoteRepository fresh = new NoteRepository(new NoteStore(dir));
+        assertEquals(50, fresh.size());
+        fresh.insert(new Note("late", "L", "x", 100L, 100L, false));
+
+        NoteRepository reopened = new NoteRepository(new NoteStore(dir) {
+            @Override
+            public List<NoteSummary> readSummaries() {
+                throw new AssertionError("index was rebuilt");
+            }
+        });
+        assertEquals(51, reopened.size());
+        assertEquals("L", reopened.getSummary("late").getTitle());
+    }
+
+    @Test
+    public void log_isCompactedAsItGrows() throws IOException {
+        File file = new File(dir, "notes.index");
+        long start = file.length();
+        for (int i = 0; i < 20 * NoteIndex.MIN_COMPACT_OPS; i++) {
+            Note note = repository.get("n0").copy();
+            note.setTitle("edit " + i);
+            repository.update(note);
+        }
+
+        assertTrue(file.length() + " bytes", file.length() < 4 * start);
+        assertEquals("edit " + (20 * NoteIndex.MIN_COMPACT_OPS - 1),
+                new NoteRepository(new NoteStore(dir)).getSummary("n0").getTitle());
+    }
+
+    private static NoteIndex.Source source(NoteStore store) {
+        return new NoteIndex.Source() {
+            @Override
+            public Collection<String> ids() {
+                List<String> ids = new ArrayList<>();
+                for (NoteSummary summary : store.readSummaries()) ids.add(summary.getId());
+                return ids;
+            }
+
+            @Override
+            public NoteSummary read(String id) {
+                return store.readSummary(id);
+            }
+        };
+    }
+}
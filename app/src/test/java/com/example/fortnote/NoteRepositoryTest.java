@@ -0,0 +1,149 @@
+package com.example.fortnote;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NoteRepositoryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private NoteRepository repository;
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.newFolder("notes");
+        repository = new NoteRepository(new NoteStore(dir));
+        repository.addListener(new NoteRepository.Listener() {
+            @Override public void onNoteInserted(Note note) { events.add("insert " + note.getId()); }
+            @Override public void onNoteUpdated(Note note) { events.add("update " + note.getId()); }
+            @Override public void onNoteRemoved(String id) { events.add("remove " + id); }
+        });
+    }
+
+    @Test
+    public void mutations_writeThroughAndNotify() throws IOException {
+        repository.insert(new Note("a", "A", "one", 1L, 1L, false));
+        Note edited = repository.get("a").copy();
+        edited.setContent("two");
+        repository.update(edited);
+        repository.remove("a");
+        repository.remove("missing");
+
+        assertEquals(List.of("insert a", "update a", "remove a"), events);
+        assertNull(new NoteStore(dir).read("a"));
+    }
+
+    @Test
+    public void removeAll_dropsEveryListedNoteAndReportsOnlyThoseThatExisted() throws IOException {
+        repository.insert(new Note("a", "A", "one", 1L, 1L, false));
+        repository.insert(new Note("b", "B", "two", 2L, 2L, false));
+        repository.insert(new Note("c", "C", "three", 3L, 3L, false));
+        events.clear();
+
+        repository.removeAll(List.of("a", "missing", "c"));
+
+        assertEquals(List.of("remove a", "remove c"), events);
+        assertEquals(1, repository.size());
+        assertEquals("b", repository.getSummaries(NoteRepository.ORDER_TITLE, 0, 10).get(0).getId());
+        assertNull(new NoteStore(dir).read("c"));
+    }
+
+    @Test
+    public void update_isVisibleToAFreshStoreRead() throws IOException {
+        repository.insert(new Note("a", "A", "one", 1L, 1L, false));
+        Note edited = repository.get("a").copy();
+        edited.setTitle("B");
+        repository.update(edited);
+
+        assertEquals("B", new NoteStore(dir).read("a").getTitle());
+    }
+
+    @Test
+    public void summaryLookups_doNotGoBackToDisk() throws IOException {
+        repository.insert(new Note("a", "A", "one", 1L, 1L, false));
+        assertEquals(1, repository.size());
+
+        // Once loaded, the map is the source of truth for summaries.
+        for (File file : dir.listFiles()) assertTrue(file.delete());
+
+        assertEquals("A", repository.getSummary("a").getTitle());
+        assertEquals(1, repository.getSummaries().size());
+    }
+
+    @Test
+    public void get_readsContentOfThatNoteOnly() throws IOException {
+        repository.insert(new Note("a", "A", "one", 1L, 1L, false));
+        repository.insert(new Note("b", "B", "two", 2L, 2L, false));
+        assertTrue(new File(dir, "b.body").delete());
+
+        assertEquals("one", repository.get("a").getContent());
+        assertNull(repository.get("b"));
+    }
+
+    @Test
+    public void get_beforeSummariesAreLoaded_readsThatRecordOnly() throws IOException {
+        for (int i = 0; i < 50; i++) repository.insert(new Note("n" + i, "N" + i, "body " + i, i, i, false));
+
+        NoteRepository fresh = new NoteRepository(new NoteStore(dir) {
+            @Override
+            public List<NoteSummary> readSummaries() {
+                throw new AssertionError("loaded every summary to open one note");
+            }
+        });
+
+        assertEquals("body 7", fresh.get("n7").getContent());
+        assertEquals("N9", fresh.getSummary("n9").getTitle());
+        assertNull(fresh.get("missing"));
+    }
+
+    @Test
+    public void sortIndexes_followEveryMutation() throws IOException {
+        repository.insert(new Note("a", "banana", "1", 30L, 10L, false));
+        repository.insert(new Note("b", "Apple", "2", 20L, 20L, false));
+        repository.insert(new Note("c", "cherry", "3", 10L, 30L, false));
+
+        assertEquals(List.of("c", "b", "a"), ids(NoteRepository.ORDER_CREATED));
+        assertEquals(List.of("a", "b", "c"), ids(NoteRepository.ORDER_LAST_EDITED));
+        assertEquals(List.of("b", "a", "c"), ids(NoteRepository.ORDER_TITLE));
+
+        Note edited = repository.get("c").copy();
+        edited.setTitle("Avocado");
+        edited.setTimestamp(40L);
+        repository.update(edited);
+        repository.remove("b");
+
+        assertEquals(List.of("c", "a"), ids(NoteRepository.ORDER_CREATED));
+        assertEquals(List.of("c", "a"), ids(NoteRepository.ORDER_LAST_EDITED));
+        assertEquals(List.of("c", "a"), ids(NoteRepository.ORDER_TITLE));
+    }
+
+    @Test
+    public void getSummaries_returnsTheRequestedRange() throws IOException {
+        for (int i = 0; i < 10; i++) repository.insert(new Note("n" + i, "N" + i, "x", i, i, false));
+
+        List<NoteSummary> page = repository.getSummaries(NoteRepository.ORDER_LAST_EDITED, 3, 4);
+        assertEquals(4, page.size());
+        assertEquals("n6", page.get(0).getId());
+        assertEquals("n3", page.get(3).getId());
+        assertEquals(1, repository.getSummaries(NoteRepository.ORDER_LAST_EDITED, 9, 4).size());
+        assertTrue(repository.getSummaries(NoteRepository.ORDER_LAST_EDITED, 20, 4).isEmpty());
+    }
+
+    private List<String> ids(int order) {
+        List<String> ids = new ArrayList<>();
+        for (NoteSummary summary : repository.getSummaries(order, 0, Integer.MAX_VALUE)) ids.add(summary.getId());
+        return ids;
+    }
+}
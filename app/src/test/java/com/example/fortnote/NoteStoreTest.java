@@ -0,0 +1,268 @@
+package com.example.fortnote;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NoteStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private NoteStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new NoteStore(tmp.newFolder("notes"));
+    }
+
+    @Test
+    public void writeThenRead_roundTripsEveryField() throws IOException {
+        Note note = new Note("a", "Title", "<p>Body</p>", 200L, 100L, true);
+        note.setPlaintextLength(4);
+        store.write(note);
+
+        Note read = store.read("a");
+        assertNotNull(read);
+        assertEquals("Title", read.getTitle());
+        assertEquals("<p>Body</p>", read.getContent());
+        assertEquals(200L, read.getTimestamp());
+        assertEquals(100L, read.getCreationTimestamp());
+        assertTrue(read.isLocked());
+        assertEquals(4, read.getPlaintextLength());
+    }
+
+    @Test
+    public void summaries_carryTheStoredPreviewButNeverForLockedNotes() throws IOException {
+        Note open = new Note("a", "Open", "<p>Body</p>", 2L, 1L, false);
+        open.setPreview("Body");
+        Note locked = new Note("b", "Locked", "c2Vj", 2L, 1L, true);
+        locked.setPreview("secret");
+        store.write(open);
+        store.write(locked);
+
+        assertEquals("Body", store.read("a").getPreview());
+        assertNull(store.read("b").getPreview());
+        File dir = tmp.getRoot().toPath().resolve("notes").toFile();
+        assertFalse(new String(Files.readAllBytes(new File(dir, "b.note").toPath())).contains("secret"));
+    }
+
+    @Test
+    public void delete_removesOnlyThatNote() throws IOException {
+        store.write(new Note("a", "A", "a", 1L, 1L, false));
+        store.write(new Note("b", "B", "b", 2L, 2L, false));
+
+        store.delete("a");
+
+        assertNull(store.read("a"));
+        assertNotNull(store.read("b"));
+        assertEquals(1, store.readAll().size());
+    }
+
+    @Test
+    public void importJson_migratesLegacyArray() throws Exception {
+        String legacy = "[{\"id\":\"x\",\"title\":\"Old\",\"content\":\"hi\",\"timestamp\":5},"
+                + "{\"id\":\"y\",\"title\":\"Locked\",\"content\":\"c2Vj\",\"timestamp\":7,"
+                + "\"creationTimestamp\":6,\"locked\":true,\"plaintextLength\":3}]";
+
+        assertEquals(2, store.importJson(legacy));
+
+        Note x = store.read("x");
+        assertEquals("Old", x.getTitle());
+        assertEquals(5L, x.getCreationTimestamp());
+        assertFalse(x.isLocked());
+
+        Note y = store.read("y");
+        assertTrue(y.isLocked());
+        assertEquals(3, y.getPlaintextLength());
+    }
+
+    @Test
+    public void write_leavesOtherRecordsUntouched() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            store.write(new Note("n" + i, "T" + i, "content " + i, i, i, false));
+        }
+        File dir = tmp.getRoot().toPath().resolve("notes").toFile();
+        File other = new File(dir, "n3.note");
+        assertTrue(other.setLastModified(1000L));
+
+        store.write(new Note("n7", "changed", "changed", 99L, 7L, false));
+
+        assertEquals(1000L, other.lastModified());
+        String[] names = dir.list();
+        // Only n7 keeps a previous generation.
+        assertEquals(42, names.length);
+        for (String name : names) {
+            assertTrue(name, name.endsWith(".note") || name.endsWith(".body") || name.startsWith("n7."));
+        }
+    }
+
+    @Test
+    public void readSummaries_doesNotTouchContent() throws IOException {
+        store.write(new Note("a", "A", "<p>big</p>", 1L, 1L, false));
+        File dir = tmp.getRoot().toPath().resolve("notes").toFile();
+        assertTrue(new File(dir, "a.body").delete());
+
+        List<NoteSummary> summaries = store.readSummaries();
+        assertEquals(1, summaries.size());
+        assertEquals("A", summaries.get(0).getTitle());
+    }
+
+    @Test
+    public void read_acceptsRecordsWithInlineContent() throws IOException {
+        File dir = tmp.getRoot().toPath().resolve("notes").toFile();
+        Files.write(new File(dir, "old.note").toPath(),
+                "{\"id\":\"old\",\"title\":\"T\",\"content\":\"inline\",\"timestamp\":3}".getBytes());
+
+        assertEquals("inline", store.read("old").getContent());
+        assertEquals("inline", store.readContent("old"));
+    }
+
+    @Test
+    public void writeAll_replacesEveryNoteAndLeavesNoStagingFiles() throws IOException {
+        store.write(new Note("a", "A", "plain a", 1L, 1L, false));
+        store.write(new Note("b", "B", "plain b", 2L, 2L, false));
+
+        store.writeAll(Arrays.asList(
+                new Note("a", "A", "cipher a", 3L, 1L, true),
+                new Note("b", "B", "cipher b", 4L, 2L, true)));
+
+        assertEquals("cipher a", store.readContent("a"));
+        assertTrue(store.read("b").isLocked());
+        File dir = tmp.getRoot().toPath().resolve("notes").toFile();
+        for (String name : dir.list()) {
+            assertTrue(name, name.endsWith(".note") || name.endsWith(".body") || name.endsWith(".prev"));
+        }
+    }
+
+    @Test
+    public void open_rollsForwardAJournaledBatchAndDropsAnAbortedOne() throws IOException {
+        File dir = tmp.getRoot().toPath().resolve("notes").toFile();
+        store.write(new Note("a", "A", "old", 1L, 1L, false));
+        store.write(new Note("b", "B", "old", 1L, 1L, false));
+
+        // "a" was staged and journaled before the crash, "b" was only staged.
+        File staging = tmp.newFolder("staging");
+        new NoteStore(staging).write(new Note("a", "A", "new", 2L, 1L, false));
+        Files.copy(new File(staging, "a.body").toPath(), new File(dir, "a.body.tmp").toPath());
+        Files.copy(new File(staging, "a.note").toPath(), new File(dir, "a.note.tmp").toPath());
+        Files.write(new File(dir, "batch.journal").toPath(), "a.body\na.note\n".getBytes());
+        Files.write(new File(dir, "b.body.tmp").toPath(), "torn".getBytes());
+
+        NoteStore reopened = new NoteStore(dir);
+        assertEquals("new", reopened.readContent("a"));
+        assertEquals("old", reopened.readContent("b"));
+        assertFalse(new File(dir, "batch.journal").exists());
+        assertFalse(new File(dir, "b.body.tmp").exists());
+    }
+
+    @Test
+    public void read_fallsBackToThePreviousGenerationWhenTheRecordIsCorrupt() throws IOException {
+        File dir = tmp.getRoot().toPath().resolve("notes").toFile();
+        store.write(new Note("a", "First", "one", 1L, 1L, false));
+        store.write(new Note("a", "Second", "two", 2L, 1L, false));
+
+        File record = new File(dir, "a.note");
+        byte[] bytes = Files.readAllBytes(record.toPath());
+        bytes[bytes.length - 5] ^= 0x01;
+        Files.write(record.toPath(), bytes);
+
+        Note read = store.read("a");
+        assertEquals("First", read.getTitle());
+        assertEquals("one", read.getContent());
+        assertEquals("First", store.readSummaries().get(0).getTitle());
+        assertTrue(store.getMetrics().getRecoveries() > 0);
+    }
+
+    @Test
+    public void read_neverPairsARecordWithTheWrongBody() throws IOException {
+        File dir = tmp.getRoot().toPath().resolve("notes").toFile();
+        store.write(new Note("a", "First", "one", 1L, 1L, false));
+        store.write(new Note("a", "Second", "two", 2L, 1L, false));
+
+        // Crash after the body went in but before its record did.
+        Files.move(new File(dir, "a.note.prev").toPath(), new File(dir, "a.note").toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        assertEquals("one", store.read("a").getContent());
+
+        // Crash with the old record moved aside and the new one not yet in place.
+        store.write(new Note("b", "First", "one", 1L, 1L, false));
+        store.write(new Note("b", "Second", "two", 2L, 1L, false));
+        assertTrue(new File(dir, "b.note").delete());
+        assertEquals(2, store.readSummaries().size());
+        assertEquals("one", store.read("b").getContent());
+    }
+
+    @Test
+    public void read_dropsACorruptBodyForThePreviousOne() throws IOException {
+        File dir = tmp.getRoot().toPath().resolve("notes").toFile();
+        store.write(new Note("a", "A", "one", 1L, 1L, false));
+        store.write(new Note("a", "A", "two", 2L, 1L, false));
+        Files.write(new File(dir, "a.body").toPath(), "tw0".getBytes());
+
+        assertEquals("one", store.readContent("a"));
+    }
+
+    @Test
+    public void longBodies_areStoredDeflatedAndReadBackWhole() throws IOException {
+        File dir = tmp.getRoot().toPath().resolve("notes").toFile();
+        String content = "<p dir=\"ltr\">" + "lorem ipsum ".repeat(200) + "</p>";
+        store.write(new Note("a", "A", content, 1L, 1L, false));
+        store.writeAll(Arrays.asList(new Note("b", "B", content, 1L, 1L, false)));
+
+        assertTrue(new File(dir, "a.body").length() < content.length() / 4);
+        assertTrue(new File(dir, "b.body").length() < content.length() / 4);
+        assertEquals(content, store.readContent("a"));
+        assertEquals(content, store.read("b").getContent());
+    }
+
+    @Test
+    public void metrics_countCommitsAndBytes() throws IOException {
+        store.write(new Note("a", "A", "12345", 1L, 1L, false));
+        store.writeAll(Arrays.asList(new Note("a", "A", "x", 2L, 1L, false), new Note("b", "B", "y", 2L, 2L, false)));
+
+        NoteStore.Metrics metrics = store.getMetrics();
+        assertEquals(2, metrics.getCommits());
+        assertTrue(metrics.getBytesWritten() > 7);
+        assertTrue(metrics.getMaxCommitNanos() > 0);
+    }
+
+    @Test
+    public void writeCost_staysFlatAsNoteCountGrows() throws IOException {
+        long small = medianWriteNanos(50);
+        long large = medianWriteNanos(3000);
+
+        // A whole-store rewrite would be ~60x slower at 3000 notes; allow generous noise.
+        assertTrue("50 notes: " + small + "ns, 3000 notes: " + large + "ns", large < small * 5);
+    }
+
+    private long medianWriteNanos(int noteCount) throws IOException {
+        NoteStore sized = new NoteStore(tmp.newFolder("sized" + noteCount));
+        String content = "<p dir=\"ltr\">" + "lorem ipsum ".repeat(40) + "</p>";
+        for (int i = 0; i < noteCount; i++) {
+            sized.write(new Note("n" + i, "Note " + i, content, i, i, false));
+        }
+
+        long[] samples = new long[41];
+        for (int i = 0; i < samples.length; i++) {
+            Note note = new Note("n" + (i % noteCount), "Edited", content + i, 10_000L + i, i, false);
+            long start = System.nanoTime();
+            sized.write(note);
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+
+        List<Note> all = sized.readAll();
+        assertEquals(noteCount, all.size());
+        return samples[samples.length / 2];
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.fortnote;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class PeekCacheTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+    private final PeekCache cache = new PeekCache(1000, 2, now::get);
+
+    @Test
+    public void entries_expireAfterTtlEvenWhenRead() {
+        cache.put("a", "<p>secret</p>", cache.stamp());
+        now.set(900);
+        assertEquals("<p>secret</p>", cache.get("a"));
+
+        // Unlike session keys, reading does not extend the entry.
+        now.set(1000);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedPastCapacity() {
+        cache.put("a", "1", cache.stamp());
+        cache.put("b", "2", cache.stamp());
+        cache.get("a");
+        cache.put("c", "3", cache.stamp());
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void invalidate_dropsTheNote() {
+        cache.put("a", "1", cache.stamp());
+        cache.put("b", "2", cache.stamp());
+
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+    }
+
+    @Test
+    public void put_ignoresContentDecryptedBeforeAnInvalidation() {
+        long stamp = cache.stamp();
+        // The note changes while its old content is being decrypted.
+        cache.invalidate("a");
+        cache.put("a", "stale", stamp);
+
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void clear_dropsEverything() {
+        long stamp = cache.stamp();
+        cache.put("a", "1", stamp);
+        cache.clear();
+        cache.put("b", "2", stamp);
+
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.fortnote;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class PerfTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+    private final List<String> trace = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        Perf.reset();
+        Perf.setClock(now::get);
+        Perf.setSink(new Perf.Sink() {
+            @Override public void beginSection(String name) { trace.add("begin " + name); }
+            @Override public void endSection() { trace.add("end"); }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        Perf.setEnabled(false);
+        Perf.setSink(null);
+        Perf.setClock(System::nanoTime);
+        Perf.reset();
+    }
+
+    @Test
+    public void whileDisabled_nothingIsRecorded() {
+        long start = Perf.begin(Perf.STORE_READ);
+        // Switching on mid-section must not leave an unbalanced end.
+        Perf.setEnabled(true);
+        now.addAndGet(500);
+        Perf.end(Perf.STORE_READ, start);
+        Perf.setEnabled(false);
+        Perf.count(Perf.BYTES_READ, 100);
+
+        assertTrue(trace.isEmpty());
+        assertEquals(0, Perf.getSectionCount(Perf.STORE_READ));
+        assertEquals(0, Perf.getCount(Perf.BYTES_READ));
+    }
+
+    @Test
+    public void sections_reachTheSinkAndTheHistogram() {
+        Perf.setEnabled(true);
+        for (int i = 1; i <= 100; i++) {
+            long start = Perf.begin(Perf.STORE_WRITE);
+            now.addAndGet(i * 1000L);
+            Perf.end(Perf.STORE_WRITE, start);
+        }
+
+        assertEquals(200, trace.size());
+        assertEquals("begin " + Perf.STORE_WRITE, trace.get(0));
+        assertEquals("end", trace.get(1));
+        assertEquals(100, Perf.getSectionCount(Perf.STORE_WRITE));
+        assertEquals(50_000, Perf.getPercentile(Perf.STORE_WRITE, 50), 50_000 * 0.07);
+        assertEquals(99_000, Perf.getPercentile(Perf.STORE_WRITE, 99), 99_000 * 0.07);
+        assertEquals(100_000, Perf.getPercentile(Perf.STORE_WRITE, 100));
+    }
+
+    @Test
+    public void counters_addUpAndShowInTheDump() {
+        Perf.setEnabled(true);
+        Perf.count(Perf.BYTES_WRITTEN, 300);
+        Perf.count(Perf.BYTES_WRITTEN, 200);
+        long start = Perf.begin(Perf.KDF);
+        now.addAndGet(2_000_000);
+        Perf.end(Perf.KDF, start);
+
+        assertEquals(500, Perf.getCount(Perf.BYTES_WRITTEN));
+        String dump = Perf.dump();
+        assertTrue(dump.contains("p50"));
+        assertTrue(dump.contains(Perf.KDF));
+        assertTrue(dump.contains(Perf.BYTES_WRITTEN));
+
+        Perf.reset();
+        assertEquals(0, Perf.getCount(Perf.BYTES_WRITTEN));
+        assertEquals(0, Perf.getSectionCount(Perf.KDF));
+    }
+}
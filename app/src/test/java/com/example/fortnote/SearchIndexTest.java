@@ -0,0 +1,97 @@
+package com.example.fortnote;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+
+    private final SearchIndex index = new SearchIndex();
+
+    @Test
+    public void search_matchesWordPrefixesCaseInsensitively() {
+        index.put("a", "Shopping", "Buy apples and Bananas", 1);
+        index.put("b", "Ideas", "An application idea", 2);
+
+        assertEquals(Arrays.asList("b", "a"), index.search("app", 10));
+        assertEquals(Collections.singletonList("a"), index.search("BAN", 10));
+        assertTrue(index.search("cherry", 10).isEmpty());
+        assertTrue(index.search("  ", 10).isEmpty());
+    }
+
+    @Test
+    public void search_requiresEveryQueryWord() {
+        index.put("a", "Trip", "pack the tent and the stove", 1);
+        index.put("b", "Camping", "tent pegs", 2);
+
+        assertEquals(Collections.singletonList("a"), index.search("tent sto", 10));
+    }
+
+    @Test
+    public void search_ranksByMatchCountThenRecency() {
+        index.put("once", "", "kiwi", 5);
+        index.put("twice", "", "kiwi kiwi", 1);
+        index.put("title", "Kiwi", "", 2);
+        index.put("newer", "", "kiwi", 9);
+
+        assertEquals(Arrays.asList("title", "twice", "newer", "once"), index.search("kiwi", 10));
+        assertEquals(Arrays.asList("title", "twice"), index.search("kiwi", 2));
+    }
+
+    @Test
+    public void put_replacesAndRemoveDropsTheNote() {
+        index.put("a", "Old", "first draft", 1);
+        index.put("a", "New", "second draft", 2);
+
+        assertTrue(index.search("first", 10).isEmpty());
+        assertEquals(Collections.singletonList("a"), index.search("second", 10));
+
+        index.remove("a");
+        assertTrue(index.search("draft", 10).isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void tokenize_splitsOnNonLetters() {
+        assertEquals(Arrays.asList("héllo", "world", "42"), SearchIndex.tokenize("Héllo, world!\n42"));
+    }
+
+    @Test
+    public void search_staysFastOnTenThousandNotes() {
+        Random random = new Random(1);
+        String[] vocabulary = new String[5000];
+        for (int i = 0; i < vocabulary.length; i++) vocabulary[i] = randomWord(random);
+
+        for (int i = 0; i < 10_000; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < 100; w++) text.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+            index.put("n" + i, "Note " + i, text.toString(), i);
+        }
+
+        String[] queries = {"a", "ka", vocabulary[7], vocabulary[8].substring(0, 3) + " " + vocabulary[9].substring(0, 2)};
+        long[] samples = new long[21];
+        for (int i = 0; i < samples.length; i++) {
+            long start = System.nanoTime();
+            for (String query : queries) {
+                List<String> ids = index.search(query, 200);
+                assertTrue(ids.size() <= 200);
+            }
+            samples[i] = (System.nanoTime() - start) / queries.length;
+        }
+        Arrays.sort(samples);
+
+        long median = samples[samples.length / 2];
+        assertTrue("median query " + median / 1000 + "us", median < 20_000_000L);
+    }
+
+    private static String randomWord(Random random) {
+        char[] letters = new char[3 + random.nextInt(6)];
+        for (int i = 0; i < letters.length; i++) letters[i] = (char) ('a' + random.nextInt(26));
+        return new String(letters);
+    }
+}
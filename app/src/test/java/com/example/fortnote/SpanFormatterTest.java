@@ -0,0 +1,84 @@
+package com.example.fortnote;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SpanFormatterTest {
+
+    private static final int BOLD = 1;
+    private static final int ITALIC = 2;
+
+    private final TextDocument doc = new TextDocument();
+
+    public SpanFormatterTest() {
+        doc.text.append("0123456789abcdefghij");
+    }
+
+    @Test
+    public void toggle_addsASpanOverThePlainRange() {
+        assertTrue(SpanFormatter.toggle(doc, BOLD, 2, 6));
+        assertSpans(span(BOLD, 2, 6));
+    }
+
+    @Test
+    public void toggle_mergesOverlappingAndAdjacentSpansOfTheSameStyle() {
+        doc.addSpan(span(BOLD, 0, 3));
+        doc.addSpan(span(BOLD, 8, 10));
+        doc.addSpan(span(ITALIC, 4, 9));
+
+        assertTrue(SpanFormatter.toggle(doc, BOLD, 2, 8));
+        assertSpans(span(BOLD, 0, 10), span(ITALIC, 4, 9));
+    }
+
+    @Test
+    public void toggle_removesAStyleThatCoversTheRangeAndKeepsTheRest() {
+        doc.addSpan(span(BOLD, 0, 5));
+        doc.addSpan(span(BOLD, 5, 12));
+
+        assertFalse(SpanFormatter.toggle(doc, BOLD, 3, 8));
+        assertSpans(span(BOLD, 0, 3), span(BOLD, 8, 12));
+    }
+
+    @Test
+    public void toggle_partialCoverageTurnsTheStyleOn() {
+        doc.addSpan(span(ITALIC, 0, 4));
+
+        assertTrue(SpanFormatter.toggle(doc, ITALIC, 2, 7));
+        assertSpans(span(ITALIC, 0, 7));
+
+        assertFalse(SpanFormatter.toggle(doc, ITALIC, 0, 7));
+        assertTrue(doc.spans.isEmpty());
+    }
+
+    @Test
+    public void toggle_isOneUndoStep() {
+        EditHistory history = new EditHistory(10, 1000, 800);
+        doc.addSpan(span(BOLD, 0, 3));
+
+        List<EditHistory.Span> before = doc.spans(2, 6);
+        SpanFormatter.toggle(doc, BOLD, 2, 6);
+        history.recordStyle(2, 6, before, doc.spans(2, 6), 0);
+        assertSpans(span(BOLD, 0, 6));
+
+        history.undo(doc);
+        assertSpans(span(BOLD, 0, 3));
+        history.redo(doc);
+        assertSpans(span(BOLD, 0, 6));
+    }
+
+    private void assertSpans(EditHistory.Span... expected) {
+        Set<EditHistory.Span> actual = new HashSet<>(doc.spans);
+        assertEquals(new HashSet<>(Arrays.asList(expected)), actual);
+        assertEquals(expected.length, doc.spans.size());
+    }
+
+    private static EditHistory.Span span(int style, int start, int end) {
+        return new EditHistory.Span(style, start, end);
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.fortnote;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/** Plain-Java stand-in for an Editable with SPAN_EXCLUSIVE_EXCLUSIVE spans. */
+class TextDocument implements EditHistory.Target {
+
+    final StringBuilder text = new StringBuilder();
+    final List<EditHistory.Span> spans = new ArrayList<>();
+
+    @Override
+    public void replace(int start, int end, String replacement) {
+        text.replace(start, end, replacement);
+        int delta = replacement.length() - (end - start);
+
+        List<EditHistory.Span> moved = new ArrayList<>();
+        for (Iterator<EditHistory.Span> it = spans.iterator(); it.hasNext(); ) {
+            EditHistory.Span span = it.next();
+            it.remove();
+            int s = span.start >= end ? span.start + delta : span.start > start ? start + replacement.length() : span.start;
+            int e = span.end > end ? span.end + delta : span.end > start ? start : span.end;
+            if (span.start < start && span.end > end) e = span.end + delta;
+            if (s < e) moved.add(new EditHistory.Span(span.style, s, e));
+        }
+        spans.addAll(moved);
+    }
+
+    @Override
+    public List<EditHistory.Span> spans(int start, int end) {
+        List<EditHistory.Span> touching = new ArrayList<>();
+        for (EditHistory.Span span : spans) {
+            if (span.touches(start, end)) touching.add(span);
+        }
+        return touching;
+    }
+
+    @Override
+    public void removeSpans(int start, int end) {
+        spans.removeIf(span -> span.touches(start, end));
+    }
+
+    @Override
+    public void addSpan(EditHistory.Span span) {
+        spans.add(span);
+    }
+
+    @Override
+    public void removeSpan(EditHistory.Span span) {
+        spans.remove(span);
+    }
+}
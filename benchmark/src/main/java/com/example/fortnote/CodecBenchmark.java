@@ -0,0 +1,77 @@
+package com.example.fortnote;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/** A note's metadata record in the binary store layout against the JSON one. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private Note note;
+    private NoteCodec.Body body;
+    private byte[] binary;
+    private String json;
+
+    @Setup
+    public void setUp() throws JSONException {
+        note = StoreBenchmark.sampleNote("3f1c2a9e-8d7b-4c6a-9e5f-1a2b3c4d5e6f", 42);
+        body = NoteCodec.encodeBody(note, false);
+        binary = NoteCodec.encodeRecord(note, 1, body);
+        json = NoteStore.toJson(note).toString();
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return NoteCodec.encodeRecord(note, 1, body);
+    }
+
+    @Benchmark
+    public NoteSummary decodeBinary() throws IOException {
+        return NoteCodec.decodeRecord(binary).summary;
+    }
+
+    @Benchmark
+    public String encodeJson() throws JSONException {
+        return NoteStore.toJson(note).toString();
+    }
+
+    @Benchmark
+    public NoteSummary decodeJson() throws JSONException {
+        return NoteStore.summaryFromJson(new JSONObject(json));
+    }
+
+    // A whole store round trip of the note, record and body, in each layout.
+    @Benchmark
+    public int roundTripBinary() throws IOException {
+        NoteCodec.Body encoded = NoteCodec.encodeBody(note, false);
+        NoteCodec.Record record = NoteCodec.decodeRecord(NoteCodec.encodeRecord(note, 1, encoded));
+        return NoteCodec.decodeBody(encoded.bytes, record.rawBody).length();
+    }
+
+    @Benchmark
+    public int roundTripJson() throws JSONException {
+        String record = NoteStore.toJson(note).toString();
+        byte[] encoded = note.getContent().getBytes(StandardCharsets.UTF_8);
+        NoteSummary summary = NoteStore.summaryFromJson(new JSONObject(record));
+        return summary.getTitle().length() + new String(encoded, StandardCharsets.UTF_8).length();
+    }
+}
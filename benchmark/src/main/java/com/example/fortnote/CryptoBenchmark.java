@@ -0,0 +1,115 @@
+package com.example.fortnote;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Note encryption and decryption with a warm session key, across content
+ * sizes, and the password KDF on its own across iteration counts. The unlock
+ * pair opens a small note with nothing cached, once through the KDF and once
+ * through a wrapped key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @State(Scope.Benchmark)
+    public static class Content {
+        @Param({"1024", "65536", "1048576"})
+        public int size;
+
+        String plainText;
+        String cipherText;
+
+        @Setup
+        public void setUp() throws Exception {
+            StringBuilder html = new StringBuilder("<p dir=\"ltr\">");
+            while (html.length() < size) html.append("The quick brown fox jumps over the lazy dog. ");
+            plainText = html.substring(0, size);
+            cipherText = EncryptionManager.encrypt(plainText, PASSWORD);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Kdf {
+        @Param({"10000", "65536", "210000"})
+        public int iterations;
+
+        final byte[] salt = new byte[16];
+    }
+
+    @State(Scope.Benchmark)
+    public static class Unlock {
+        @Param({"false", "true"})
+        public boolean wrappedKeys;
+
+        File dir;
+        String cipherText;
+
+        @Setup
+        public void setUp() throws Exception {
+            dir = Files.createTempDirectory("fortnote-keys").toFile();
+            if (wrappedKeys) EncryptionManager.setKeySource(new SoftwareKeySource(), dir);
+            cipherText = EncryptionManager.encrypt("<p dir=\"ltr\">Meet at noon</p>", PASSWORD);
+        }
+
+        @TearDown
+        public void tearDown() {
+            EncryptionManager.forgetWrappedKeys(dir);
+            EncryptionManager.setKeySource(null, null);
+            dir.delete();
+        }
+    }
+
+    @Benchmark
+    public String encrypt(Content content) throws Exception {
+        return EncryptionManager.encrypt(content.plainText, PASSWORD);
+    }
+
+    @Benchmark
+    public String decrypt(Content content) throws Exception {
+        return EncryptionManager.decrypt(content.cipherText, PASSWORD);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String unlock(Unlock unlock) throws Exception {
+        EncryptionManager.clearKeyCache();
+        return EncryptionManager.decrypt(unlock.cipherText, PASSWORD);
+    }
+
+    // The same derivation EncryptionManager runs on a session-key miss.
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public byte[] deriveKey(Kdf kdf) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(PASSWORD.toCharArray(), kdf.salt, kdf.iterations, 256);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
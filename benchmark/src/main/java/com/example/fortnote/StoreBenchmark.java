@@ -0,0 +1,132 @@
+package com.example.fortnote;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The repository operations behind NoteManager's load, list, save and update,
+ * on a store of 100, 1k and 10k notes. NoteManager itself adds only the HTML
+ * preview on top, which needs the Android runtime.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark {
+
+    // NoteManager.PREVIEW_LENGTH; NoteManager itself is not compiled in.
+    private static final int PREVIEW_LENGTH = 200;
+
+    @Param({"100", "1000", "10000"})
+    public int noteCount;
+
+    private File dir;
+    private NoteRepository repository;
+    private List<String> ids;
+    private final Random random = new Random(1);
+
+    @Setup(Level.Trial)
+    public void createStore() throws IOException {
+        dir = Files.createTempDirectory("fortnote-bench").toFile();
+        List<Note> notes = new ArrayList<>();
+        ids = new ArrayList<>();
+        for (int i = 0; i < noteCount; i++) {
+            Note note = sampleNote(UUID.randomUUID().toString(), i);
+            notes.add(note);
+            ids.add(note.getId());
+        }
+        new NoteStore(dir).writeAll(notes);
+        repository = new NoteRepository(new NoteStore(dir));
+        repository.size();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteStore() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    /** Opening the store and listing every summary from its index, as on a cold start. */
+    @Benchmark
+    public int load() {
+        return new NoteRepository(new NoteStore(dir)).size();
+    }
+
+    /** Reading every record instead, as a cold start did before the index. */
+    @Benchmark
+    public int loadFromRecords() {
+        return new NoteStore(dir).readSummaries().size();
+    }
+
+    /** The main list: every summary, newest first, off the repository's index. */
+    @Benchmark
+    public List<NoteSummary> listSummaries() {
+        return repository.getSummaries(NoteRepository.ORDER_CREATED, 0, Integer.MAX_VALUE);
+    }
+
+    /** The same list sorted from scratch, as it was before the indexes. */
+    @Benchmark
+    public List<NoteSummary> listSummariesSorted() {
+        List<NoteSummary> notes = repository.getSummaries();
+        notes.sort(Comparator.comparingLong(NoteSummary::getCreationTimestamp).reversed());
+        return notes;
+    }
+
+    /** The first screenful in title order. */
+    @Benchmark
+    public List<NoteSummary> firstPageByTitle() {
+        return repository.getSummaries(NoteRepository.ORDER_TITLE, 0, 30);
+    }
+
+    @Benchmark
+    public Note open() {
+        return repository.get(ids.get(random.nextInt(ids.size())));
+    }
+
+    // Saved notes are deleted again so the store keeps its size.
+    @Benchmark
+    public void save() throws IOException {
+        Note note = sampleNote(UUID.randomUUID().toString(), noteCount);
+        repository.insert(note);
+        repository.remove(note.getId());
+    }
+
+    @Benchmark
+    public void update() throws IOException {
+        String id = ids.get(random.nextInt(ids.size()));
+        repository.update(sampleNote(id, random.nextInt(1000)));
+    }
+
+    static Note sampleNote(String id, int i) {
+        String text = "Meeting notes " + i + ": agenda, actions and follow-ups. ".repeat(8);
+        Note note = new Note(id, "Note " + i, "<p dir=\"ltr\">" + text + "</p>", 1_700_000_000_000L + i,
+                1_700_000_000_000L + i, false);
+        note.setPlaintextLength(text.length());
+        note.setPreview(text.substring(0, PREVIEW_LENGTH));
+        return note;
+    }
+}